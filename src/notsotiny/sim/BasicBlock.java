@@ -0,0 +1,200 @@
+package notsotiny.sim;
+
+import java.util.Arrays;
+
+import notsotiny.sim.ops.Opcode;
+
+/**
+ * A straight-line run of instructions, recorded as they were executed.
+ * Blocks end at control flow, HLT, or privilege changes, and keep links to the blocks that followed them.
+ *
+ * @author Mechafinch
+ */
+public class BasicBlock {
+
+    public static final int MAX_LENGTH = 64;
+
+    // most bytes a block's code can span from startIP
+    private static final int MAX_EXTENT = MAX_LENGTH * InstructionCache.FETCH_SIZE;
+
+    public final int startIP;
+
+    public final boolean privileged;
+
+    private int length,
+                endIP;
+
+    // instruction cache state the code was fetched in. blocks span at most two pages
+    private int epoch,
+                firstGeneration,
+                lastGeneration;
+
+    // code bytes from startIP, enough for the fetch window of the last instruction
+    private byte[] code;
+
+    private Opcode[] opcodes;
+
+    private int[] sizes;
+
+    private InstructionDescriptor[] decoded;
+
+    // tiering
+    private int executions;
+
+    private boolean compileAttempted;
+
+    private NotSoTinySimulator.CompiledBlock compiled;
+
+    // successors
+    private BasicBlock linkA,
+                       linkB;
+
+    /**
+     * Create an empty block
+     *
+     * @param startIP
+     * @param privileged Privilege the block was fetched with
+     * @param icache Instruction cache the block is fetched through
+     */
+    public BasicBlock(int startIP, boolean privileged, InstructionCache icache) {
+        this.startIP = startIP;
+        this.privileged = privileged;
+        this.epoch = icache.getEpoch();
+        this.firstGeneration = icache.getPageGeneration(startIP);
+        this.lastGeneration = icache.getPageGeneration(startIP + MAX_EXTENT - 1);
+
+        this.length = 0;
+        this.endIP = startIP;
+        this.code = new byte[MAX_LENGTH * InstructionCache.FETCH_SIZE];
+        this.opcodes = new Opcode[MAX_LENGTH];
+        this.sizes = new int[MAX_LENGTH];
+        this.decoded = new InstructionDescriptor[MAX_LENGTH];
+
+        this.executions = 0;
+        this.compileAttempted = false;
+        this.compiled = null;
+
+        this.linkA = null;
+        this.linkB = null;
+    }
+
+    /**
+     * Adds the next instruction to the block
+     *
+     * @param fetchWindow Fetch window of the instruction
+     * @param cid Descriptor the instruction was decoded into
+     */
+    public void append(byte[] fetchWindow, InstructionDescriptor cid) {
+        int offset = this.endIP - this.startIP;
+
+        System.arraycopy(fetchWindow, 0, this.code, offset, InstructionCache.FETCH_SIZE);
+        this.decoded[this.length] = new InstructionDescriptor();
+        this.decoded[this.length].copy(cid);
+        this.opcodes[this.length] = cid.opcode;
+        this.sizes[this.length++] = cid.instructionSize;
+        this.endIP += cid.instructionSize;
+    }
+
+    /**
+     * Trims storage once recording is done
+     */
+    public void finish() {
+        this.code = Arrays.copyOf(this.code, this.endIP - this.startIP + InstructionCache.FETCH_SIZE);
+        this.opcodes = Arrays.copyOf(this.opcodes, this.length);
+        this.sizes = Arrays.copyOf(this.sizes, this.length);
+        this.decoded = Arrays.copyOf(this.decoded, this.length);
+    }
+
+    /**
+     * Copies the fetch window of the instruction at the given IP
+     *
+     * @param ip
+     * @param dest
+     */
+    public void copyFetchWindow(int ip, byte[] dest) {
+        System.arraycopy(this.code, ip - this.startIP, dest, 0, InstructionCache.FETCH_SIZE);
+    }
+
+    /**
+     * Counts an execution of the block
+     *
+     * @return The number of times the block has been executed
+     */
+    public int countExecution() {
+        return ++this.executions;
+    }
+
+    /**
+     * Sets the compiled form of the block. Null if it couldn't be compiled.
+     *
+     * @param compiled
+     */
+    public void setCompiled(NotSoTinySimulator.CompiledBlock compiled) {
+        this.compiled = compiled;
+        this.compileAttempted = true;
+    }
+
+    /**
+     * Links a block which followed this one
+     *
+     * @param next
+     */
+    public void link(BasicBlock next) {
+        // fallthrough and taken cover most blocks, anything else replaces the older link
+        this.linkB = this.linkA;
+        this.linkA = next;
+    }
+
+    /**
+     * Follows a link
+     *
+     * @param ip
+     * @param privilege
+     * @param icache
+     * @return The linked block starting at ip, or null if there isn't a usable one
+     */
+    public BasicBlock getSuccessor(int ip, boolean privilege, InstructionCache icache) {
+        if(this.linkA != null && this.linkA.startIP == ip && this.linkA.isUsable(privilege, icache)) return this.linkA;
+        if(this.linkB != null && this.linkB.startIP == ip && this.linkB.isUsable(privilege, icache)) return this.linkB;
+        return null;
+    }
+
+    /**
+     * @param privilege
+     * @param icache
+     * @return true if this block can be run with the given privilege
+     */
+    public boolean isUsable(boolean privilege, InstructionCache icache) {
+        return privilege == this.privileged && isCurrent(icache);
+    }
+
+    /**
+     * @param icache
+     * @return true if no code the block could have been fetched from has changed
+     */
+    public boolean isCurrent(InstructionCache icache) {
+        return this.epoch == icache.getEpoch() &&
+               this.firstGeneration == icache.getPageGeneration(this.startIP) &&
+               this.lastGeneration == icache.getPageGeneration(this.startIP + MAX_EXTENT - 1);
+    }
+
+    /**
+     * @param opcode
+     * @return true if the opcode ends a block
+     */
+    public static boolean endsBlock(Opcode opcode) {
+        return switch(opcode.egroup) {
+            case HLT, JMP, JMPA, JCC, CALL, CALLA, RET, IRET, INT, MOV_PROTECTED -> true;
+            default -> false;
+        };
+    }
+
+    public int getLength() { return this.length; }
+    public int getEndIP() { return this.endIP; }
+    public Opcode getOpcode(int index) { return this.opcodes[index]; }
+    public int getSize(int index) { return this.sizes[index]; }
+    public InstructionDescriptor getDecoded(int index) { return this.decoded[index]; }
+    public byte getCodeByte(int offset) { return this.code[offset]; }
+    public boolean isCompileAttempted() { return this.compileAttempted; }
+    public NotSoTinySimulator.CompiledBlock getCompiled() { return this.compiled; }
+}
@@ -0,0 +1,1171 @@
+package notsotiny.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import notsotiny.sim.ops.ExecutionGroup;
+import notsotiny.sim.ops.Opcode;
+
+/**
+ * Compiles basic blocks into JVM bytecode.
+ * Each block becomes a hidden class nested with NotSoTinySimulator, so the generated code can use the simulator's
+ * registers directly. Moves, ALU operations, compares, and branches are translated when their operands are registers,
+ * immediates, or memory addressed by an immediate or a register base & index. Everything else calls back into the
+ * interpreter one instruction at a time.
+ *
+ * @author Mechafinch
+ */
+class BlockCompiler {
+
+    private static final String SIM_CLASS = "notsotiny/sim/NotSoTinySimulator",
+                                SIM_DESC = "L" + SIM_CLASS + ";",
+                                COMPILED_CLASS = "notsotiny/sim/NotSoTinySimulator$CompiledBlock",
+                                BLOCK_CLASS = "notsotiny/sim/CompiledBlock",
+                                MEMORY_CLASS = "notsotiny/sim/memory/MemoryManager",
+                                MEMORY_DESC = "L" + MEMORY_CLASS + ";",
+                                OBJECT_CLASS = "java/lang/Object";
+
+    private static final int CLASS_VERSION = 61;
+
+    // access flags
+    private static final int ACC_PUBLIC = 0x0001,
+                             ACC_FINAL = 0x0010,
+                             ACC_SUPER = 0x0020,
+                             ACC_SYNTHETIC = 0x1000;
+
+    // opcodes
+    private static final int ICONST_0 = 0x03,
+                             BIPUSH = 0x10,
+                             SIPUSH = 0x11,
+                             LDC_W = 0x13,
+                             ILOAD = 0x15,
+                             ALOAD_0 = 0x2A,
+                             ALOAD_1 = 0x2B,
+                             ISTORE = 0x36,
+                             POP = 0x57,
+                             IADD = 0x60,
+                             ISHL = 0x78,
+                             ISHR = 0x7A,
+                             IAND = 0x7E,
+                             IOR = 0x80,
+                             IXOR = 0x82,
+                             I2L = 0x85,
+                             I2B = 0x91,
+                             I2S = 0x93,
+                             IFEQ = 0x99,
+                             GOTO = 0xA7,
+                             IRETURN = 0xAC,
+                             RETURN = 0xB1,
+                             GETFIELD = 0xB4,
+                             PUTFIELD = 0xB5,
+                             INVOKEVIRTUAL = 0xB6,
+                             INVOKESPECIAL = 0xB7;
+
+    // 16 bit registers in encoding order
+    private static final String[] REGISTERS_16 = { "reg_a", "reg_b", "reg_c", "reg_d", "reg_i", "reg_j", "reg_k", "reg_l" },
+                                  POINTERS = { "reg_xp", "reg_yp", "reg_bp", "reg_sp" };
+
+    // BIO bases in encoding order. The last base of the indexed forms is none
+    private static final Register[] BIO_BASES = { Register.DA, Register.BC, Register.JI, Register.LK, Register.XP, Register.YP, Register.BP, Register.SP };
+
+    // locals of the run method
+    private static final int LOCAL_RESULT = 2,
+                             LOCAL_SOURCE_ADDRESS = 3,
+                             LOCAL_DESTINATION_ADDRESS = 4,
+                             LOCAL_SOURCE = 5,
+                             LOCAL_DESTINATION = 6,
+                             LOCAL_COUNT = 7;
+
+    private MethodHandles.Lookup lookup;
+
+    // per-class state
+    private ByteArrayOutputStream poolBytes;
+    private DataOutputStream pool;
+    private Map<String, Integer> poolIndices;
+    private int poolCount;
+
+    private ByteArrayOutputStream codeBytes;
+    private DataOutputStream code;
+    private List<Integer> branchTargets;
+
+    /**
+     * @param lookup Full privilege lookup on NotSoTinySimulator
+     */
+    public BlockCompiler(MethodHandles.Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Compiles a block
+     *
+     * @param block
+     * @return Compiled code for the block
+     * @throws ReflectiveOperationException if the class could not be defined
+     */
+    public NotSoTinySimulator.CompiledBlock compile(BasicBlock block) throws ReflectiveOperationException {
+        byte[] classBytes;
+
+        try {
+            classBytes = generateClass(block);
+        } catch(IOException e) {
+            // not possible with byte array streams
+            throw new IllegalStateException(e);
+        }
+
+        MethodHandles.Lookup hidden = this.lookup.defineHiddenClass(classBytes, false, MethodHandles.Lookup.ClassOption.NESTMATE);
+
+        try {
+            return (NotSoTinySimulator.CompiledBlock) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch(ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Generates the class file for a block
+     *
+     * @param block
+     * @return class file bytes
+     * @throws IOException
+     */
+    private byte[] generateClass(BasicBlock block) throws IOException {
+        this.poolBytes = new ByteArrayOutputStream();
+        this.pool = new DataOutputStream(this.poolBytes);
+        this.poolIndices = new HashMap<>();
+        this.poolCount = 1;
+
+        int thisClass = classConstant(BLOCK_CLASS),
+            superClass = classConstant(OBJECT_CLASS),
+            compiledInterface = classConstant(COMPILED_CLASS);
+
+        byte[] constructor = generateConstructor(),
+               run = generateRun(block);
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+
+        out.writeShort(this.poolCount);
+        out.write(this.poolBytes.toByteArray());
+
+        out.writeShort(ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+
+        out.writeShort(1);  // interfaces
+        out.writeShort(compiledInterface);
+
+        out.writeShort(0);  // fields
+
+        out.writeShort(2);  // methods
+        out.write(constructor);
+        out.write(run);
+
+        out.writeShort(0);  // attributes
+
+        return classBytes.toByteArray();
+    }
+
+    /**
+     * Generates a no-argument constructor
+     *
+     * @return method_info bytes
+     * @throws IOException
+     */
+    private byte[] generateConstructor() throws IOException {
+        startCode();
+
+        this.code.writeByte(ALOAD_0);
+        this.code.writeByte(INVOKESPECIAL);
+        this.code.writeShort(methodConstant(OBJECT_CLASS, "<init>", "()V"));
+        this.code.writeByte(RETURN);
+
+        return finishMethod(ACC_PUBLIC, "<init>", "()V", 1, 1);
+    }
+
+    /**
+     * Generates int run(NotSoTinySimulator sim)
+     * Returns the number of instructions executed.
+     *
+     * @param block
+     * @return method_info bytes
+     * @throws IOException
+     */
+    private byte[] generateRun(BasicBlock block) throws IOException {
+        startCode();
+
+        int ip = block.startIP,
+            length = block.getLength();
+
+        boolean ipCurrent = true;
+
+        for(int i = 0; i < length; i++) {
+            Opcode op = block.getOpcode(i);
+            int offset = ip - block.startIP,
+                next = ip + block.getSize(i);
+
+            if(generateDirect(block, i, op, ip, offset, next)) {
+                // IP is only written where something will look at it
+                ipCurrent = switch(op.egroup) {
+                    case JMP, JMPA, JCC -> true;
+                    default             -> false;
+                };
+            } else {
+                // interpreted instruction, exits the block if it did something unexpected
+                pushSim();
+                pushInt(ip);
+                pushInt(i);
+                this.code.writeByte(INVOKEVIRTUAL);
+                this.code.writeShort(methodConstant(SIM_CLASS, "runBlockInstruction", "(II)Z"));
+
+                if(i == length - 1) {
+                    // the block ends here either way
+                    this.code.writeByte(POP);
+                    ipCurrent = true;
+                    break;
+                }
+
+                int branch = this.code.size();
+                this.code.writeByte(IFEQ);
+                this.code.writeShort(0);    // patched in finishMethod
+
+                pushInt(i + 1);
+                this.code.writeByte(IRETURN);
+
+                patchBranch(branch, this.code.size());
+                ipCurrent = true;
+            }
+
+            ip = next;
+        }
+
+        if(!ipCurrent) {
+            pushSim();
+            pushInt(ip);
+            putField("reg_ip", "I");
+        }
+
+        pushInt(length);
+        this.code.writeByte(IRETURN);
+
+        return finishMethod(ACC_PUBLIC | ACC_FINAL, "run", "(" + SIM_DESC + ")I", 8, LOCAL_COUNT);
+    }
+
+    /*
+     * Direct translations
+     */
+
+    /**
+     * Generates code for an instruction that can be translated directly
+     *
+     * @param block
+     * @param index Index of the instruction in the block
+     * @param op
+     * @param ip IP of the instruction
+     * @param offset Offset of the instruction in the block's code
+     * @param next IP of the following instruction
+     * @return true if the instruction was translated, false if it must be interpreted
+     * @throws IOException
+     */
+    private boolean generateDirect(BasicBlock block, int index, Opcode op, int ip, int offset, int next) throws IOException {
+        int opByte = op.op & 0xFF;
+
+        switch(op.egroup) {
+            case NOP:
+                return true;
+
+            case MOV_SHORTCUT:
+                // MOV r16, i16
+                if(opByte < 0x10 || opByte > 0x17) return false;
+
+                pushSim();
+                pushInt((short)((block.getCodeByte(offset + 2) << 8) | (block.getCodeByte(offset + 1) & 0xFF)));
+                putField(REGISTERS_16[opByte & 0x07], "S");
+                return true;
+
+            case MOVS:
+                // MOVS r16, i8
+                if(opByte < 0x18 || opByte > 0x1F) return false;
+
+                pushSim();
+                pushInt(block.getCodeByte(offset + 1));
+                putField(REGISTERS_16[opByte & 0x07], "S");
+                return true;
+
+            case ADD_SHORTCUT, SUB_SHORTCUT:
+                // ADD/SUB r16, i8 and ADDW/SUBW pointer, i8
+                boolean subtract = op.egroup == ExecutionGroup.SUB_SHORTCUT;
+                int reg = opByte & 0x0F;
+
+                if(reg < 0x08) {
+                    generateAdd(REGISTERS_16[reg], "S", 2, block.getCodeByte(offset + 1) & 0xFF, subtract);
+                    return true;
+                } else if(reg >= 0x0C) {
+                    generateAdd(POINTERS[reg - 0x0C], "I", 4, block.getCodeByte(offset + 1) & 0xFF, subtract);
+                    return true;
+                }
+
+                return false;
+
+            default:
+                return generateDecoded(block, index, ip, offset, next);
+        }
+    }
+
+    /**
+     * Generates code for an instruction from its decoded form. Operands are read in the same order decode reads them,
+     * so faults happen at the same point as in the interpreter.
+     *
+     * @param block
+     * @param index
+     * @param ip
+     * @param offset
+     * @param next
+     * @return true if the instruction was translated
+     * @throws IOException
+     */
+    private boolean generateDecoded(BasicBlock block, int index, int ip, int offset, int next) throws IOException {
+        InstructionDescriptor decoded = block.getDecoded(index);
+        ExecutionGroup group = decoded.opcode.egroup;
+
+        switch(group) {
+            case MOV, XCHG, ADD, ADC, SUB, SBB, CMP, JMP, JMPA, JCC:
+                break;
+
+            case LOGIC, TST:
+                if(decoded.isPacked) return false;
+                break;
+
+            default:
+                return false;
+        }
+
+        LocationDescriptor source = decoded.sourceDescriptor,
+                           destination = decoded.destinationDescriptor;
+
+        boolean readSource = (decoded.valueReads & InstructionDescriptor.READ_SOURCE) != 0,
+                sourceAddress = (decoded.valueReads & InstructionDescriptor.SOURCE_ADDRESS) != 0,
+                readDestination = (decoded.valueReads & InstructionDescriptor.READ_DESTINATION) != 0,
+                writeSource = group == ExecutionGroup.XCHG,
+                writeDestination = switch(group) {
+                    case MOV, XCHG, ADD, ADC, SUB, SBB, LOGIC -> true;
+                    default                                  -> false;
+                };
+
+        int sourceBIO = getBIOPosition(decoded, source),
+            destinationBIO = getBIOPosition(decoded, destination);
+
+        // Check everything before emitting anything
+        if((readSource || writeSource) && !canAccess(source, block, offset, sourceBIO)) return false;
+        if(sourceAddress && (source == null || !canAddress(block, offset, sourceBIO))) return false;
+        if((readDestination || writeDestination) && !canAccess(destination, block, offset, destinationBIO)) return false;
+
+        boolean sourceMemory = (readSource || writeSource) && isMemory(source),
+                destinationMemory = (readDestination || writeDestination) && isMemory(destination);
+
+        if(sourceMemory || destinationMemory) {
+            // faults roll back to this instruction
+            pushSim();
+            pushInt(index);
+            putField("blockIndex", "I");
+            pushSim();
+            pushInt(ip);
+            putField("previousIP", "I");
+        }
+
+        // Addresses and values, as decode finds them
+        if(sourceMemory || sourceAddress) {
+            generateAddress(source, block, offset, sourceBIO, decoded.hasOffset);
+            storeLocal(LOCAL_SOURCE_ADDRESS);
+        }
+
+        if(destinationMemory) {
+            generateAddress(destination, block, offset, destinationBIO, decoded.hasOffset);
+            storeLocal(LOCAL_DESTINATION_ADDRESS);
+        }
+
+        if(readSource) {
+            generateRead(source, LOCAL_SOURCE_ADDRESS);
+        } else if(sourceAddress) {
+            loadLocal(LOCAL_SOURCE_ADDRESS);
+        } else {
+            pushInt(decoded.sourceValue);
+        }
+
+        storeLocal(LOCAL_SOURCE);
+
+        if(readDestination) {
+            generateRead(destination, LOCAL_DESTINATION_ADDRESS);
+        } else {
+            pushInt(decoded.destinationValue);
+        }
+
+        storeLocal(LOCAL_DESTINATION);
+
+        // Execute
+        int size = (destination == null) ? 0 : destination.size.bytes;
+
+        switch(group) {
+            case MOV:
+                generateWrite(destination, LOCAL_SOURCE, LOCAL_DESTINATION_ADDRESS);
+                break;
+
+            case XCHG:
+                generateWrite(destination, LOCAL_SOURCE, LOCAL_DESTINATION_ADDRESS);
+                generateWrite(source, LOCAL_DESTINATION, LOCAL_SOURCE_ADDRESS);
+                break;
+
+            case ADD, ADC, SUB, SBB, CMP:
+                boolean subtract = group == ExecutionGroup.SUB || group == ExecutionGroup.SBB || group == ExecutionGroup.CMP,
+                        carry = group == ExecutionGroup.ADC || group == ExecutionGroup.SBB,
+                        compareZero = decoded.opcode == Opcode.CMP_RIM_0 || decoded.opcode == Opcode.CMPW_RIM_0;
+
+                // result = sim.add(destination, source, size, subtract, carry)
+                pushSim();
+                loadLocal(LOCAL_DESTINATION);
+
+                if(compareZero) {
+                    pushInt(0);
+                } else {
+                    loadLocal(LOCAL_SOURCE);
+                }
+
+                pushInt(size);
+                pushInt(subtract ? 1 : 0);
+                pushInt(carry ? 1 : 0);
+                this.code.writeByte(INVOKEVIRTUAL);
+                this.code.writeShort(methodConstant(SIM_CLASS, "add", "(IIIZZ)I"));
+                storeLocal(LOCAL_RESULT);
+
+                if(group != ExecutionGroup.CMP) {
+                    generateWrite(destination, LOCAL_RESULT, LOCAL_DESTINATION_ADDRESS);
+                }
+
+                // sim.reg_f = sim.aluFlags
+                pushSim();
+                pushSim();
+                getField("aluFlags", "I");
+                this.code.writeByte(I2S);
+                putField("reg_f", "S");
+                break;
+
+            case LOGIC, TST:
+                loadLocal(LOCAL_DESTINATION);
+
+                switch(decoded.opcode) {
+                    case AND_RIM, TST_RIM:
+                        loadLocal(LOCAL_SOURCE);
+                        this.code.writeByte(IAND);
+                        break;
+
+                    case OR_RIM:
+                        loadLocal(LOCAL_SOURCE);
+                        this.code.writeByte(IOR);
+                        break;
+
+                    case XOR_RIM:
+                        loadLocal(LOCAL_SOURCE);
+                        this.code.writeByte(IXOR);
+                        break;
+
+                    default: // NOT_RIM
+                        pushInt(-1);
+                        this.code.writeByte(IXOR);
+                }
+
+                storeLocal(LOCAL_RESULT);
+
+                if(group == ExecutionGroup.LOGIC) {
+                    generateWrite(destination, LOCAL_RESULT, LOCAL_DESTINATION_ADDRESS);
+                }
+
+                // sim.reg_f = sim.getLogicFlags(result, size, false)
+                pushSim();
+                pushSim();
+                loadLocal(LOCAL_RESULT);
+                pushInt(size);
+                pushInt(0);
+                this.code.writeByte(INVOKEVIRTUAL);
+                this.code.writeShort(methodConstant(SIM_CLASS, "getLogicFlags", "(IIZ)I"));
+                this.code.writeByte(I2S);
+                putField("reg_f", "S");
+                break;
+
+            case JMP:
+                pushSim();
+                loadLocal(LOCAL_SOURCE);
+                pushInt(next);
+                this.code.writeByte(IADD);
+                putField("reg_ip", "I");
+                break;
+
+            case JMPA:
+                pushSim();
+                loadLocal(LOCAL_SOURCE);
+                putField("reg_ip", "I");
+                break;
+
+            default: // JCC
+                int condition = (decoded.opcode == Opcode.JCC_I8 || decoded.opcode == Opcode.JCC_RIM) ? decoded.i8Byte : (decoded.opcode.op & 0x0F);
+
+                pushSim();
+                pushInt(condition);
+                this.code.writeByte(INVOKEVIRTUAL);
+                this.code.writeShort(methodConstant(SIM_CLASS, "conditionTrue", "(B)Z"));
+
+                int notTaken = this.code.size();
+                this.code.writeByte(IFEQ);
+                this.code.writeShort(0);
+
+                pushSim();
+                loadLocal(LOCAL_SOURCE);
+                pushInt(next);
+                this.code.writeByte(IADD);
+                putField("reg_ip", "I");
+
+                int taken = this.code.size();
+                this.code.writeByte(GOTO);
+                this.code.writeShort(0);
+
+                patchBranch(notTaken, this.code.size());
+                pushSim();
+                pushInt(next);
+                putField("reg_ip", "I");
+
+                patchBranch(taken, this.code.size());
+        }
+
+        if((writeDestination && destinationMemory) || (writeSource && sourceMemory)) {
+            // a store into the block's own code ends it
+            pushSim();
+            pushSim();
+            this.code.writeByte(GETFIELD);
+            this.code.writeShort(fieldConstant(SIM_CLASS, "currentBlock", "Lnotsotiny/sim/BasicBlock;"));
+            this.code.writeByte(INVOKEVIRTUAL);
+            this.code.writeShort(methodConstant(SIM_CLASS, "codeChanged", "(Lnotsotiny/sim/BasicBlock;)Z"));
+
+            int branch = this.code.size();
+            this.code.writeByte(IFEQ);
+            this.code.writeShort(0);
+
+            pushSim();
+            pushInt(next);
+            putField("reg_ip", "I");
+            pushInt(index + 1);
+            this.code.writeByte(IRETURN);
+
+            patchBranch(branch, this.code.size());
+        }
+
+        return true;
+    }
+
+    /**
+     * @param decoded
+     * @param operand
+     * @return Position of the BIO byte the operand's address is recomputed from, or 0 if its address is fixed
+     */
+    private static int getBIOPosition(InstructionDescriptor decoded, LocationDescriptor operand) {
+        // only one operand is recomputed, as in NotSoTinySimulator.loadDecode
+        if(decoded.sourceBIO != 0) {
+            return (operand == decoded.sourceOperand) ? decoded.sourceBIO : 0;
+        }
+
+        return (operand == decoded.destinationOperand) ? decoded.destinationBIO : 0;
+    }
+
+    /**
+     * @param operand
+     * @param block
+     * @param offset
+     * @param bioPosition
+     * @return true if the operand can be read & written by translated code
+     */
+    private static boolean canAccess(LocationDescriptor operand, BasicBlock block, int offset, int bioPosition) {
+        if(operand == null) return false;
+
+        return switch(operand.kind) {
+            case LocationDescriptor.KIND_NULL, LocationDescriptor.KIND_IMMEDIATE -> true;
+            case LocationDescriptor.KIND_REGISTER -> switch(operand.register) {
+                case A, B, C, D, I, J, K, L, AH, BH, CH, DH, AL, BL, CL, DL, DA, BC, JI, LK, XP, YP, BP, SP -> true;
+                default -> false;
+            };
+            default -> canAddress(block, offset, bioPosition);
+        };
+    }
+
+    /**
+     * @param block
+     * @param offset
+     * @param bioPosition
+     * @return true if the address can be computed by translated code
+     */
+    private static boolean canAddress(BasicBlock block, int offset, int bioPosition) {
+        if(bioPosition == 0) return true;
+
+        int bio = block.getCodeByte(offset + bioPosition) & 0xFF;
+
+        // IP + index forms depend on the instruction's length at the time of decode
+        return bio >= 0x40 || bio < 0x20 || (bio & 0x04) == 0;
+    }
+
+    private static boolean isMemory(LocationDescriptor operand) {
+        return operand.kind >= LocationDescriptor.KIND_MEMORY_BYTE;
+    }
+
+    /**
+     * Generates code pushing an operand's address
+     *
+     * @param operand
+     * @param block
+     * @param offset
+     * @param bioPosition
+     * @param hasOffset
+     * @throws IOException
+     */
+    private void generateAddress(LocationDescriptor operand, BasicBlock block, int offset, int bioPosition, boolean hasOffset) throws IOException {
+        if(bioPosition == 0) {
+            pushInt(operand.address);
+            return;
+        }
+
+        int bio = block.getCodeByte(offset + bioPosition) & 0xFF,
+            offsetSize;
+
+        if(bio < 0x40) {
+            // base + offset. odd bases are IP, which doesn't change
+            if(((bio >> 2) & 0x01) != 0) {
+                pushInt(operand.address);
+                return;
+            }
+
+            generateReadRegister(BIO_BASES[bio >> 3]);
+            offsetSize = (bio & 0x03) + 1;
+        } else {
+            // base + scale * index + offset
+            int base = (bio >> 3) & 0x07,
+                scale = (bio >> 6) - 1;
+
+            pushSim();
+            getField(REGISTERS_16[bio & 0x07], "S");
+            pushInt(0xFFFF);
+            this.code.writeByte(IAND);
+
+            if(scale != 0) {
+                pushInt(scale);
+                this.code.writeByte(ISHL);
+            }
+
+            if(base != 7) {
+                generateReadRegister(BIO_BASES[base]);
+                this.code.writeByte(IADD);
+            }
+
+            offsetSize = 4;
+        }
+
+        if(hasOffset) {
+            int value = 0;
+
+            for(int i = offsetSize - 1; i >= 0; i--) {
+                value = (value << 8) | (block.getCodeByte(offset + bioPosition + 1 + i) & 0xFF);
+            }
+
+            // sign extend
+            value = (value << (32 - 8 * offsetSize)) >> (32 - 8 * offsetSize);
+
+            pushInt(value);
+            this.code.writeByte(IADD);
+        }
+    }
+
+    /**
+     * Generates code pushing an operand's value, as NotSoTinySimulator.readLocation
+     *
+     * @param operand
+     * @param addressLocal Local holding the address of memory operands
+     * @throws IOException
+     */
+    private void generateRead(LocationDescriptor operand, int addressLocal) throws IOException {
+        switch(operand.kind) {
+            case LocationDescriptor.KIND_NULL:
+                pushInt(0);
+                break;
+
+            case LocationDescriptor.KIND_IMMEDIATE:
+                pushInt(operand.address);
+                break;
+
+            case LocationDescriptor.KIND_REGISTER:
+                generateReadRegister(operand.register);
+                break;
+
+            default:
+                String name, desc;
+
+                switch(operand.kind) {
+                    case LocationDescriptor.KIND_MEMORY_BYTE:   name = "readByte"; desc = "(JZ)B"; break;
+                    case LocationDescriptor.KIND_MEMORY_WORD:   name = "read2Bytes"; desc = "(JZ)S"; break;
+                    default:                                    name = "read4Bytes"; desc = "(JZ)I";
+                }
+
+                // sim.memory.readX(address, sim.pf_pv)
+                pushSim();
+                getField("memory", MEMORY_DESC);
+                loadLocal(addressLocal);
+                this.code.writeByte(I2L);
+                pushSim();
+                getField("pf_pv", "Z");
+                this.code.writeByte(INVOKEVIRTUAL);
+                this.code.writeShort(methodConstant(MEMORY_CLASS, name, desc));
+        }
+    }
+
+    /**
+     * Generates code writing a local to an operand, as NotSoTinySimulator.writeLocation
+     *
+     * @param operand
+     * @param valueLocal
+     * @param addressLocal Local holding the address of memory operands
+     * @throws IOException
+     */
+    private void generateWrite(LocationDescriptor operand, int valueLocal, int addressLocal) throws IOException {
+        switch(operand.kind) {
+            case LocationDescriptor.KIND_NULL, LocationDescriptor.KIND_IMMEDIATE:
+                break;
+
+            case LocationDescriptor.KIND_REGISTER:
+                generateWriteRegister(operand.register, valueLocal);
+                break;
+
+            default:
+                String name, desc;
+                int narrow;
+
+                switch(operand.kind) {
+                    case LocationDescriptor.KIND_MEMORY_BYTE:   name = "writeByte"; desc = "(JBZ)V"; narrow = I2B; break;
+                    case LocationDescriptor.KIND_MEMORY_WORD:   name = "write2Bytes"; desc = "(JSZ)V"; narrow = I2S; break;
+                    default:                                    name = "write4Bytes"; desc = "(JIZ)V"; narrow = 0;
+                }
+
+                // sim.memory.writeX(address, value, sim.pf_pv)
+                pushSim();
+                getField("memory", MEMORY_DESC);
+                loadLocal(addressLocal);
+                this.code.writeByte(I2L);
+                loadLocal(valueLocal);
+                if(narrow != 0) this.code.writeByte(narrow);
+                pushSim();
+                getField("pf_pv", "Z");
+                this.code.writeByte(INVOKEVIRTUAL);
+                this.code.writeShort(methodConstant(MEMORY_CLASS, name, desc));
+        }
+    }
+
+    /**
+     * Generates code pushing a register's value, sign extended as readLocation does
+     *
+     * @param register
+     * @throws IOException
+     */
+    private void generateReadRegister(Register register) throws IOException {
+        switch(register) {
+            case A, B, C, D, I, J, K, L:
+                pushSim();
+                getField(REGISTERS_16[register16(register)], "S");
+                break;
+
+            case AH, BH, CH, DH:
+                pushSim();
+                getField(REGISTERS_16[register16(register)], "S");
+                pushInt(8);
+                this.code.writeByte(ISHR);
+                this.code.writeByte(I2B);
+                break;
+
+            case AL, BL, CL, DL:
+                pushSim();
+                getField(REGISTERS_16[register16(register)], "S");
+                this.code.writeByte(I2B);
+                break;
+
+            case DA, BC, JI, LK:
+                // (high << 16) | (low & 0xFFFF)
+                int pair = register32(register);
+
+                pushSim();
+                getField(REGISTERS_16[pair >> 4], "S");
+                pushInt(16);
+                this.code.writeByte(ISHL);
+                pushSim();
+                getField(REGISTERS_16[pair & 0x0F], "S");
+                pushInt(0xFFFF);
+                this.code.writeByte(IAND);
+                this.code.writeByte(IOR);
+                break;
+
+            default: // XP, YP, BP, SP
+                pushSim();
+                getField(POINTERS[register.ordinal() - Register.XP.ordinal()], "I");
+        }
+    }
+
+    /**
+     * Generates code writing a local to a register, truncating as writeLocation does
+     *
+     * @param register
+     * @param valueLocal
+     * @throws IOException
+     */
+    private void generateWriteRegister(Register register, int valueLocal) throws IOException {
+        switch(register) {
+            case A, B, C, D, I, J, K, L:
+                pushSim();
+                loadLocal(valueLocal);
+                this.code.writeByte(I2S);
+                putField(REGISTERS_16[register16(register)], "S");
+                break;
+
+            case AH, BH, CH, DH:
+                // reg = (value << 8) | (reg & 0xFF)
+                String high = REGISTERS_16[register16(register)];
+
+                pushSim();
+                loadLocal(valueLocal);
+                pushInt(8);
+                this.code.writeByte(ISHL);
+                pushSim();
+                getField(high, "S");
+                pushInt(0xFF);
+                this.code.writeByte(IAND);
+                this.code.writeByte(IOR);
+                this.code.writeByte(I2S);
+                putField(high, "S");
+                break;
+
+            case AL, BL, CL, DL:
+                // reg = (reg & 0xFF00) | (value & 0xFF)
+                String low = REGISTERS_16[register16(register)];
+
+                pushSim();
+                pushSim();
+                getField(low, "S");
+                pushInt(0xFF00);
+                this.code.writeByte(IAND);
+                loadLocal(valueLocal);
+                pushInt(0xFF);
+                this.code.writeByte(IAND);
+                this.code.writeByte(IOR);
+                this.code.writeByte(I2S);
+                putField(low, "S");
+                break;
+
+            case DA, BC, JI, LK:
+                int pair = register32(register);
+
+                pushSim();
+                loadLocal(valueLocal);
+                pushInt(16);
+                this.code.writeByte(ISHR);
+                this.code.writeByte(I2S);
+                putField(REGISTERS_16[pair >> 4], "S");
+                pushSim();
+                loadLocal(valueLocal);
+                this.code.writeByte(I2S);
+                putField(REGISTERS_16[pair & 0x0F], "S");
+                break;
+
+            default: // XP, YP, BP, SP
+                pushSim();
+                loadLocal(valueLocal);
+                putField(POINTERS[register.ordinal() - Register.XP.ordinal()], "I");
+        }
+    }
+
+    /**
+     * @param register 8 or 16 bit register
+     * @return Index in REGISTERS_16 of the register holding it
+     */
+    private static int register16(Register register) {
+        return switch(register) {
+            case A, AH, AL  -> 0;
+            case B, BH, BL  -> 1;
+            case C, CH, CL  -> 2;
+            case D, DH, DL  -> 3;
+            case I          -> 4;
+            case J          -> 5;
+            case K          -> 6;
+            default         -> 7;   // L
+        };
+    }
+
+    /**
+     * @param register Register pair
+     * @return Indices in REGISTERS_16 of the high (upper nybble) and low (lower nybble) halves
+     */
+    private static int register32(Register register) {
+        return switch(register) {
+            case DA -> 0x30;
+            case BC -> 0x12;
+            case JI -> 0x54;
+            default -> 0x76;    // LK
+        };
+    }
+
+    /**
+     * Generates a call to the simulator's add for a register and immediate, storing the result and flags
+     *
+     * @param field
+     * @param desc
+     * @param size
+     * @param immediate
+     * @param subtract
+     * @throws IOException
+     */
+    private void generateAdd(String field, String desc, int size, int immediate, boolean subtract) throws IOException {
+        // sim.reg = sim.add(sim.reg, imm, size, subtract, false)
+        pushSim();
+        pushSim();
+        pushSim();
+        getField(field, desc);
+        pushInt(immediate);
+        pushInt(size);
+        pushInt(subtract ? 1 : 0);
+        pushInt(0);
+        this.code.writeByte(INVOKEVIRTUAL);
+        this.code.writeShort(methodConstant(SIM_CLASS, "add", "(IIIZZ)I"));
+        if(desc.equals("S")) this.code.writeByte(I2S);
+        putField(field, desc);
+
+        // sim.reg_f = sim.aluFlags
+        pushSim();
+        pushSim();
+        getField("aluFlags", "I");
+        this.code.writeByte(I2S);
+        putField("reg_f", "S");
+    }
+
+    /*
+     * Code emission
+     */
+
+    private void startCode() {
+        this.codeBytes = new ByteArrayOutputStream();
+        this.code = new DataOutputStream(this.codeBytes);
+        this.branchTargets = new ArrayList<>();
+    }
+
+    private void pushSim() throws IOException {
+        this.code.writeByte(ALOAD_1);
+    }
+
+    private void pushInt(int v) throws IOException {
+        if(v >= -1 && v <= 5) {
+            this.code.writeByte(ICONST_0 + v);
+        } else if(v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+            this.code.writeByte(BIPUSH);
+            this.code.writeByte(v);
+        } else if(v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+            this.code.writeByte(SIPUSH);
+            this.code.writeShort(v);
+        } else {
+            this.code.writeByte(LDC_W);
+            this.code.writeShort(intConstant(v));
+        }
+    }
+
+    private void loadLocal(int index) throws IOException {
+        this.code.writeByte(ILOAD);
+        this.code.writeByte(index);
+    }
+
+    private void storeLocal(int index) throws IOException {
+        this.code.writeByte(ISTORE);
+        this.code.writeByte(index);
+    }
+
+    private void getField(String name, String desc) throws IOException {
+        this.code.writeByte(GETFIELD);
+        this.code.writeShort(fieldConstant(SIM_CLASS, name, desc));
+    }
+
+    private void putField(String name, String desc) throws IOException {
+        this.code.writeByte(PUTFIELD);
+        this.code.writeShort(fieldConstant(SIM_CLASS, name, desc));
+    }
+
+    /**
+     * Points the branch at the given position to a target
+     *
+     * @param branch
+     * @param target
+     */
+    private void patchBranch(int branch, int target) {
+        // DataOutputStream has no way to seek, so patch the finished bytes later
+        this.branchTargets.add(branch);
+        this.branchTargets.add(target);
+    }
+
+    /**
+     * Builds a method_info from the current code
+     *
+     * @param access
+     * @param name
+     * @param desc
+     * @param maxStack
+     * @param maxLocals
+     * @return method_info bytes
+     * @throws IOException
+     */
+    private byte[] finishMethod(int access, String name, String desc, int maxStack, int maxLocals) throws IOException {
+        byte[] codeArray = this.codeBytes.toByteArray();
+        List<Integer> targets = new ArrayList<>();
+
+        for(int i = 0; i < this.branchTargets.size(); i += 2) {
+            int branch = this.branchTargets.get(i),
+                target = this.branchTargets.get(i + 1),
+                delta = target - branch;
+
+            codeArray[branch + 1] = (byte)(delta >> 8);
+            codeArray[branch + 2] = (byte) delta;
+
+            if(!targets.contains(target)) targets.add(target);
+        }
+
+        targets.sort(null);
+
+        // Every branch target has the same locals as the start of the method, so only same_frames are needed
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(frameBytes);
+        int previous = -1;
+
+        for(int target : targets) {
+            int delta = target - previous - 1;
+
+            if(delta < 64) {
+                frames.writeByte(delta);
+            } else {
+                frames.writeByte(251);
+                frames.writeShort(delta);
+            }
+
+            previous = target;
+        }
+
+        ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(methodBytes);
+
+        out.writeShort(access);
+        out.writeShort(utf8Constant(name));
+        out.writeShort(utf8Constant(desc));
+        out.writeShort(1);
+
+        // Code attribute
+        int codeAttrLength = 2 + 2 + 4 + codeArray.length + 2 + 2;
+        if(!targets.isEmpty()) codeAttrLength += 2 + 4 + 2 + frameBytes.size();
+
+        out.writeShort(utf8Constant("Code"));
+        out.writeInt(codeAttrLength);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(codeArray.length);
+        out.write(codeArray);
+        out.writeShort(0);  // exception table
+
+        if(targets.isEmpty()) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(1);
+            out.writeShort(utf8Constant("StackMapTable"));
+            out.writeInt(2 + frameBytes.size());
+            out.writeShort(targets.size());
+            out.write(frameBytes.toByteArray());
+        }
+
+        return methodBytes.toByteArray();
+    }
+
+    /*
+     * Constant pool
+     */
+
+    private int utf8Constant(String s) throws IOException {
+        Integer index = this.poolIndices.get("U" + s);
+        if(index != null) return index;
+
+        this.pool.writeByte(1);
+        this.pool.writeUTF(s);
+        return addConstant("U" + s);
+    }
+
+    private int intConstant(int v) throws IOException {
+        Integer index = this.poolIndices.get("I" + v);
+        if(index != null) return index;
+
+        this.pool.writeByte(3);
+        this.pool.writeInt(v);
+        return addConstant("I" + v);
+    }
+
+    private int classConstant(String name) throws IOException {
+        Integer index = this.poolIndices.get("C" + name);
+        if(index != null) return index;
+
+        int nameIndex = utf8Constant(name);
+        this.pool.writeByte(7);
+        this.pool.writeShort(nameIndex);
+        return addConstant("C" + name);
+    }
+
+    private int nameAndTypeConstant(String name, String desc) throws IOException {
+        String key = "N" + name + ":" + desc;
+        Integer index = this.poolIndices.get(key);
+        if(index != null) return index;
+
+        int nameIndex = utf8Constant(name),
+            descIndex = utf8Constant(desc);
+        this.pool.writeByte(12);
+        this.pool.writeShort(nameIndex);
+        this.pool.writeShort(descIndex);
+        return addConstant(key);
+    }
+
+    private int fieldConstant(String owner, String name, String desc) throws IOException {
+        return memberConstant(9, owner, name, desc);
+    }
+
+    private int methodConstant(String owner, String name, String desc) throws IOException {
+        return memberConstant(10, owner, name, desc);
+    }
+
+    private int memberConstant(int tag, String owner, String name, String desc) throws IOException {
+        String key = tag + owner + "." + name + ":" + desc;
+        Integer index = this.poolIndices.get(key);
+        if(index != null) return index;
+
+        int classIndex = classConstant(owner),
+            natIndex = nameAndTypeConstant(name, desc);
+        this.pool.writeByte(tag);
+        this.pool.writeShort(classIndex);
+        this.pool.writeShort(natIndex);
+        return addConstant(key);
+    }
+
+    private int addConstant(String key) {
+        int index = this.poolCount++;
+        this.poolIndices.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,333 @@
+package notsotiny.sim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import notsotiny.sim.memory.MemoryController;
+
+/**
+ * Records the external inputs of a run so it can be repeated exactly.
+ *
+ * Two kinds of event are journaled. External interrupts are recorded with the instruction count they were taken at,
+ * and replayed at the same count, with live interrupts ignored. Reads from nondeterministic devices (keyboard buffer,
+ * random numbers, console input, pending interrupt requests) go through a wrapper from wrap(), and are replayed in
+ * order without touching the device. Side effects of device reads aren't replayed, nor are safe point tasks that change
+ * processor state. Reads by debugging tools aren't part of the run, so they go through runUnjournaled() and reach the
+ * devices directly.
+ *
+ * Once every event has been replayed the run continues live.
+ *
+ * Journal format: magic, version, then the interrupts as (instruction count delta, vector) and the reads as (device,
+ * address, value), each list preceded by its length. Counts, deltas and addresses are variable length.
+ *
+ * @author Mechafinch
+ */
+public class EventJournal {
+
+    private static final int MAGIC = 0x4E53_544A;   // NSTJ
+    private static final byte VERSION = 1;
+
+    /**
+     * Whether the journal is being written or read
+     */
+    public enum Mode {
+        RECORD,
+        REPLAY
+    }
+
+    private Mode mode;
+
+    private int deviceCount;
+
+    private boolean unjournaled;    // reads go straight to the devices. Thread running the simulator
+
+    // record
+    private ByteArrayOutputStream interruptBytes,
+                                  readBytes;
+    private long interruptEvents,
+                 readEvents,
+                 lastInterruptCount;
+
+    // replay
+    private DataInputStream interruptIn,
+                            readIn;
+    private long interruptsLeft,
+                 readsLeft,
+                 nextInterruptCount;
+    private byte nextInterruptVector;
+
+    /**
+     * Create an empty journal to record into
+     */
+    public EventJournal() {
+        this.mode = Mode.RECORD;
+        this.deviceCount = 0;
+        this.interruptBytes = new ByteArrayOutputStream();
+        this.readBytes = new ByteArrayOutputStream();
+        this.interruptEvents = 0;
+        this.readEvents = 0;
+        this.lastInterruptCount = 0;
+        this.nextInterruptCount = Long.MAX_VALUE;
+        this.unjournaled = false;
+    }
+
+    /**
+     * Reads a journal to replay
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static EventJournal load(Path file) throws IOException {
+        EventJournal journal = new EventJournal();
+        journal.mode = Mode.REPLAY;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " event journal: " + file);
+            }
+
+            // split the sections so they can be read independently
+            long interrupts = readVarLong(in);
+            journal.interruptBytes.write(in.readNBytes((int) readVarLong(in)));
+            long reads = readVarLong(in);
+            journal.readBytes.write(in.readNBytes((int) readVarLong(in)));
+
+            journal.interruptsLeft = interrupts;
+            journal.readsLeft = reads;
+        }
+
+        journal.interruptIn = new DataInputStream(new ByteArrayInputStream(journal.interruptBytes.toByteArray()));
+        journal.readIn = new DataInputStream(new ByteArrayInputStream(journal.readBytes.toByteArray()));
+        journal.nextInterruptCount = 0;
+        journal.advanceInterrupt();
+
+        return journal;
+    }
+
+    /**
+     * Writes a recorded journal. Any thread.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void save(Path file) throws IOException {
+        if(this.mode != Mode.RECORD) {
+            throw new IllegalStateException("Only recorded journals can be saved");
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+
+            writeVarLong(out, this.interruptEvents);
+            writeVarLong(out, this.interruptBytes.size());
+            this.interruptBytes.writeTo(out);
+
+            writeVarLong(out, this.readEvents);
+            writeVarLong(out, this.readBytes.size());
+            this.readBytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Wraps a nondeterministic device so its reads are journaled. Devices must be wrapped in the same order when
+     * recording and replaying.
+     *
+     * @param device
+     * @return
+     */
+    public MemoryController wrap(MemoryController device) {
+        int id = this.deviceCount++;
+
+        return new MemoryController() {
+            @Override
+            public byte readByte(long address) {
+                return read(device, id, address);
+            }
+
+            @Override
+            public void writeByte(long address, byte value) {
+                device.writeByte(address, value);
+            }
+
+            @Override
+            public boolean readRequiresPrivilege() {
+                return device.readRequiresPrivilege();
+            }
+
+            @Override
+            public boolean writeRequiresPrivilege() {
+                return device.writeRequiresPrivilege();
+            }
+        };
+    }
+
+    /**
+     * Runs a task whose device reads aren't part of the run, such as a debugger's. Its reads go straight to the devices,
+     * and are neither journaled nor taken from the journal. Thread running the simulator.
+     *
+     * @param task
+     */
+    public void runUnjournaled(Runnable task) {
+        boolean previous = this.unjournaled;
+        this.unjournaled = true;
+
+        try {
+            task.run();
+        } finally {
+            this.unjournaled = previous;
+        }
+    }
+
+    /**
+     * Journals or replays a device read
+     *
+     * @param device
+     * @param id
+     * @param address
+     * @return
+     */
+    private byte read(MemoryController device, int id, long address) {
+        if(this.unjournaled) {
+            return device.readByte(address);
+        } else if(this.mode == Mode.RECORD) {
+            byte value = device.readByte(address);
+
+            synchronized(this) {
+                this.readBytes.write(id);
+                writeVarLong(this.readBytes, address);
+                this.readBytes.write(value);
+                this.readEvents++;
+            }
+
+            return value;
+        } else if(this.readsLeft == 0) {
+            return device.readByte(address);
+        }
+
+        try {
+            int recordedID = this.readIn.readUnsignedByte();
+            long recordedAddress = readVarLong(this.readIn);
+            byte value = this.readIn.readByte();
+            this.readsLeft--;
+
+            if(recordedID != id || recordedAddress != address) {
+                throw new IllegalStateException(String.format("Replay diverged: read device %d address %X, journal has device %d address %X", id, address, recordedID, recordedAddress));
+            }
+
+            return value;
+        } catch(IOException e) {
+            throw new IllegalStateException("Truncated journal", e);
+        }
+    }
+
+    /**
+     * Journals an external interrupt taken by the simulator. Thread running the simulator.
+     *
+     * @param instructionCount
+     * @param vector
+     */
+    synchronized void recordInterrupt(long instructionCount, byte vector) {
+        writeVarLong(this.interruptBytes, instructionCount - this.lastInterruptCount);
+        this.interruptBytes.write(vector);
+        this.lastInterruptCount = instructionCount;
+        this.interruptEvents++;
+    }
+
+    /**
+     * @return Instruction count the next replayed interrupt is taken at, or Long.MAX_VALUE if none are left
+     */
+    long getNextInterruptCount() {
+        return this.nextInterruptCount;
+    }
+
+    /**
+     * Takes the next replayed interrupt
+     *
+     * @return Its vector
+     */
+    byte takeInterrupt() {
+        byte vector = this.nextInterruptVector;
+        advanceInterrupt();
+        return vector;
+    }
+
+    /**
+     * Reads the next interrupt event, if any
+     */
+    private void advanceInterrupt() {
+        if(this.interruptsLeft == 0) {
+            this.nextInterruptCount = Long.MAX_VALUE;
+            return;
+        }
+
+        try {
+            this.nextInterruptCount += readVarLong(this.interruptIn);
+            this.nextInterruptVector = this.interruptIn.readByte();
+            this.interruptsLeft--;
+        } catch(IOException e) {
+            throw new IllegalStateException("Truncated journal", e);
+        }
+    }
+
+    /**
+     * @return true if replaying and events remain. Live interrupts are ignored until the journal runs out.
+     */
+    public boolean isReplaying() {
+        return this.mode == Mode.REPLAY && (this.nextInterruptCount != Long.MAX_VALUE || this.readsLeft != 0);
+    }
+
+    public Mode getMode() { return this.mode; }
+    public synchronized long getInterruptEvents() { return this.interruptEvents; }
+    public synchronized long getReadEvents() { return this.readEvents; }
+
+    /**
+     * Writes an unsigned LEB128 number
+     */
+    private static void writeVarLong(OutputStream out, long value) {
+        try {
+            while((value & ~0x7Fl) != 0) {
+                out.write((int)(value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            out.write((int) value);
+        } catch(IOException e) {
+            throw new IllegalStateException(e); // in-memory streams don't throw
+        }
+    }
+
+    /**
+     * Reads an unsigned LEB128 number
+     */
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+
+            if(b < 0) {
+                throw new EOFException();
+            }
+
+            value |= (long)(b & 0x7F) << shift;
+
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length number");
+    }
+}
@@ -0,0 +1,320 @@
+package notsotiny.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.sound.midi.MidiUnavailableException;
+
+import asmlib.util.relocation.ExecLoader;
+import asmlib.util.relocation.Relocator;
+import notsotiny.sim.MachineConfig.DeviceType;
+import notsotiny.sim.MachineConfig.SegmentConfig;
+import notsotiny.sim.memory.InterruptController;
+import notsotiny.sim.memory.TimerController.TimeBase;
+
+/**
+ * Runs a program without the UI, for batch and benchmark use.
+ * Builds the standard machine or one from a configuration file, with placeholder memory in place of sound.
+ *
+ * @author Mechafinch
+ */
+public class HeadlessRunner {
+
+    private static Logger LOG = Logger.getLogger(HeadlessRunner.class.getName());
+
+    private static final long CONSOLE_START = 0x8003_0000;
+
+    private static final int CONSOLE_SIZE = 0x0000_0008;
+
+    private static final int SLICE = 10_000;   // instructions between budget checks
+
+    /**
+     * Main for running standalone
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            printUsage();
+        }
+
+        // parse flags
+        int flagIndex = 0;
+
+        long maxInstructions = Long.MAX_VALUE,
+             maxNanos = Long.MAX_VALUE;
+        double frequency = 0;
+        String diskDirectory = null,
+               configFile = null,
+               recordFile = null,
+               replayFile = null;
+        TimeBase timerBase = null;
+        boolean console = false,
+                useStep = false,
+                useTiming = false;
+
+        out:
+        while(true) {
+            // flags without a file
+            if(flagIndex >= args.length) {
+                printUsage();
+            }
+
+            try {
+                switch(args[flagIndex]) {
+                    case "-i":
+                        maxInstructions = Long.parseLong(flagValue(args, flagIndex));
+                        flagIndex += 2;
+
+                        LOG.fine("Instruction budget set to " + maxInstructions);
+                        break;
+
+                    case "-t":
+                        maxNanos = (long)(Double.parseDouble(flagValue(args, flagIndex)) * 1_000_000_000);
+                        flagIndex += 2;
+
+                        LOG.fine("Time budget set to " + args[flagIndex - 1] + "s");
+                        break;
+
+                    case "-f":
+                        frequency = Double.parseDouble(flagValue(args, flagIndex));
+                        flagIndex += 2;
+
+                        LOG.fine("Frequency set to " + frequency + "Hz");
+                        break;
+
+                    case "-d":
+                        diskDirectory = flagValue(args, flagIndex);
+                        flagIndex += 2;
+
+                        LOG.fine("Disk directory set to " + diskDirectory);
+                        break;
+
+                    case "-m":
+                        configFile = flagValue(args, flagIndex);
+                        flagIndex += 2;
+
+                        LOG.fine("Machine configuration set to " + configFile);
+                        break;
+
+                    case "-p":
+                        timerBase = TimeBase.valueOf(flagValue(args, flagIndex).toUpperCase());
+                        flagIndex += 2;
+
+                        LOG.fine("Timer base set to " + timerBase);
+                        break;
+
+                    case "-r":
+                        recordFile = flagValue(args, flagIndex);
+                        flagIndex += 2;
+
+                        LOG.fine("Recording to " + recordFile);
+                        break;
+
+                    case "-R":
+                        replayFile = flagValue(args, flagIndex);
+                        flagIndex += 2;
+
+                        LOG.fine("Replaying from " + replayFile);
+                        break;
+
+                    case "-c":
+                        console = true;
+                        flagIndex += 1;
+
+                        LOG.fine("Console mapped");
+                        break;
+
+                    case "--step":
+                        useStep = true;
+                        flagIndex += 1;
+                        break;
+
+                    case "--timing":
+                        useTiming = true;
+                        flagIndex += 1;
+                        break;
+
+                    default:
+                        break out;
+                }
+            } catch(IllegalArgumentException e) {
+                // bad number or timer base
+                System.err.println("Invalid value for " + args[flagIndex] + ": " + args[flagIndex + 1]);
+                printUsage();
+            }
+        }
+
+        if(recordFile != null && replayFile != null) {
+            System.err.println("Can't record and replay at once");
+            printUsage();
+        }
+
+        String inputFileName = args[flagIndex];
+
+        // set up
+        MachineConfig config = (configFile == null) ? MachineConfig.standard(true, useTiming) : MachineConfig.load(Paths.get(configFile));
+        config.replaceType(DeviceType.SOUND, DeviceType.FLAT);
+        config.setTiming(config.isTiming() || useTiming);
+
+        // the standard machine's timers count instructions unless asked, for reproducible runs
+        if(timerBase != null) {
+            config.setTimerBase(timerBase);
+        } else if(configFile == null) {
+            config.setTimerBase(TimeBase.INSTRUCTIONS);
+        }
+
+        if(diskDirectory != null) {
+            config.setDiskDirectory(diskDirectory);
+        }
+
+        if(console) {
+            config.addSegment(new SegmentConfig("console", DeviceType.CONSOLE, CONSOLE_START, CONSOLE_SIZE));
+        }
+
+        EventJournal journal = (replayFile != null) ? EventJournal.load(Paths.get(replayFile)) : (recordFile != null) ? new EventJournal() : null;
+        Machine machine;
+        boolean[] resetRequested = { false };
+
+        try {
+            machine = new Machine(config, journal);
+        } catch(MidiUnavailableException e) {
+            throw new IllegalStateException(e); // sound was replaced
+        }
+
+        machine.setResetHook(() -> resetRequested[0] = true);
+
+        // load
+        List<Object> relocatorPair = ExecLoader.loadExecFileToRelocator(new File(inputFileName));
+
+        Relocator relocator = (Relocator) relocatorPair.get(0);
+        String entrySymbol = (String) relocatorPair.get(1);
+
+        long entry = machine.load(relocator, entrySymbol);
+        NotSoTinySimulator sim = machine.getSimulator();
+        LOG.fine(String.format("Entry symbol %s relocated to %08X", entrySymbol, entry));
+
+        // run
+        Throttle throttle = (frequency > 0) ? new Throttle(frequency) : null;
+        long instructions = 0,
+             startTime = System.nanoTime(),
+             elapsed = 0;
+
+        while(!resetRequested[0] && instructions < maxInstructions && elapsed < maxNanos) {
+            if(sim.getHalted()) {
+                long deadline = getWakeDeadline(sim);
+
+                if(deadline == Long.MAX_VALUE) {
+                    break;
+                }
+
+                // a halt with interrupts enabled waits for host timers
+                sim.idle(Math.min(deadline, (maxNanos > Long.MAX_VALUE - startTime) ? Long.MAX_VALUE : startTime + maxNanos));
+                elapsed = System.nanoTime() - startTime;
+                continue;
+            }
+
+            int slice = (int) Math.min(SLICE, maxInstructions - instructions);
+            long before = sim.getInstructionCount();
+
+            if(useStep) {
+                // an instruction at a time, skipping halts to simulated deadlines as run() does
+                sim.runUntil(slice, s -> false);
+            } else if(throttle == null) {
+                sim.run(slice);
+            } else {
+                try {
+                    throttle.run(sim, slice);
+                } catch(InterruptedException e) {
+                    break;
+                }
+            }
+
+            instructions += sim.getInstructionCount() - before;
+            elapsed = System.nanoTime() - startTime;
+        }
+
+        elapsed = System.nanoTime() - startTime;
+
+        // report
+        String reason = sim.getHalted() ? "halted" : resetRequested[0] ? "reset requested" : instructions >= maxInstructions ? "instruction budget" : "time budget";
+        double seconds = elapsed / 1_000_000_000.0;
+
+        System.out.flush();
+        System.err.printf("Stopped: %s at %08X%n", reason, sim.getRegIP());
+        System.err.printf("Instructions: %,d%n", instructions);
+        System.err.printf("Wall time: %,.3fs%n", seconds);
+        System.err.printf("MIPS: %,.2f%n", (elapsed == 0) ? 0.0 : instructions * 1000.0 / elapsed);
+
+        if(config.isTiming()) {
+            System.err.printf("Cycles: %,d%n", sim.getCycles());
+        }
+
+        if(recordFile != null) {
+            journal.save(Paths.get(recordFile));
+            System.err.printf("Journal: %,d interrupts, %,d reads recorded%n", journal.getInterruptEvents(), journal.getReadEvents());
+        } else if(replayFile != null) {
+            System.err.printf("Journal: %s%n", journal.isReplaying() ? "stopped before the end" : "fully replayed");
+        }
+
+        if(throttle != null) {
+            System.err.printf("Frequency: %,.0fHz achieved, %,.0fHz target, %,.3fs dropped%n", throttle.getAchievedHz(), throttle.getTargetHz(), throttle.getDroppedNanos() / 1_000_000_000.0);
+        }
+
+        System.exit(sim.getHalted() ? 0 : 1);
+    }
+
+    /**
+     * @param sim Halted simulator
+     * @return System.nanoTime() at which a host time interrupt source can wake the simulator, or Long.MAX_VALUE if
+     * nothing will
+     */
+    private static long getWakeDeadline(NotSoTinySimulator sim) {
+        InterruptController pic = sim.getInterruptController();
+
+        if(pic == null || (sim.getRegPF() & 0x01) == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        return pic.getHostDeadline();
+    }
+
+    /**
+     * Prints the usage and exits with code 2
+     */
+    private static void printUsage() {
+        System.out.println("Usage: HeadlessRunner [flags] <exec file>");
+        System.out.println("Flags:");
+        System.out.println("\t-i [count]    \tInstructions: Stop after this many instructions");
+        System.out.println("\t-t [seconds]  \tTime: Stop after this much wall time");
+        System.out.println("\t-f [hz]       \tFrequency: Run at this many instructions per second, not with --step");
+        System.out.println("\t-m [file]     \tMachine: Machine configuration properties (default: standard machine)");
+        System.out.println("\t-d [directory]\tDisk: Directory for the disk buffer (default: from configuration)");
+        System.out.println("\t-p [base]     \tTimer: What interval timers count: instructions, cycles, or host (default: from the configuration, or instructions for the standard machine)");
+        System.out.println("\t-r [file]     \tRecord: Journal external events to this file");
+        System.out.println("\t-R [file]     \tReplay: Replay external events from this journal");
+        System.out.println("\t-c            \tConsole: Map stdin/stdout as a CharacterIOMC at 80030000");
+        System.out.println("\t--step        \tStep: Run an instruction at a time rather than by blocks");
+        System.out.println("\t--timing      \tTiming: Count cycles with the default timing model");
+        System.out.println("Stops when the processor halts. Statistics are written to stderr.");
+        System.out.println("Exit code 0 if halted, 1 if a budget ran out, 2 for invalid arguments.");
+        System.exit(2);
+    }
+
+    /**
+     * @param args
+     * @param flagIndex Index of a flag taking a value
+     * @return The flag's value. Prints the usage if it's missing.
+     */
+    private static String flagValue(String[] args, int flagIndex) {
+        if(flagIndex + 1 >= args.length) {
+            printUsage();
+        }
+
+        return args[flagIndex + 1];
+    }
+}
@@ -0,0 +1,300 @@
+package notsotiny.sim;
+
+import notsotiny.sim.memory.MemoryWriteListener;
+import notsotiny.sim.ops.Opcode;
+
+/**
+ * Direct-mapped cache of fetched instructions, keyed by IP.
+ * Holds the fetch window, opcode, and (once decoded) decoded form of each instruction so that repeatedly executed code
+ * doesn't go through the memory manager or the decoder. Decoded forms hold what depends only on the instruction's
+ * bytes: operand shapes, size, and immediates. Entries are invalidated when a write hits the memory they were fetched
+ * from.
+ *
+ * Code copied out of the cache (basic blocks) is checked against per-page generations, so a write to code only
+ * invalidates copies of the pages it touches.
+ *
+ * @author Mechafinch
+ */
+public class InstructionCache implements MemoryWriteListener {
+
+    public static final int FETCH_SIZE = 8;
+
+    private static final int ENTRY_COUNT = 4096,
+                             ENTRY_MASK = ENTRY_COUNT - 1,
+                             LINE_SHIFT = 6,        // code is tracked in 64 byte lines
+                             REGION_SHIFT = 16,     // lines are tracked in 64k regions
+                             REGION_WORDS = (1 << (REGION_SHIFT - LINE_SHIFT)) >> 6,
+                             PAGE_SHIFT = 12,       // copied code is tracked in 4k pages
+                             PAGE_TABLE_SHIFT = 10, // page generations are stored in tables of 1024 pages
+                             PAGE_TABLE_MASK = (1 << PAGE_TABLE_SHIFT) - 1,
+                             FLUSH_THRESHOLD = ENTRY_COUNT;
+
+    // entry state
+    private int[] tags;
+    private boolean[] valid,
+                      decoded,
+                      privileged;
+    private Opcode[] opcodes;
+    private InstructionDescriptor[] descriptors; // allocated on first decode of each entry, then reused
+    private byte[][] fetchWindows;
+
+    // lines which contain cached code. sparse bitmap, one array of words per region
+    private long[][] codeLines;
+
+    // generation of each page, incremented whenever code in it may have changed. sparse, one table per 4M
+    private int[][] pageGenerations;
+
+    // incremented on flush, invalidating every page
+    private int epoch;
+
+    // incremented whenever any cached code may have changed
+    private int codeWrites;
+
+    private long hits,
+                 misses,
+                 invalidations;
+
+    /**
+     * Create an empty cache
+     */
+    public InstructionCache() {
+        this.tags = new int[ENTRY_COUNT];
+        this.valid = new boolean[ENTRY_COUNT];
+        this.decoded = new boolean[ENTRY_COUNT];
+        this.privileged = new boolean[ENTRY_COUNT];
+        this.opcodes = new Opcode[ENTRY_COUNT];
+        this.descriptors = new InstructionDescriptor[ENTRY_COUNT];
+        this.fetchWindows = new byte[ENTRY_COUNT][FETCH_SIZE];
+        this.codeLines = new long[1 << (32 - REGION_SHIFT)][];
+        this.pageGenerations = new int[1 << (32 - PAGE_SHIFT - PAGE_TABLE_SHIFT)][];
+        this.epoch = 0;
+        this.codeWrites = 0;
+
+        this.hits = 0;
+        this.misses = 0;
+        this.invalidations = 0;
+    }
+
+    /**
+     * Finds the entry for an instruction
+     *
+     * @param ip
+     * @param privilege Privilege the fetch would be made with. Entries fetched with privilege are not visible without it.
+     * @return index of the entry, or -1 if not present
+     */
+    public int lookup(int ip, boolean privilege) {
+        int index = ip & ENTRY_MASK;
+
+        if(this.valid[index] && this.tags[index] == ip && (privilege || !this.privileged[index])) {
+            this.hits++;
+            return index;
+        }
+
+        this.misses++;
+        return -1;
+    }
+
+    /**
+     * Adds an instruction to the cache, replacing whatever shared its entry
+     *
+     * @param ip
+     * @param fetchWindow FETCH_SIZE bytes starting at IP
+     * @param privilege Privilege the bytes were fetched with
+     * @return index of the entry
+     */
+    public int fill(int ip, byte[] fetchWindow, boolean privilege) {
+        int index = ip & ENTRY_MASK;
+
+        System.arraycopy(fetchWindow, 0, this.fetchWindows[index], 0, FETCH_SIZE);
+        this.tags[index] = ip;
+        this.valid[index] = true;
+        this.decoded[index] = false;
+        this.privileged[index] = privilege;
+        this.opcodes[index] = Opcode.fromOp(fetchWindow[0]);
+
+        markCode(ip & 0xFFFF_FFFFl, FETCH_SIZE);
+
+        return index;
+    }
+
+    /**
+     * Copies an entry's fetch window
+     *
+     * @param index
+     * @param dest
+     */
+    public void copyFetchWindow(int index, byte[] dest) {
+        System.arraycopy(this.fetchWindows[index], 0, dest, 0, FETCH_SIZE);
+    }
+
+    /**
+     * Records the decoded form of an entry's instruction
+     *
+     * @param index
+     * @param cid Descriptor the instruction was decoded into
+     */
+    public void setDecoded(int index, InstructionDescriptor cid) {
+        if(this.descriptors[index] == null) {
+            this.descriptors[index] = new InstructionDescriptor();
+        }
+
+        this.descriptors[index].copy(cid);
+        this.decoded[index] = true;
+    }
+
+    /**
+     * @param index
+     * @return Decoded form of the entry's instruction, or null if it hasn't been decoded
+     */
+    public InstructionDescriptor getDecoded(int index) {
+        return this.decoded[index] ? this.descriptors[index] : null;
+    }
+
+    /**
+     * @param index
+     * @return Opcode of the entry's instruction
+     */
+    public Opcode getOpcode(int index) { return this.opcodes[index]; }
+
+    /**
+     * Invalidates every entry
+     */
+    public void flush() {
+        for(int i = 0; i < ENTRY_COUNT; i++) {
+            this.valid[i] = false;
+        }
+
+        for(int i = 0; i < this.codeLines.length; i++) {
+            this.codeLines[i] = null;
+        }
+
+        this.epoch++;
+        this.codeWrites++;
+        this.invalidations++;
+    }
+
+    /**
+     * Invalidates any entries whose fetch windows overlap the given range
+     *
+     * @param address
+     * @param size
+     */
+    @Override
+    public void memoryWritten(long address, long size) {
+        if(size > FLUSH_THRESHOLD) {
+            flush();
+            return;
+        }
+
+        address &= 0xFFFF_FFFFl;
+
+        if(!containsCode(address, size)) {
+            return;
+        }
+
+        this.codeWrites++;
+
+        // any instruction starting up to FETCH_SIZE - 1 bytes before the write could have fetched it
+        long start = (address - (FETCH_SIZE - 1)) & 0xFFFF_FFFFl,
+             end = (address + size - 1) & 0xFFFF_FFFFl;
+
+        for(int page = (int)(start >>> PAGE_SHIFT); ; page = (page + 1) & (-1 >>> PAGE_SHIFT)) {
+            int[] table = this.pageGenerations[page >>> PAGE_TABLE_SHIFT];
+
+            if(table == null) {
+                table = new int[1 << PAGE_TABLE_SHIFT];
+                this.pageGenerations[page >>> PAGE_TABLE_SHIFT] = table;
+            }
+
+            table[page & PAGE_TABLE_MASK]++;
+
+            if(page == (int)(end >>> PAGE_SHIFT)) break;
+        }
+
+        // any instruction starting up to FETCH_SIZE - 1 bytes before the write could have fetched it
+        for(long ip = address - (FETCH_SIZE - 1); ip < address + size; ip++) {
+            int index = (int) ip & ENTRY_MASK;
+
+            if(this.valid[index] && this.tags[index] == (int) ip) {
+                this.valid[index] = false;
+                this.invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Marks the lines covering a range as containing code
+     *
+     * @param address
+     * @param size
+     */
+    private void markCode(long address, int size) {
+        long end = (address + size - 1) & 0xFFFF_FFFFl;
+
+        for(long line = address >>> LINE_SHIFT; ; line = (line + 1) & (0xFFFF_FFFFl >>> LINE_SHIFT)) {
+            int region = (int)(line >>> (REGION_SHIFT - LINE_SHIFT));
+            int bit = (int) line & ((1 << (REGION_SHIFT - LINE_SHIFT)) - 1);
+
+            if(this.codeLines[region] == null) {
+                this.codeLines[region] = new long[REGION_WORDS];
+            }
+
+            this.codeLines[region][bit >>> 6] |= 1l << bit;
+
+            if(line == end >>> LINE_SHIFT) break;
+        }
+    }
+
+    /**
+     * Checks whether a range could overlap cached code. Includes the FETCH_SIZE - 1 bytes before the range.
+     *
+     * @param address
+     * @param size
+     * @return true if any line covering the range contains code
+     */
+    private boolean containsCode(long address, long size) {
+        long first = ((address - (FETCH_SIZE - 1)) & 0xFFFF_FFFFl) >>> LINE_SHIFT,
+             last = ((address + size - 1) & 0xFFFF_FFFFl) >>> LINE_SHIFT;
+
+        for(long line = first; ; line = (line + 1) & (0xFFFF_FFFFl >>> LINE_SHIFT)) {
+            long[] words = this.codeLines[(int)(line >>> (REGION_SHIFT - LINE_SHIFT))];
+            int bit = (int) line & ((1 << (REGION_SHIFT - LINE_SHIFT)) - 1);
+
+            if(words != null && (words[bit >>> 6] & (1l << bit)) != 0) {
+                return true;
+            }
+
+            if(line == last) return false;
+        }
+    }
+
+    /**
+     * Code copied out of the cache is only valid while the epoch and the generations of the pages it came from are
+     * unchanged
+     *
+     * @param address Any address in the page
+     * @return The current generation of the page
+     */
+    public int getPageGeneration(int address) {
+        int page = address >>> PAGE_SHIFT;
+        int[] table = this.pageGenerations[page >>> PAGE_TABLE_SHIFT];
+
+        return (table == null) ? 0 : table[page & PAGE_TABLE_MASK];
+    }
+
+    /**
+     * @return The current epoch
+     */
+    public int getEpoch() { return this.epoch; }
+
+    /**
+     * Cheap check for whether code may have changed. If this hasn't changed, no page generation or the epoch has.
+     *
+     * @return Number of writes which hit cached code
+     */
+    public int getCodeWrites() { return this.codeWrites; }
+
+    public long getHits() { return this.hits; }
+    public long getMisses() { return this.misses; }
+    public long getInvalidations() { return this.invalidations; }
+}
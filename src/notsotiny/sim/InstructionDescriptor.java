@@ -6,6 +6,12 @@ import notsotiny.sim.ops.Opcode;
  * Holds information about a decoded instruction
  */
 public class InstructionDescriptor {
+    
+    // Values read by decode, so that a cached decode can read them again
+    public static final int READ_SOURCE = 0x01,
+                            READ_DESTINATION = 0x02,
+                            SOURCE_ADDRESS = 0x04;
+    
     public Opcode opcode;
     
     // Physical instruction decode
@@ -17,10 +23,20 @@ public class InstructionDescriptor {
     public LocationDescriptor sourceDescriptor,
                               destinationDescriptor;
     
+    // Reused for memory and immediate operands, so decoding doesn't allocate
+    public final LocationDescriptor sourceOperand = new LocationDescriptor(),
+                                    destinationOperand = new LocationDescriptor();
+    
     public int sourceValue = 0,
                destinationValue = 0,
                destinationAddress;
     
+    public int valueReads = 0;
+    
+    // Positions of the BIO bytes of memory operands, 0 if the address doesn't depend on registers
+    public int sourceBIO = 0,
+               destinationBIO = 0;
+    
     public boolean hasOffset = false,
                    hasEI8 = false,
                    isPacked = false,
@@ -39,5 +55,47 @@ public class InstructionDescriptor {
         this.hasEI8 = false;
         this.isPacked = false;
         this.packedIs4s = false;
+        this.valueReads = 0;
+        this.sourceBIO = 0;
+        this.destinationBIO = 0;
+    }
+    
+    /**
+     * Copies another descriptor, including its memory and immediate operands
+     * 
+     * @param other
+     */
+    public void copy(InstructionDescriptor other) {
+        this.opcode = other.opcode;
+        this.i8Byte = other.i8Byte;
+        this.instructionSize = other.instructionSize;
+        this.sourceDescriptor = copyOperand(other.sourceDescriptor, other.sourceOperand, this.sourceOperand);
+        this.destinationDescriptor = copyOperand(other.destinationDescriptor, other.destinationOperand, this.destinationOperand);
+        this.sourceValue = other.sourceValue;
+        this.destinationValue = other.destinationValue;
+        this.destinationAddress = other.destinationAddress;
+        this.valueReads = other.valueReads;
+        this.sourceBIO = other.sourceBIO;
+        this.destinationBIO = other.destinationBIO;
+        this.hasOffset = other.hasOffset;
+        this.hasEI8 = other.hasEI8;
+        this.isPacked = other.isPacked;
+        this.packedIs4s = other.packedIs4s;
+    }
+    
+    /**
+     * Copies an operand. Register descriptors are shared, the others are copied into this descriptor's own.
+     */
+    private static LocationDescriptor copyOperand(LocationDescriptor descriptor, LocationDescriptor otherOperand, LocationDescriptor operand) {
+        if(descriptor != otherOperand) {
+            return descriptor;
+        }
+        
+        operand.type = descriptor.type;
+        operand.register = descriptor.register;
+        operand.size = descriptor.size;
+        operand.address = descriptor.address;
+        operand.kind = descriptor.kind;
+        return operand;
     }
 }
@@ -2,6 +2,14 @@ package notsotiny.sim;
 
 public class LocationDescriptor {
     
+    // Kinds, combining type and memory size for dispatch
+    public static final int KIND_NULL = 0,
+                            KIND_REGISTER = 1,
+                            KIND_IMMEDIATE = 2,
+                            KIND_MEMORY_BYTE = 3,
+                            KIND_MEMORY_WORD = 4,
+                            KIND_MEMORY_DWORD = 5;
+    
     // Common locations
     public static final LocationDescriptor NULL = new LocationDescriptor(),
                                            REG_DA = new LocationDescriptor(Register.DA),
@@ -34,6 +42,7 @@ public class LocationDescriptor {
     public Register register;
     public LocationSize size;
     public int address;
+    public int kind;
 
     /**
      * Blank constructor
@@ -43,6 +52,7 @@ public class LocationDescriptor {
         this.type = LocationType.NULL;
         this.register = Register.NONE;
         this.size = LocationSize.NULL;
+        this.kind = KIND_NULL;
     }
     
     /**
@@ -56,6 +66,7 @@ public class LocationDescriptor {
         this.type = LocationType.REGISTER;
         this.size = register.lsize();
         this.address = 0;
+        this.kind = KIND_REGISTER;
     }
     
     /**
@@ -63,11 +74,36 @@ public class LocationDescriptor {
      * @param address
      */
     public LocationDescriptor(LocationType type, int address, LocationSize size) {
+        this.register = Register.NONE;
+        set(type, address, size);
+    }
+    
+    /**
+     * Reuses this descriptor for a memory or immediate location
+     * 
+     * @param type
+     * @param address
+     * @param size
+     * @return this
+     */
+    public LocationDescriptor set(LocationType type, int address, LocationSize size) {
         this.type = type;
         this.address = address;
         this.size = size;
         
-        this.register = Register.NONE;
+        this.kind = switch(type) {
+            case IMMEDIATE  -> KIND_IMMEDIATE;
+            case REGISTER   -> KIND_REGISTER;
+            case MEMORY     -> switch(size) {
+                case BYTE   -> KIND_MEMORY_BYTE;
+                case WORD   -> KIND_MEMORY_WORD;
+                case DWORD  -> KIND_MEMORY_DWORD;
+                default     -> KIND_NULL;
+            };
+            default         -> KIND_NULL;
+        };
+        
+        return this;
     }
     
     @Override
@@ -0,0 +1,336 @@
+package notsotiny.sim;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import javax.sound.midi.MidiUnavailableException;
+
+import asmlib.util.relocation.ExecLoader;
+import asmlib.util.relocation.Relocator;
+import notsotiny.sim.MachineConfig.SegmentConfig;
+import notsotiny.sim.memory.CachingMemoryManager;
+import notsotiny.sim.memory.CharacterIOMC;
+import notsotiny.sim.memory.CycleCounterController;
+import notsotiny.sim.memory.DiskBufferController;
+import notsotiny.sim.memory.FlatMemoryController;
+import notsotiny.sim.memory.HookController;
+import notsotiny.sim.memory.InterruptController;
+import notsotiny.sim.memory.MappedMemoryController;
+import notsotiny.sim.memory.MemoryController;
+import notsotiny.sim.memory.MemoryManager;
+import notsotiny.sim.memory.NonexistentAccessException;
+import notsotiny.sim.memory.PageTableMemoryManager;
+import notsotiny.sim.memory.PagedMemoryController;
+import notsotiny.sim.memory.RandomController;
+import notsotiny.sim.memory.ScreenBuffer;
+import notsotiny.sim.memory.SoundInterfaceController;
+import notsotiny.sim.memory.TimerController;
+import notsotiny.sim.memory.TimerController.TimeBase;
+import notsotiny.sim.memory.VideoBufferController;
+
+/**
+ * A memory map and its devices, built from a MachineConfig, and the simulator running a program on it.
+ * Mapped segments hold off-heap memory until the machine is closed.
+ *
+ * @author Mechafinch
+ */
+public class Machine implements AutoCloseable {
+
+    private static final int VECTOR_RESET = 0x00,
+                             STACK_SIZE = 1024;     // user stack reservation without privileged RAM
+
+    private static final byte VECTOR_TIMER = 0x0C;  // initial vector of pit segments
+
+    private MachineConfig config;
+
+    private MemoryManager mmu;
+
+    private HashMap<String, MemoryController> controllers;
+
+    private InterruptController pic;
+
+    private VideoBufferController video;
+
+    private ScreenBuffer screenBuffer;
+
+    private NotSoTinySimulator sim;
+
+    private Runnable resetHook;
+
+    private EventJournal journal;
+
+    private boolean closed;
+
+    /**
+     * Builds the memory map
+     *
+     * @param config
+     * @throws MidiUnavailableException if the configuration has a sound segment and MIDI is unavailable
+     * @throws IllegalArgumentException if the configuration is inconsistent
+     */
+    public Machine(MachineConfig config) throws MidiUnavailableException {
+        this(config, null);
+    }
+
+    /**
+     * Builds the memory map, recording or replaying external events with a journal. Reads from random, console, pic, and
+     * journal.segments segments, and pit segments counting host time, go through the journal, as do external
+     * interrupts once a program is loaded.
+     *
+     * @param config
+     * @param journal Journal to record into or replay, or null
+     * @throws MidiUnavailableException if the configuration has a sound segment and MIDI is unavailable
+     * @throws IllegalArgumentException if the configuration is inconsistent
+     */
+    public Machine(MachineConfig config, EventJournal journal) throws MidiUnavailableException {
+        this.config = config;
+        this.controllers = new HashMap<>();
+        this.resetHook = () -> {};
+        this.sim = null;
+        this.journal = journal;
+        this.closed = false;
+
+        if(config.getCacheSize() > 0) {
+            this.mmu = new CachingMemoryManager(config.getCacheSize(), config.getCacheLineSize(), config.getCacheWays(), config.getReplacementPolicy(), config.getWritePolicy());
+        } else {
+            this.mmu = new PageTableMemoryManager();
+        }
+
+        try {
+            for(SegmentConfig s : config.getSegments()) {
+                MemoryController mc = createController(s),
+                                 registered = (journal != null && isJournaled(s)) ? journal.wrap(mc) : mc;
+
+                this.controllers.put(s.name(), mc);
+
+                if(this.mmu instanceof CachingMemoryManager cmm) {
+                    cmm.registerSegment(registered, s.start(), s.size(), s.cachable());
+                } else {
+                    this.mmu.registerSegment(registered, s.start(), s.size());
+                }
+            }
+        } catch(MidiUnavailableException | RuntimeException e) {
+            close();
+            throw e;
+        }
+
+        // timers are polled by the interrupt controller
+        for(MemoryController mc : this.controllers.values()) {
+            if(mc instanceof TimerController timer) {
+                if(this.pic == null) {
+                    close();
+                    throw new IllegalArgumentException("Timer segments require an interrupt controller");
+                }
+
+                this.pic.addSource(timer);
+            }
+        }
+    }
+
+    /**
+     * Releases the off-heap memory of mapped segments. The simulator must not run afterwards.
+     */
+    @Override
+    public void close() {
+        if(this.closed) {
+            return;
+        }
+
+        this.closed = true;
+
+        for(MemoryController mc : this.controllers.values()) {
+            if(mc instanceof MappedMemoryController mapped) {
+                mapped.close();
+            }
+        }
+    }
+
+    /**
+     * @param s
+     * @return true if reads from the segment aren't reproducible
+     */
+    private boolean isJournaled(SegmentConfig s) {
+        return switch(s.type()) {
+            case RANDOM, CONSOLE    -> true;
+            case PIC                -> true;    // requests aren't fired or cleared while replaying
+            case PIT                -> this.config.getTimerBase() == TimeBase.HOST;
+            default                 -> this.config.getJournalSegments().contains(s.name());
+        };
+    }
+
+    /**
+     * Creates the controller for a segment
+     *
+     * @param s
+     * @return
+     * @throws MidiUnavailableException
+     */
+    private MemoryController createController(SegmentConfig s) throws MidiUnavailableException {
+        return switch(s.type()) {
+            case FLAT       -> new FlatMemoryController(new byte[checkedSize(s)], s.readPrivileged(), s.writePrivileged());
+            case PAGED      -> new PagedMemoryController(s.size(), s.readPrivileged(), s.writePrivileged());
+            case MAPPED     -> new MappedMemoryController(s.size(), s.readPrivileged(), s.writePrivileged());
+            case VIDEO      -> {
+                if(this.video != null) {
+                    throw new IllegalArgumentException("Multiple video segments");
+                } else if(((long) this.config.getScreenWidth() * this.config.getScreenHeight()) + (256 * 3) > s.size()) {
+                    throw new IllegalArgumentException("Video segment " + s.name() + " is too small for the screen and palette");
+                }
+
+                this.video = new VideoBufferController(new byte[checkedSize(s)], this.config.getScreenWidth(), this.config.getScreenHeight(), s.readPrivileged(), s.writePrivileged());
+                yield this.video;
+            }
+
+            case SCREEN     -> {
+                if(this.video == null) {
+                    throw new IllegalArgumentException("Screen segment " + s.name() + " requires a preceding video segment");
+                }
+
+                this.screenBuffer = new ScreenBuffer(this.video);
+                yield this.screenBuffer;
+            }
+
+            case PIC        -> {
+                if(this.pic != null) {
+                    throw new IllegalArgumentException("Multiple interrupt controllers");
+                }
+
+                this.pic = new InterruptController();
+                yield this.pic;
+            }
+
+            case DISK       -> new DiskBufferController(this.mmu, Paths.get(this.config.getDiskDirectory()));
+            case RESET      -> new HookController(() -> this.resetHook.run());
+            case SOUND      -> new SoundInterfaceController();
+            case RANDOM     -> new RandomController();
+            case TIMER      -> {
+                if(!this.config.isTiming()) {
+                    throw new IllegalArgumentException("Cycle counter segment " + s.name() + " requires timing");
+                }
+
+                yield new CycleCounterController(() -> (this.sim == null) ? 0 : this.sim.getCycles());
+            }
+
+            case PIT        -> {
+                if(this.config.getTimerBase() == TimeBase.CYCLES && !this.config.isTiming()) {
+                    throw new IllegalArgumentException("Counting cycles with pit segment " + s.name() + " requires timing");
+                }
+
+                yield new TimerController(this.config.getTimerBase(), (this.config.getTimerBase() == TimeBase.CYCLES) ?
+                                                   () -> (this.sim == null) ? 0 : this.sim.getCycles() :
+                                                   () -> (this.sim == null) ? 0 : this.sim.getInstructionCount(), VECTOR_TIMER);
+            }
+
+            case CONSOLE    -> new CharacterIOMC(System.in, System.out);
+        };
+    }
+
+    /**
+     * @param s
+     * @return The size of a segment backed by an array
+     */
+    private static int checkedSize(SegmentConfig s) {
+        if(s.size() > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Segment " + s.name() + " is too large for its type");
+        }
+
+        return (int) s.size();
+    }
+
+    /**
+     * Loads a program and creates the simulator, ready to run from the entry point, counting cycles if the configuration
+     * has timing.
+     * Without a privileged segment, the stacks are placed at the end of the program segment.
+     *
+     * @param relocator
+     * @param entrySymbol
+     * @return The entry point
+     */
+    public long load(Relocator relocator, String entrySymbol) {
+        SegmentConfig program = requireSegment(this.config.getProgramSegment()),
+                      privileged = (this.config.getPrivilegedSegment() == null) ? null : requireSegment(this.config.getPrivilegedSegment());
+
+        // loadRelocator() only fills buffers it's given, so the image is relocated once beforehand to size the buffer.
+        // The extra pass is a one time cost at load, and spares allocating the whole segment, which paged RAM avoids.
+        int imageSize = Math.min(relocator.relocate(program.start(), false, false).length, checkedSize(program));
+
+        byte[] privilegedData = new byte[(privileged == null) ? 0 : checkedSize(privileged)];
+        byte[] relocatedData = new byte[imageSize];
+        long entry = ExecLoader.loadRelocator(relocator, entrySymbol, relocatedData, privilegedData, program.start(), 0, 0, 0);
+
+        if(privileged != null) {
+            this.controllers.get(privileged.name()).writeBytes(0, privilegedData, 0, privilegedData.length);
+        }
+
+        if(this.controllers.get(program.name()) instanceof PagedMemoryController pmc) {
+            pmc.load(relocatedData);
+        } else {
+            this.controllers.get(program.name()).writeBytes(0, relocatedData, 0, relocatedData.length);
+        }
+
+        try {
+            this.mmu.write4BytesPrivileged(VECTOR_RESET * 4, (int) entry);
+            this.sim = new NotSoTinySimulator(this.mmu);
+            this.sim.setInterruptController(this.pic);
+            this.sim.setJournal(this.journal);
+
+            if(this.config.isTiming()) {
+                this.sim.setTimingModel(new TableTimingModel());
+            }
+        } catch(NonexistentAccessException e) {
+            throw new IllegalStateException("Reset vector is not mapped", e);
+        }
+
+        long programEnd = program.start() + program.size();
+
+        if(privileged != null) {
+            this.sim.setRegSP((int) programEnd);
+            this.sim.setRegISP((int)(privileged.start() + privileged.size()));
+        } else {
+            this.sim.setRegSP((int) programEnd - STACK_SIZE);
+            this.sim.setRegISP((int) programEnd);
+        }
+
+        return entry;
+    }
+
+    /**
+     * @param name
+     * @return The named segment's configuration
+     * @throws IllegalArgumentException if there is no such segment
+     */
+    private SegmentConfig requireSegment(String name) {
+        SegmentConfig s = (name == null) ? null : this.config.getSegment(name);
+
+        if(s == null) {
+            throw new IllegalArgumentException("No segment " + name);
+        }
+
+        return s;
+    }
+
+    /**
+     * Sets what happens when the reset device is written
+     *
+     * @param hook
+     */
+    public void setResetHook(Runnable hook) {
+        this.resetHook = hook;
+    }
+
+    /**
+     * @param name
+     * @return The named segment's controller, or null
+     */
+    public MemoryController getController(String name) {
+        return this.controllers.get(name);
+    }
+
+    public MachineConfig getConfig() { return this.config; }
+    public MemoryManager getMemoryManager() { return this.mmu; }
+    public NotSoTinySimulator getSimulator() { return this.sim; }
+    public InterruptController getInterruptController() { return this.pic; }
+    public EventJournal getJournal() { return this.journal; }
+    public VideoBufferController getVideoBuffer() { return this.video; }
+    public ScreenBuffer getScreenBuffer() { return this.screenBuffer; }
+}
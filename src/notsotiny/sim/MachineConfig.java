@@ -0,0 +1,508 @@
+package notsotiny.sim;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+import notsotiny.sim.memory.CachingMemoryManager;
+import notsotiny.sim.memory.CachingMemoryManager.ReplacementPolicy;
+import notsotiny.sim.memory.CachingMemoryManager.WritePolicy;
+import notsotiny.sim.memory.CycleCounterController;
+import notsotiny.sim.memory.TimerController;
+import notsotiny.sim.memory.TimerController.TimeBase;
+
+/**
+ * Describes a machine: its segments, the devices behind them, and the memory manager's cache.
+ * Machine builds a running machine from one.
+ *
+ * Configurations can be read from properties files of the form
+ * <pre>
+ * # 0 for no cache. Replacement is lru, plru, or random. Write is write_back or write_through.
+ * cache.size = 16384
+ * cache.line = 32
+ * cache.ways = 1
+ * cache.replacement = lru
+ * cache.write = write_back
+ * video.width = 320
+ * video.height = 240
+ * disk.directory = disk
+ * # count cycles with the default timing model. Required by timer segments and pit.timebase = cycles
+ * timing = false
+ * # what pit segments count: instructions, cycles, or host (microseconds)
+ * pit.timebase = host
+ * # segments written from outside the simulator, journaled when recording. random, console, and pic segments always are.
+ * journal.segments = keyboard
+ * # segment programs are relocated into, and the optional segment privileged data goes in
+ * load.program = lowram
+ * load.privileged = privram
+ * # registered in this order
+ * segments = privram, lowram, ...
+ * # type is a DeviceType, privileged is none, r, w, or rw
+ * segment.lowram.type = paged
+ * segment.lowram.start = 0x0000_4000
+ * segment.lowram.size = 0x100F_C000
+ * segment.lowram.privileged = none
+ * segment.lowram.cachable = true
+ * </pre>
+ * Keys other than the segments may be omitted and take their default values.
+ *
+ * @author Mechafinch
+ */
+public class MachineConfig {
+
+    /**
+     * The kinds of controller a segment can be
+     */
+    public enum DeviceType {
+        FLAT,           // memory in an array
+        PAGED,          // memory allocated as it's used
+        MAPPED,         // off-heap memory
+        VIDEO,          // video.width * video.height pixels followed by a palette
+        SCREEN,         // screen buffering control for the video segment
+        PIC,            // interrupt controller
+        DISK,           // disk buffer in disk.directory
+        RESET,          // reset hook
+        SOUND,          // MIDI sound interface
+        RANDOM,         // random number generator
+        TIMER,          // cycle counter, requires timing
+        PIT,            // interval timer counting pit.timebase, requires a pic segment
+        CONSOLE         // character IO on stdin/stdout
+    }
+
+    /**
+     * A segment of the machine
+     *
+     * @param name
+     * @param type
+     * @param start First address
+     * @param size Size in bytes
+     * @param readPrivileged Does reading require privilege
+     * @param writePrivileged Does writing require privilege
+     * @param cachable Can the memory manager cache the segment
+     */
+    public record SegmentConfig(String name, DeviceType type, long start, long size, boolean readPrivileged, boolean writePrivileged, boolean cachable) {
+
+        /**
+         * Create an unprivileged, uncachable segment
+         */
+        public SegmentConfig(String name, DeviceType type, long start, long size) {
+            this(name, type, start, size, false, false, false);
+        }
+
+        public long end() { return this.start + this.size - 1; }
+    }
+
+    private LinkedHashMap<String, SegmentConfig> segments;
+
+    private int cacheSize,
+                cacheLineSize,
+                cacheWays,
+                screenWidth,
+                screenHeight;
+
+    private ReplacementPolicy replacementPolicy;
+    private WritePolicy writePolicy;
+
+    private TimeBase timerBase;
+
+    private boolean timing;
+
+    private List<String> journalSegments;
+
+    private String diskDirectory,
+                   programSegment,
+                   privilegedSegment;
+
+    /**
+     * Create a configuration with no segments and the default cache
+     */
+    public MachineConfig() {
+        this.segments = new LinkedHashMap<>();
+
+        this.cacheSize = CachingMemoryManager.DEFAULT_CACHE_SIZE;
+        this.cacheLineSize = CachingMemoryManager.DEFAULT_LINE_SIZE;
+        this.cacheWays = CachingMemoryManager.DEFAULT_WAYS;
+        this.replacementPolicy = ReplacementPolicy.LRU;
+        this.writePolicy = WritePolicy.WRITE_BACK;
+
+        this.screenWidth = 320;
+        this.screenHeight = 240;
+        this.timerBase = TimeBase.HOST;
+        this.timing = false;
+        this.journalSegments = new ArrayList<>();
+        this.diskDirectory = "disk";
+        this.programSegment = null;
+        this.privilegedSegment = null;
+    }
+
+    /**
+     * The standard machine
+     *
+     * @return
+     */
+    public static MachineConfig standard() {
+        return standard(true);
+    }
+
+    /**
+     * The standard machine, without timing
+     *
+     * @param privram If false, low RAM starts at 0 and takes the place of privileged RAM
+     * @return
+     */
+    public static MachineConfig standard(boolean privram) {
+        return standard(privram, false);
+    }
+
+    /**
+     * The standard machine. The cycle counter is only mapped with timing.
+     *
+     * @param privram If false, low RAM starts at 0 and takes the place of privileged RAM
+     * @param timing If true, count cycles
+     * @return
+     */
+    public static MachineConfig standard(boolean privram, boolean timing) {
+        MachineConfig config = new MachineConfig();
+        config.setTiming(timing);
+
+        int privramSize = privram ? 0x0000_4000 : 0,
+            videoBufferSize = 0x0001_4000,
+            videoCharsetSize = 0x0000_1000,
+            videoOtherSize = 0x0002_0000 - (videoBufferSize + videoCharsetSize);
+
+        long videoStart = 0xF002_0000l;
+
+        if(privram) {
+            config.addSegment(new SegmentConfig("privram", DeviceType.FLAT, 0x0000_0000l, privramSize, true, true, false));
+            config.setPrivilegedSegment("privram");
+        }
+
+        config.addSegment(new SegmentConfig("lowram", DeviceType.PAGED, privramSize, 0x1010_0000 - privramSize, false, false, true));
+        config.addSegment(new SegmentConfig("spi", DeviceType.FLAT, 0x8000_0000l, 0x0000_0004));
+        config.addSegment(new SegmentConfig("cc", DeviceType.FLAT, 0x8002_0000l, 0x0000_0002, true, true, false));
+        config.addSegment(new SegmentConfig("keyboard", DeviceType.FLAT, 0xF000_0000l, 0x0000_0010, false, true, false));
+        config.addSegment(new SegmentConfig("video", DeviceType.VIDEO, videoStart, videoBufferSize));
+        config.addSegment(new SegmentConfig("charset", DeviceType.FLAT, videoStart + videoBufferSize, videoCharsetSize));
+        config.addSegment(new SegmentConfig("video_other", DeviceType.FLAT, videoStart + videoBufferSize + videoCharsetSize, videoOtherSize - 4));
+        config.addSegment(new SegmentConfig("pic", DeviceType.PIC, 0xF005_0000l, 0x0000_0200));
+        config.addSegment(new SegmentConfig("disk", DeviceType.DISK, 0xF006_0000l, 0x0000_000C));
+        config.addSegment(new SegmentConfig("bootrom", DeviceType.FLAT, 0xFFFF_FC00l, 0x0000_0400, false, true, false));
+        config.addSegment(new SegmentConfig("reset", DeviceType.RESET, 0xF007_0000l, 0x0000_0010));
+        config.addSegment(new SegmentConfig("sound", DeviceType.SOUND, 0xF001_0000l, 0x0000_0008));
+        config.addSegment(new SegmentConfig("random", DeviceType.RANDOM, 0xF004_0000l, 0x0000_0010));
+
+        if(timing) {
+            config.addSegment(new SegmentConfig("timer", DeviceType.TIMER, 0xF008_0000l, CycleCounterController.SIZE));
+        }
+
+        config.addSegment(new SegmentConfig("pit", DeviceType.PIT, 0xF009_0000l, TimerController.SIZE));
+        config.addSegment(new SegmentConfig("screen", DeviceType.SCREEN, videoStart + videoBufferSize + videoCharsetSize + videoOtherSize - 4, 4));
+
+        config.setProgramSegment("lowram");
+        config.setJournalSegments(List.of("keyboard"));
+
+        return config;
+    }
+
+    /**
+     * Reads a configuration from a properties file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    public static MachineConfig load(Path file) throws IOException {
+        Properties props = new Properties();
+
+        try(Reader reader = Files.newBufferedReader(file)) {
+            props.load(reader);
+        }
+
+        return fromProperties(props);
+    }
+
+    /**
+     * Reads a configuration from properties
+     *
+     * @param props
+     * @return
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    public static MachineConfig fromProperties(Properties props) {
+        MachineConfig config = new MachineConfig();
+
+        config.cacheSize = (int) parseNumber(props, "cache.size", config.cacheSize);
+        config.cacheLineSize = (int) parseNumber(props, "cache.line", config.cacheLineSize);
+        config.cacheWays = (int) parseNumber(props, "cache.ways", config.cacheWays);
+        config.replacementPolicy = parseEnum(ReplacementPolicy.class, props, "cache.replacement", config.replacementPolicy);
+        config.writePolicy = parseEnum(WritePolicy.class, props, "cache.write", config.writePolicy);
+        config.screenWidth = (int) parseNumber(props, "video.width", config.screenWidth);
+        config.screenHeight = (int) parseNumber(props, "video.height", config.screenHeight);
+        config.diskDirectory = props.getProperty("disk.directory", config.diskDirectory).trim();
+        config.timerBase = parseEnum(TimeBase.class, props, "pit.timebase", config.timerBase);
+        config.timing = Boolean.parseBoolean(props.getProperty("timing", Boolean.toString(config.timing)).trim());
+
+        for(String name : props.getProperty("journal.segments", "").split(",")) {
+            if(!name.isBlank()) {
+                config.journalSegments.add(name.trim());
+            }
+        }
+
+        String segmentList = props.getProperty("segments");
+
+        if(segmentList == null) {
+            throw new IllegalArgumentException("No segments");
+        }
+
+        for(String name : segmentList.split(",")) {
+            name = name.trim();
+
+            if(name.isEmpty()) {
+                continue;
+            }
+
+            String prefix = "segment." + name + ".",
+                   privilege = props.getProperty(prefix + "privileged", "none").trim().toLowerCase();
+
+            if(!privilege.matches("none|r|w|rw")) {
+                throw new IllegalArgumentException("Invalid privilege for segment " + name + ": " + privilege);
+            }
+
+            if(!props.containsKey(prefix + "type") || !props.containsKey(prefix + "start") || !props.containsKey(prefix + "size")) {
+                throw new IllegalArgumentException("Segment " + name + " requires type, start, and size");
+            }
+
+            config.addSegment(new SegmentConfig(
+                name,
+                parseEnum(DeviceType.class, props, prefix + "type", null),
+                parseNumber(props, prefix + "start", 0),
+                parseNumber(props, prefix + "size", 0),
+                privilege.startsWith("r"),
+                privilege.endsWith("w"),
+                Boolean.parseBoolean(props.getProperty(prefix + "cachable", "false").trim())
+            ));
+        }
+
+        if(props.containsKey("load.program")) {
+            config.setProgramSegment(props.getProperty("load.program").trim());
+        }
+
+        if(props.containsKey("load.privileged")) {
+            config.setPrivilegedSegment(props.getProperty("load.privileged").trim());
+        }
+
+        return config;
+    }
+
+    /**
+     * Writes the configuration as properties, in the form fromProperties reads
+     *
+     * @return
+     */
+    public Properties toProperties() {
+        Properties props = new Properties();
+
+        props.setProperty("cache.size", Integer.toString(this.cacheSize));
+        props.setProperty("cache.line", Integer.toString(this.cacheLineSize));
+        props.setProperty("cache.ways", Integer.toString(this.cacheWays));
+        props.setProperty("cache.replacement", this.replacementPolicy.name().toLowerCase());
+        props.setProperty("cache.write", this.writePolicy.name().toLowerCase());
+        props.setProperty("video.width", Integer.toString(this.screenWidth));
+        props.setProperty("video.height", Integer.toString(this.screenHeight));
+        props.setProperty("disk.directory", this.diskDirectory);
+        props.setProperty("timing", Boolean.toString(this.timing));
+        props.setProperty("pit.timebase", this.timerBase.name().toLowerCase());
+        props.setProperty("journal.segments", String.join(", ", this.journalSegments));
+        props.setProperty("segments", String.join(", ", this.segments.keySet()));
+
+        if(this.programSegment != null) {
+            props.setProperty("load.program", this.programSegment);
+        }
+
+        if(this.privilegedSegment != null) {
+            props.setProperty("load.privileged", this.privilegedSegment);
+        }
+
+        for(SegmentConfig s : this.segments.values()) {
+            String prefix = "segment." + s.name() + ".";
+
+            props.setProperty(prefix + "type", s.type().name().toLowerCase());
+            props.setProperty(prefix + "start", String.format("0x%08X", s.start()));
+            props.setProperty(prefix + "size", String.format("0x%X", s.size()));
+            props.setProperty(prefix + "privileged", (s.readPrivileged() ? "r" : "") + (s.writePrivileged() ? "w" : "") + (!s.readPrivileged() && !s.writePrivileged() ? "none" : ""));
+            props.setProperty(prefix + "cachable", Boolean.toString(s.cachable()));
+        }
+
+        return props;
+    }
+
+    /**
+     * Writes the configuration to a properties file
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void store(Path file) throws IOException {
+        try(Writer writer = Files.newBufferedWriter(file)) {
+            toProperties().store(writer, "NotSoTiny machine configuration");
+        }
+    }
+
+    /**
+     * Parses a number property. Accepts decimal, 0x hex, and underscores.
+     */
+    private static long parseNumber(Properties props, String key, long def) {
+        String s = props.getProperty(key);
+
+        if(s == null) {
+            return def;
+        }
+
+        try {
+            return Long.decode(s.trim().replace("_", ""));
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + s, e);
+        }
+    }
+
+    /**
+     * Parses an enum property, ignoring case
+     */
+    private static <T extends Enum<T>> T parseEnum(Class<T> type, Properties props, String key, T def) {
+        String s = props.getProperty(key);
+
+        if(s == null) {
+            return def;
+        }
+
+        try {
+            return Enum.valueOf(type, s.trim().toUpperCase());
+        } catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + s, e);
+        }
+    }
+
+    /**
+     * Adds a segment
+     *
+     * @param segment
+     * @throws IllegalArgumentException if the name is taken or the segment overlaps another
+     */
+    public void addSegment(SegmentConfig segment) {
+        if(segment.size() <= 0) {
+            throw new IllegalArgumentException("Segment " + segment.name() + " has no size");
+        }
+
+        if(this.segments.containsKey(segment.name())) {
+            throw new IllegalArgumentException("Duplicate segment " + segment.name());
+        }
+
+        for(SegmentConfig other : this.segments.values()) {
+            if(segment.start() <= other.end() && other.start() <= segment.end()) {
+                throw new IllegalArgumentException("Segment " + segment.name() + " overlaps " + other.name());
+            }
+        }
+
+        this.segments.put(segment.name(), segment);
+    }
+
+    /**
+     * Removes a segment
+     *
+     * @param name
+     * @return The removed segment, or null if there was none
+     */
+    public SegmentConfig removeSegment(String name) {
+        return this.segments.remove(name);
+    }
+
+    /**
+     * Changes the type of every segment of a type, for replacing devices that aren't available
+     *
+     * @param from
+     * @param to
+     */
+    public void replaceType(DeviceType from, DeviceType to) {
+        this.segments.replaceAll((name, s) -> (s.type() == from) ? new SegmentConfig(name, to, s.start(), s.size(), s.readPrivileged(), s.writePrivileged(), s.cachable()) : s);
+    }
+
+    /**
+     * @param name
+     * @return The named segment, or null
+     */
+    public SegmentConfig getSegment(String name) {
+        return this.segments.get(name);
+    }
+
+    /**
+     * @param type
+     * @return The first segment of the type, or null
+     */
+    public SegmentConfig getSegment(DeviceType type) {
+        for(SegmentConfig s : this.segments.values()) {
+            if(s.type() == type) {
+                return s;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Segments in registration order
+     */
+    public List<SegmentConfig> getSegments() {
+        return Collections.unmodifiableList(new ArrayList<>(this.segments.values()));
+    }
+
+    public int getCacheSize() { return this.cacheSize; }
+    public int getCacheLineSize() { return this.cacheLineSize; }
+    public int getCacheWays() { return this.cacheWays; }
+    public ReplacementPolicy getReplacementPolicy() { return this.replacementPolicy; }
+    public WritePolicy getWritePolicy() { return this.writePolicy; }
+    public int getScreenWidth() { return this.screenWidth; }
+    public int getScreenHeight() { return this.screenHeight; }
+    public String getDiskDirectory() { return this.diskDirectory; }
+    public TimeBase getTimerBase() { return this.timerBase; }
+    public boolean isTiming() { return this.timing; }
+    public List<String> getJournalSegments() { return Collections.unmodifiableList(this.journalSegments); }
+    public String getProgramSegment() { return this.programSegment; }
+    public String getPrivilegedSegment() { return this.privilegedSegment; }
+
+    /**
+     * Sets the cache. A size of 0 disables it.
+     *
+     * @param size
+     * @param lineSize
+     * @param ways
+     * @param replacementPolicy
+     * @param writePolicy
+     */
+    public void setCache(int size, int lineSize, int ways, ReplacementPolicy replacementPolicy, WritePolicy writePolicy) {
+        this.cacheSize = size;
+        this.cacheLineSize = lineSize;
+        this.cacheWays = ways;
+        this.replacementPolicy = replacementPolicy;
+        this.writePolicy = writePolicy;
+    }
+
+    public void setScreenSize(int width, int height) {
+        this.screenWidth = width;
+        this.screenHeight = height;
+    }
+
+    public void setDiskDirectory(String directory) { this.diskDirectory = directory; }
+    public void setTimerBase(TimeBase base) { this.timerBase = base; }
+    public void setTiming(boolean timing) { this.timing = timing; }
+    public void setJournalSegments(List<String> names) { this.journalSegments = new ArrayList<>(names); }
+    public void setProgramSegment(String name) { this.programSegment = name; }
+    public void setPrivilegedSegment(String name) { this.privilegedSegment = name; }
+}
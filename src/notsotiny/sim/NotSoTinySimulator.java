@@ -1,8 +1,18 @@
 package notsotiny.sim;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import notsotiny.sim.memory.InterruptController;
 import notsotiny.sim.memory.MemoryManager;
 import notsotiny.sim.memory.NonexistentAccessException;
+import notsotiny.sim.memory.Segment;
 import notsotiny.sim.memory.UnprivilegedAccessException;
+import notsotiny.sim.ops.DecodingGroup;
+import notsotiny.sim.ops.ExecutionGroup;
 import notsotiny.sim.ops.Opcode;
 
 /**
@@ -10,6 +20,11 @@ import notsotiny.sim.ops.Opcode;
  * 
  * Second iteration. Very clean code, but poorer performance
  * 
+ * The simulator belongs to the thread running it and takes no locks. Other threads request interrupts, halting, and
+ * snapshots through a mailbox word, and run code against the simulator's state with runAtSafePoint. The running thread
+ * takes the mailbox at safe points between instructions (between blocks in stepBlock), or in serviceMailbox() while
+ * idle. While halted, it can park in idle() until mail arrives or the interrupt controller has a request.
+ * 
  * @author Mechafinch
  */
 public class NotSoTinySimulator {
@@ -18,6 +33,53 @@ public class NotSoTinySimulator {
     
     private class GPFException extends Exception { private static final long serialVersionUID = 1L; }
     
+    /**
+     * Decodes or executes an instruction. Bound per opcode in the handler tables.
+     */
+    @FunctionalInterface
+    private interface InstructionHandler {
+        void run() throws UnprivilegedAccessException, NonexistentAccessException, GPFException, DecodingException;
+    }
+    
+    /**
+     * A basic block compiled to bytecode by BlockCompiler
+     */
+    interface CompiledBlock {
+        /**
+         * Runs the block
+         * 
+         * @param sim
+         * @return Number of instructions executed
+         */
+        public int run(NotSoTinySimulator sim) throws GPFException, UnprivilegedAccessException, NonexistentAccessException, DecodingException;
+    }
+    
+    /**
+     * Processor state at a safe point, for threads other than the one running the simulator
+     */
+    public record Snapshot(short a, short b, short c, short d, short i, short j, short k, short l, short f, short pf,
+                           int xp, int yp, int bp, int sp, int ip, int isp, boolean halted, long cycles) {}
+    
+    // Mailbox bits. The low byte holds the vector of a requested interrupt
+    private static final int MAIL_VECTOR = 0x00FF,
+                             MAIL_INTERRUPT = 0x0100,
+                             MAIL_RESUME = 0x0200,
+                             MAIL_HALT = 0x0400,
+                             MAIL_SNAPSHOT = 0x0800,
+                             MAIL_TASKS = 0x1000;
+    
+    private static final VarHandle MAILBOX,
+                                   WAKE_TIME;
+    
+    static {
+        try {
+            MAILBOX = MethodHandles.lookup().findVarHandle(NotSoTinySimulator.class, "mailbox", int.class);
+            WAKE_TIME = MethodHandles.lookup().findVarHandle(NotSoTinySimulator.class, "wakeTime", long.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
     // Vectors for interrupts fired by the processor
     private static final byte VECTOR_GENERAL_PROTECTION_FAULT = 0x08,
                               VECTOR_MEMORY_PROTECTION_FAULT = 0x09,
@@ -56,18 +118,73 @@ public class NotSoTinySimulator {
                     pf_ii;  // In Interrupt
     
     // Other State
-    private boolean halted,
-                    pendingExternalInterrupt,
+    private volatile boolean halted;
+    
+    private boolean pendingExternalInterrupt,
                     handlingException;
     
     private InstructionDescriptor cid; // Current Instruction Descriptor
     
     private byte externalInterruptVector;
     
+    // ALU outputs other than the result
+    private int aluFlags,
+                aluRemainder;
+    
     // Instruction Readahead Buffer
     private int previousIP;
     private byte[] fetchBuffer;
     
+    // Instruction Cache
+    private InstructionCache icache;
+    private int cacheIndex; // entry of the current instruction
+    private Opcode fetchedOpcode;
+    
+    // Basic Blocks
+    private static final int BLOCK_COUNT = 1024,
+                             BLOCK_MASK = BLOCK_COUNT - 1;
+    
+    private static final int JIT_THRESHOLD = 256; // executions before a block is compiled
+    
+    public static final int INTERRUPT_INTERVAL = 1000; // instructions between interrupt controller checks in run()
+    
+    private BasicBlock[] blocks;
+    private BasicBlock previousBlock, // last block to run to completion, for linking
+                       currentBlock;
+    private int blockIndex, // index of the current instruction in currentBlock
+                blockCodeWrites; // icache code write count when the current block was last checked
+    
+    private BlockCompiler compiler;
+    
+    // Handler tables, indexed by unsigned opcode
+    private InstructionHandler[] decodeHandlers,
+                                 executeHandlers;
+    
+    // Timing, null when disabled
+    private TimingModel timing;
+    private long cycles;
+    private boolean executing; // true while in step() or stepBlock(), so that accesses by others aren't counted
+    
+    // run()
+    private InterruptController pic;    // stepped by run(), null if none
+    private int[] breakpoints;
+    private long instructionCount;
+    
+    // Record/replay, null if neither
+    private EventJournal journal;
+    
+    // Requests from other threads
+    private int mailbox; // through MAILBOX
+    private ConcurrentLinkedQueue<Runnable> safePointTasks;
+    private volatile Snapshot snapshot;
+    
+    // Idling
+    private volatile Thread idleThread; // thread parked in idle(), or null
+    private long wakeTime;              // through WAKE_TIME, when the first wake() of an idle period was called
+    private volatile long wakeups,
+                          wakeupNanos,
+                          maxWakeupNanos;
+    
     /**
      * Create a simulator instance with the given starting IP
      */
@@ -99,10 +216,50 @@ public class NotSoTinySimulator {
         this.pendingExternalInterrupt = false;
         this.handlingException = false;
         this.externalInterruptVector = 0;
+        this.aluFlags = 0;
+        this.aluRemainder = 0;
         this.cid = new InstructionDescriptor();
         
         this.previousIP = this.reg_ip;
-        this.fetchBuffer = new byte[8];
+        this.fetchBuffer = new byte[InstructionCache.FETCH_SIZE];
+        
+        this.icache = new InstructionCache();
+        this.cacheIndex = 0;
+        this.memory.setWriteListener(this.icache);
+        this.fetchedOpcode = null;
+        
+        this.blocks = new BasicBlock[BLOCK_COUNT];
+        this.previousBlock = null;
+        this.currentBlock = null;
+        this.blockIndex = 0;
+        this.blockCodeWrites = 0;
+        this.compiler = new BlockCompiler(MethodHandles.lookup());
+        
+        this.decodeHandlers = new InstructionHandler[256];
+        this.executeHandlers = new InstructionHandler[256];
+        
+        for(Opcode op : Opcode.values()) {
+            this.decodeHandlers[op.op & 0xFF] = getDecodeHandler(op.dgroup);
+            this.executeHandlers[op.op & 0xFF] = getExecuteHandler(op.egroup);
+        }
+        
+        this.timing = null;
+        this.cycles = 0;
+        this.executing = false;
+        
+        this.pic = null;
+        this.breakpoints = new int[0];
+        this.instructionCount = 0;
+        
+        this.mailbox = 0;
+        this.safePointTasks = new ConcurrentLinkedQueue<>();
+        this.snapshot = takeSnapshot();
+        
+        this.idleThread = null;
+        this.wakeTime = 0;
+        this.wakeups = 0;
+        this.wakeupNanos = 0;
+        this.maxWakeupNanos = 0;
     }
     
     /**
@@ -115,284 +272,912 @@ public class NotSoTinySimulator {
     /**
      * Execute 1 instruction.
      */
-    public synchronized void step() {
+    public void step() {
         this.handlingException = false;
         
-        synchronized(this.memory) {
+        if((int) MAILBOX.getAcquire(this) != 0) {
+            takeMail();
+        }
+        
+        if(this.journal != null) {
+            replayInterrupt(this.instructionCount);
+        }
+        
+        this.executing = true;
+        
+        // Check interrupts
+        if(this.pendingExternalInterrupt) {
+            takeExternalInterrupt(this.instructionCount);
+        } else {
+            runInstruction();
+        }
+        
+        this.instructionCount++;
+        this.executing = false;
+    }
+    
+    /**
+     * Steps the interrupt controller, if set, then executes 1 instruction. While replaying, the controller's sources are
+     * polled but its requests aren't fired, as in run().
+     */
+    public void stepWithInterrupts() {
+        if(this.pic != null) {
+            stepInterruptController();
+        }
+        
+        step();
+    }
+    
+    /**
+     * Fetches, decodes, and executes the instruction at IP
+     */
+    private void runInstruction() {
+        try {
+            runFetch();
+            runCachedDecode();
+            
+            int next = this.reg_ip;
+            runExecute();
+            
+            if(this.timing != null) countCycles(next);
+        } catch(GPFException | UnprivilegedAccessException | DecodingException | ArithmeticException | NonexistentAccessException e) {
+            runException(e);
+        }
+        
+        this.previousBlock = null;
+    }
+    
+    /**
+     * Execute instructions a basic block at a time until the budget is used up or the processor halts.
+     * External interrupts are only taken between blocks, so one can wait up to BasicBlock.MAX_LENGTH instructions.
+     * Requests waiting in the interrupt controller, if set, are fired between blocks, and its sources are polled at
+     * their simulated deadlines. A halt waits for the earliest simulated deadline, if there is one.
+     * 
+     * @param budget Maximum number of instructions to execute
+     * @return Number of instructions executed, counting interrupts as step() does
+     */
+    public int stepBlock(int budget) {
+        this.handlingException = false;
+        long start = this.instructionCount,
+             end = start + budget;
+        boolean skipped = false;
+        
+        this.executing = true;
+        
+        while(this.instructionCount < end) {
+            if(this.pic != null) {
+                if(this.instructionCount >= this.pic.getPollCount()) {
+                    stepInterruptController();
+                } else if(this.pic.hasRequests() && !isReplaying()) {
+                    this.pic.fire(this);
+                }
+            }
+            
+            if((int) MAILBOX.getAcquire(this) != 0) {
+                takeMail();
+            }
+            
+            if(this.journal != null) {
+                replayInterrupt(this.instructionCount);
+            }
+            
+            if(this.halted) {
+                if(!skipped && skipHalt()) {
+                    skipped = true;
+                    continue;
+                }
+                
+                break;
+            }
+            
+            skipped = false;
+            
             // Check interrupts
             if(this.pendingExternalInterrupt) {
-                this.pendingExternalInterrupt = false;
-                runInterrupt(this.externalInterruptVector);
-                return;
+                takeExternalInterrupt(this.instructionCount);
+                this.instructionCount++;
+                continue;
             }
             
-            // Do the instruction
-            try {
-                runFetch();
-                runDecode();
-                runExecute();
-            } catch(GPFException e) {
-                this.reg_ip = this.previousIP;
-                this.handlingException = true;
-                
-                System.out.printf("General Protection Fault: %08X\n", this.reg_ip);
-                if(e.getMessage() != null) System.out.println(e.getMessage());
-                
-                runInterrupt(VECTOR_GENERAL_PROTECTION_FAULT);
-            } catch(UnprivilegedAccessException e) {
-                this.reg_ip = this.previousIP;
-                this.handlingException = true;
-                
-                System.out.printf("Memory Protection Fault: %08X\n", this.reg_ip);
-                if(e.getMessage() != null) System.out.println(e.getMessage());
-                
-                runInterrupt(VECTOR_MEMORY_PROTECTION_FAULT, e.getAddress());
-            } catch(DecodingException e) {
-                this.reg_ip = this.previousIP;
-                this.handlingException = true;
-                
-                System.out.printf("Decoding Error: %08X\n", this.reg_ip);
-                if(e.getMessage() != null) System.out.println(e.getMessage());
-                
-                runInterrupt(VECTOR_DECODING_ERROR);
-            } catch(ArithmeticException e) {
-                this.reg_ip = this.previousIP;
-                this.handlingException = true;
+            // Do the block
+            int blockBudget = (int) Math.min(end - this.instructionCount, getDeadline() - this.instructionCount);
+            BasicBlock block = findBlock();
+            
+            if(block == null) {
+                this.instructionCount += recordBlock(blockBudget);
+            } else {
+                this.instructionCount += runBlock(block, blockBudget);
+            }
+        }
+        
+        this.executing = false;
+        
+        return (int)(this.instructionCount - start);
+    }
+    
+    /**
+     * Runs until the processor halts, an exception or external interrupt is entered, a breakpoint is reached, or the
+     * budget is used up. Steps the interrupt controller, if set, every INTERRUPT_INTERVAL instructions and at its sources'
+     * simulated deadlines, and fires its requests between blocks. A halt waits for the earliest simulated deadline, if
+     * there is one. Runs a basic block at a time unless breakpoints are set.
+     * 
+     * @param maxInstructions Maximum number of instructions to execute, counting interrupts as step() does
+     * @return Why it stopped
+     */
+    public StopReason run(long maxInstructions) {
+        return runUntil(maxInstructions, null);
+    }
+    
+    /**
+     * As run(), also stopping when the condition holds. The condition is tested before every instruction and interrupt
+     * entry, so a run with a condition goes an instruction at a time and steps the interrupt controller every
+     * instruction.
+     * 
+     * A breakpoint stops the run after the instruction reaching it, so running again continues from the breakpoint.
+     * 
+     * @param maxInstructions Maximum number of instructions to execute, counting interrupts as step() does
+     * @param condition Tested before each instruction, or null
+     * @return Why it stopped
+     */
+    public StopReason runUntil(long maxInstructions, StopCondition condition) {
+        long end = (maxInstructions > Long.MAX_VALUE - this.instructionCount) ? Long.MAX_VALUE : this.instructionCount + maxInstructions;
+        
+        this.executing = true;
+        StopReason reason = runLoop(end, condition, condition != null || this.breakpoints.length != 0);
+        this.executing = false;
+        
+        return reason;
+    }
+    
+    /**
+     * Main loop of runUntil()
+     * 
+     * @param end Instruction count to stop at
+     * @param condition
+     * @param single If true, run an instruction at a time
+     * @return
+     */
+    private StopReason runLoop(long end, StopCondition condition, boolean single) {
+        long nextInterruptCheck = this.instructionCount;
+        boolean skipped = false;
+        
+        while(true) {
+            if(this.instructionCount >= nextInterruptCheck || (this.pic != null && this.instructionCount >= this.pic.getPollCount())) {
+                if(this.pic != null) stepInterruptController();
+                nextInterruptCheck = this.instructionCount + (single ? 1 : INTERRUPT_INTERVAL);
+            } else if(this.pic != null && this.pic.hasRequests() && !isReplaying()) {
+                this.pic.fire(this);
+            }
+            
+            if((int) MAILBOX.getAcquire(this) != 0) {
+                takeMail();
+            }
+            
+            if(this.journal != null) {
+                replayInterrupt(this.instructionCount);
+            }
+            
+            if(this.halted) {
+                if(!skipped && skipHalt()) {
+                    skipped = true;
+                    continue;
+                }
                 
-                System.out.printf("Division Error: %08X\n", this.reg_ip);
-                if(e.getMessage() != null) System.out.println(e.getMessage());
+                return StopReason.HALTED;
+            }
+            
+            skipped = false;
+            
+            if(this.instructionCount >= end) {
+                return StopReason.BUDGET;
+            } else if(condition != null && condition.shouldStop(this)) {
+                return StopReason.CONDITION;
+            }
+            
+            this.handlingException = false;
+            
+            // Check interrupts
+            if(this.pendingExternalInterrupt) {
+                takeExternalInterrupt(this.instructionCount);
+                this.instructionCount++;
+                return StopReason.INTERRUPT;
+            }
+            
+            if(single) {
+                runInstruction();
+                this.instructionCount++;
                 
-                runInterrupt(VECTOR_DIVISION_ERROR);
-            } catch(NonexistentAccessException e) {
-                this.reg_ip = this.previousIP;
-                this.handlingException = true;
+                if(this.handlingException) {
+                    return StopReason.FAULT;
+                } else if(isBreakpoint(this.reg_ip)) {
+                    return StopReason.BREAKPOINT;
+                }
+            } else {
+                int budget = (int)(Math.min(Math.min(end, nextInterruptCheck), getDeadline()) - this.instructionCount);
+                BasicBlock block = findBlock();
                 
-                System.out.printf("Memory Error: %08X\n", this.reg_ip);
-                if(e.getMessage() != null) System.out.println(e.getMessage());
+                if(block == null) {
+                    this.instructionCount += recordBlock(budget);
+                } else {
+                    this.instructionCount += runBlock(block, budget);
+                }
                 
-                runInterrupt(VECTOR_MEMORY_ERROR, e.getAddress());
+                if(this.handlingException) {
+                    return StopReason.FAULT;
+                }
             }
         }
     }
     
+    /**
+     * @return The next instruction count a block must stop at for the journal's next interrupt or the interrupt
+     * controller's next simulated deadline, or Long.MAX_VALUE
+     */
+    private long getDeadline() {
+        long deadline = Long.MAX_VALUE;
+        
+        if(this.journal != null) {
+            deadline = this.journal.getNextInterruptCount();
+        }
+        
+        if(this.pic != null) {
+            long poll = this.pic.getPollCount();
+            
+            // sources polled at every check don't limit blocks
+            if(poll > this.instructionCount) {
+                deadline = Math.min(deadline, poll);
+            }
+        }
+        
+        return deadline;
+    }
+    
+    /**
+     * Simulated time doesn't pass while halted, so makes the interrupt controller's earliest simulated deadline due,
+     * for it to wake the processor at the next step
+     * 
+     * @return true if there was a deadline
+     */
+    private boolean skipHalt() {
+        return this.pic != null && this.pic.skipAhead();
+    }
+    
+    /**
+     * Steps the interrupt controller. While replaying, its sources are still polled so they keep the state they had
+     * when recording, but requests aren't fired, as the journal's interrupts replace them. Requests left set are
+     * visible to the guest only through the journaled reads of the controller.
+     */
+    private void stepInterruptController() {
+        if(isReplaying()) {
+            this.pic.poll(this);
+        } else {
+            this.pic.step(this);
+        }
+    }
+    
+    /**
+     * @return true if interrupts come from the journal rather than the interrupt controller
+     */
+    private boolean isReplaying() {
+        return this.journal != null && this.journal.isReplaying();
+    }
+    
+    /**
+     * Enters the pending external interrupt, journaling it if recording
+     * 
+     * @param count Instruction count it's taken at
+     */
+    private void takeExternalInterrupt(long count) {
+        this.pendingExternalInterrupt = false;
+        this.previousBlock = null;
+        
+        if(this.journal != null && this.journal.getMode() == EventJournal.Mode.RECORD) {
+            this.journal.recordInterrupt(count, this.externalInterruptVector);
+        }
+        
+        runInterrupt(this.externalInterruptVector);
+    }
+    
+    /**
+     * Makes the journal's next interrupt pending if it's due
+     * 
+     * @param count Current instruction count
+     */
+    private void replayInterrupt(long count) {
+        if(this.journal.getNextInterruptCount() == count) {
+            this.halted = false;
+            this.pendingExternalInterrupt = true;
+            this.externalInterruptVector = this.journal.takeInterrupt();
+        }
+    }
+    
     /*
-     * Execution Stages
+     * Breakpoints. Thread running the simulator only.
      */
     
     /**
-     * Update the Instruction Readahead Buffer
-     * @throws UnprivilegedAccessException
+     * Adds a breakpoint for run()
+     * 
+     * @param address
      */
-    private void runFetch() throws UnprivilegedAccessException, NonexistentAccessException {
-        byte[] readArr;
-        int delta = this.reg_ip - this.previousIP;
-        this.previousIP = this.reg_ip;
+    public void addBreakpoint(int address) {
+        if(!isBreakpoint(address)) {
+            this.breakpoints = Arrays.copyOf(this.breakpoints, this.breakpoints.length + 1);
+            this.breakpoints[this.breakpoints.length - 1] = address;
+        }
+    }
+    
+    /**
+     * Removes a breakpoint
+     * 
+     * @param address
+     */
+    public void removeBreakpoint(int address) {
+        this.breakpoints = Arrays.stream(this.breakpoints).filter(bp -> bp != address).toArray();
+    }
+    
+    /**
+     * Removes all breakpoints
+     */
+    public void clearBreakpoints() {
+        this.breakpoints = new int[0];
+    }
+    
+    /**
+     * @param address
+     * @return true if there is a breakpoint at the address
+     */
+    public boolean isBreakpoint(int address) {
+        for(int bp : this.breakpoints) {
+            if(bp == address) return true;
+        }
+        
+        return false;
+    }
+    
+    /*
+     * Mailbox
+     */
+    
+    /**
+     * Sets and clears mailbox bits
+     * 
+     * @param set
+     * @param clear
+     */
+    private void post(int set, int clear) {
+        int mail;
         
-        // TODO: Test if arraycopy might be faster than manual assignment
+        do {
+            mail = (int) MAILBOX.getVolatile(this);
+        } while(!MAILBOX.compareAndSet(this, mail, (mail & ~clear) | set));
         
-        // Move fetch buffer to match current IP, and fill gaps
-        switch(delta) {
-            case -7:
-                this.fetchBuffer[7] = this.fetchBuffer[0];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                this.fetchBuffer[2] = readArr[2];
-                this.fetchBuffer[3] = readArr[3];
-                
-                readArr = this.memory.read3ByteArray(this.reg_ip + 4, this.pf_pv);
-                this.fetchBuffer[4] = readArr[0];
-                this.fetchBuffer[5] = readArr[1];
-                this.fetchBuffer[6] = readArr[2];
-                break;
+        wake();
+    }
+    
+    /**
+     * Posts an interrupt unless one is already waiting in the mailbox, which it would otherwise replace
+     * 
+     * @param vector
+     * @return true if the interrupt was posted
+     */
+    private boolean postInterrupt(byte vector) {
+        int mail;
+        
+        do {
+            mail = (int) MAILBOX.getVolatile(this);
             
-            case -6:
-                this.fetchBuffer[7] = this.fetchBuffer[1];
-                this.fetchBuffer[6] = this.fetchBuffer[0];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                this.fetchBuffer[2] = readArr[2];
-                this.fetchBuffer[3] = readArr[3];
-                
-                readArr = this.memory.read2ByteArray(this.reg_ip + 4, this.pf_pv);
-                this.fetchBuffer[4] = readArr[0];
-                this.fetchBuffer[5] = readArr[1];
-                break;
-                
-            case -5:
-                this.fetchBuffer[7] = this.fetchBuffer[2];
-                this.fetchBuffer[6] = this.fetchBuffer[1];
-                this.fetchBuffer[5] = this.fetchBuffer[0];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                this.fetchBuffer[2] = readArr[2];
-                this.fetchBuffer[3] = readArr[3];
-                
-                this.fetchBuffer[4] = this.memory.readByte(reg_ip + 4, this.pf_pv);
-                break;
-                
-            case -4:
-                this.fetchBuffer[7] = this.fetchBuffer[3];
-                this.fetchBuffer[6] = this.fetchBuffer[2];
-                this.fetchBuffer[5] = this.fetchBuffer[1];
-                this.fetchBuffer[4] = this.fetchBuffer[0];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                this.fetchBuffer[2] = readArr[2];
-                this.fetchBuffer[3] = readArr[3];
-                break;
-                
-            case -3:
-                this.fetchBuffer[7] = this.fetchBuffer[4];
-                this.fetchBuffer[6] = this.fetchBuffer[3];
-                this.fetchBuffer[5] = this.fetchBuffer[2];
-                this.fetchBuffer[4] = this.fetchBuffer[1];
-                this.fetchBuffer[3] = this.fetchBuffer[0];
-                
-                readArr = this.memory.read3ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                this.fetchBuffer[2] = readArr[2];
-                break;
-            
-            case -2:
-                this.fetchBuffer[7] = this.fetchBuffer[5];
-                this.fetchBuffer[6] = this.fetchBuffer[4];
-                this.fetchBuffer[5] = this.fetchBuffer[3];
-                this.fetchBuffer[4] = this.fetchBuffer[2];
-                this.fetchBuffer[3] = this.fetchBuffer[1];
-                this.fetchBuffer[2] = this.fetchBuffer[0];
-                
-                readArr = this.memory.read2ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                break;
-                
-            case -1:
-                this.fetchBuffer[7] = this.fetchBuffer[6];
-                this.fetchBuffer[6] = this.fetchBuffer[5];
-                this.fetchBuffer[5] = this.fetchBuffer[4];
-                this.fetchBuffer[4] = this.fetchBuffer[3];
-                this.fetchBuffer[3] = this.fetchBuffer[2];
-                this.fetchBuffer[2] = this.fetchBuffer[1];
-                this.fetchBuffer[1] = this.fetchBuffer[0];
-                this.fetchBuffer[0] = this.memory.readByte(this.reg_ip + 0, this.pf_pv);
-                break;
-            
-            case 1:
-                this.fetchBuffer[0] = this.fetchBuffer[1];
-                this.fetchBuffer[1] = this.fetchBuffer[2];
-                this.fetchBuffer[2] = this.fetchBuffer[3];
-                this.fetchBuffer[3] = this.fetchBuffer[4];
-                this.fetchBuffer[4] = this.fetchBuffer[5];
-                this.fetchBuffer[5] = this.fetchBuffer[6];
-                this.fetchBuffer[6] = this.fetchBuffer[7];
-                this.fetchBuffer[7] = this.memory.readByte(this.reg_ip + 7, this.pf_pv);
-                break;
-                
-            case 2:
-                this.fetchBuffer[0] = this.fetchBuffer[2];
-                this.fetchBuffer[1] = this.fetchBuffer[3];
-                this.fetchBuffer[2] = this.fetchBuffer[4];
-                this.fetchBuffer[3] = this.fetchBuffer[5];
-                this.fetchBuffer[4] = this.fetchBuffer[6];
-                this.fetchBuffer[5] = this.fetchBuffer[7];
-                
-                readArr = this.memory.read2ByteArray(this.reg_ip + 6, this.pf_pv);
-                this.fetchBuffer[6] = readArr[0];
-                this.fetchBuffer[7] = readArr[1];
-                break;
+            if((mail & MAIL_INTERRUPT) != 0) {
+                return false;
+            }
+        } while(!MAILBOX.compareAndSet(this, mail, (mail & ~MAIL_VECTOR) | MAIL_INTERRUPT | (vector & MAIL_VECTOR)));
+        
+        wake();
+        return true;
+    }
+    
+    /**
+     * Handles everything in the mailbox. Interrupts are taken before halt requests, so that a halt isn't undone by an
+     * interrupt arriving at the same time; the interrupt stays pending until resumed. A posted interrupt is left in the
+     * mailbox while another is pending, rather than replacing it.
+     */
+    private void takeMail() {
+        int keep = this.pendingExternalInterrupt ? (MAIL_INTERRUPT | MAIL_VECTOR) : 0,
+            mail;
+        
+        do {
+            mail = (int) MAILBOX.getVolatile(this);
+        } while(!MAILBOX.compareAndSet(this, mail, mail & keep));
+        
+        mail &= ~keep;
+        
+        if((mail & MAIL_TASKS) != 0) {
+            Runnable task;
             
-            case 3:
-                this.fetchBuffer[0] = this.fetchBuffer[3];
-                this.fetchBuffer[1] = this.fetchBuffer[4];
-                this.fetchBuffer[2] = this.fetchBuffer[5];
-                this.fetchBuffer[3] = this.fetchBuffer[6];
-                this.fetchBuffer[4] = this.fetchBuffer[7];
-                
-                readArr = this.memory.read3ByteArray(this.reg_ip + 5, this.pf_pv);
-                this.fetchBuffer[5] = readArr[0];
-                this.fetchBuffer[6] = readArr[1];
-                this.fetchBuffer[7] = readArr[2];
-                break;
+            while((task = this.safePointTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        // while replaying, the journal's interrupts replace live ones
+        if((mail & MAIL_INTERRUPT) != 0 && !isReplaying()) {
+            this.halted = false;
+            this.pendingExternalInterrupt = true;
+            this.externalInterruptVector = (byte) mail;
+        }
+        
+        if((mail & MAIL_RESUME) != 0) {
+            this.halted = false;
+        }
+        
+        if((mail & MAIL_HALT) != 0) {
+            this.halted = true;
+        }
+        
+        if((mail & MAIL_SNAPSHOT) != 0) {
+            this.snapshot = takeSnapshot();
+        }
+    }
+    
+    /**
+     * Handles requests from other threads. For the thread running the simulator to call while it isn't stepping.
+     */
+    public void serviceMailbox() {
+        if((int) MAILBOX.getAcquire(this) != 0) {
+            takeMail();
+        }
+    }
+    
+    /**
+     * Runs a task on the thread running the simulator, at the next safe point or serviceMailbox(). Tasks may read and
+     * modify processor state and memory. Any thread.
+     * 
+     * @param task
+     */
+    public void runAtSafePoint(Runnable task) {
+        this.safePointTasks.add(task);
+        MAILBOX.getAndBitwiseOr(this, MAIL_TASKS);
+        wake();
+    }
+    
+    /**
+     * Halts the processor at the next safe point. Any thread.
+     */
+    public void requestHalt() {
+        post(MAIL_HALT, MAIL_RESUME);
+    }
+    
+    /**
+     * Un-halts the processor at the next safe point. Any thread.
+     */
+    public void requestResume() {
+        post(MAIL_RESUME, MAIL_HALT);
+    }
+    
+    /**
+     * Publishes a snapshot at the next safe point. Any thread.
+     */
+    public void requestSnapshot() {
+        MAILBOX.getAndBitwiseOr(this, MAIL_SNAPSHOT);
+        wake();
+    }
+    
+    /*
+     * Idling
+     */
+    
+    /**
+     * Parks the thread running the simulator while the processor is halted, until mail arrives, the interrupt
+     * controller has a request it can fire, the deadline passes, or the thread is interrupted. Host time interrupt
+     * sources are polled at their deadlines. Returns immediately if the processor isn't halted or a replayed interrupt
+     * is due. The caller services the mailbox afterwards.
+     * 
+     * @param deadline System.nanoTime() to return by, or Long.MAX_VALUE
+     */
+    public void idle(long deadline) {
+        idle(deadline, false);
+    }
+    
+    /**
+     * As idle(), or while the processor is held stopped, such as by a debugger, parks until mail arrives, the deadline
+     * passes, or the thread is interrupted, whether or not the processor is halted. Interrupt requests stay in the
+     * interrupt controller rather than being fired.
+     * 
+     * @param deadline System.nanoTime() to return by, or Long.MAX_VALUE
+     * @param stopped true if the processor is held stopped
+     */
+    public void idle(long deadline, boolean stopped) {
+        if(this.journal != null && !stopped) {
+            replayInterrupt(this.instructionCount);
+        }
+        
+        this.idleThread = Thread.currentThread();
+        WAKE_TIME.setVolatile(this, 0l);
+        
+        // idleThread is published before checking for work, so a request made after the check unparks us
+        while((stopped || this.halted) && !Thread.currentThread().isInterrupted()) {
+            if(this.pic != null && !stopped) {
+                stepInterruptController();
+            }
             
-            case 4:
-                this.fetchBuffer[0] = this.fetchBuffer[4];
-                this.fetchBuffer[1] = this.fetchBuffer[5];
-                this.fetchBuffer[2] = this.fetchBuffer[6];
-                this.fetchBuffer[3] = this.fetchBuffer[7];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 4, this.pf_pv);
-                this.fetchBuffer[4] = readArr[0];
-                this.fetchBuffer[5] = readArr[1];
-                this.fetchBuffer[6] = readArr[2];
-                this.fetchBuffer[7] = readArr[3];
+            if((int) MAILBOX.getAcquire(this) != 0) {
                 break;
+            }
             
-            case 5:
-                this.fetchBuffer[0] = this.fetchBuffer[5];
-                this.fetchBuffer[1] = this.fetchBuffer[6];
-                this.fetchBuffer[2] = this.fetchBuffer[7];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 3, this.pf_pv);
-                this.fetchBuffer[3] = readArr[0];
-                this.fetchBuffer[4] = readArr[1];
-                this.fetchBuffer[5] = readArr[2];
-                this.fetchBuffer[6] = readArr[3];
-                
-                this.fetchBuffer[7] = this.memory.readByte(reg_ip + 7, this.pf_pv);
-                break;
-                
-            case 6:
-                this.fetchBuffer[0] = this.fetchBuffer[6];
-                this.fetchBuffer[1] = this.fetchBuffer[7];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 2, this.pf_pv);
-                this.fetchBuffer[2] = readArr[0];
-                this.fetchBuffer[3] = readArr[1];
-                this.fetchBuffer[4] = readArr[2];
-                this.fetchBuffer[5] = readArr[3];
-                
-                readArr = this.memory.read2ByteArray(this.reg_ip + 6, this.pf_pv);
-                this.fetchBuffer[6] = readArr[0];
-                this.fetchBuffer[7] = readArr[1];
+            long now = System.nanoTime(),
+                 remaining = deadline - now;
+            
+            if(remaining <= 0) {
                 break;
+            }
+            
+            if(this.pic != null && !stopped) {
+                remaining = Math.min(remaining, Math.max(0, this.pic.getHostDeadline() - now));
+            }
+            
+            LockSupport.parkNanos(this, remaining);
+        }
+        
+        this.idleThread = null;
+        
+        long requested = (long) WAKE_TIME.getAndSet(this, 0l);
+        
+        if(requested != 0) {
+            long latency = System.nanoTime() - requested;
+            
+            this.wakeups++;
+            this.wakeupNanos += latency;
+            if(latency > this.maxWakeupNanos) this.maxWakeupNanos = latency;
+        }
+    }
+    
+    /**
+     * Unparks the thread running the simulator if it's in idle(). Called by the mailbox and the interrupt controller.
+     * Any thread.
+     */
+    public void wake() {
+        Thread t = this.idleThread;
+        
+        if(t != null && t != Thread.currentThread()) {
+            WAKE_TIME.compareAndSet(this, 0l, System.nanoTime());
+            LockSupport.unpark(t);
+        }
+    }
+    
+    /**
+     * @return Average time from wake() to the idle thread running, in nanoseconds. Any thread.
+     */
+    public double getAverageWakeupNanos() {
+        long n = this.wakeups;
+        return (n == 0) ? 0 : (double) this.wakeupNanos / n;
+    }
+    
+    public long getWakeups() { return this.wakeups; }
+    public long getMaxWakeupNanos() { return this.maxWakeupNanos; }
+    
+    /**
+     * @return The most recently published snapshot. Any thread.
+     */
+    public Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+    
+    /**
+     * @return The current processor state
+     */
+    public Snapshot takeSnapshot() {
+        return new Snapshot(this.reg_a, this.reg_b, this.reg_c, this.reg_d, this.reg_i, this.reg_j, this.reg_k, this.reg_l, this.reg_f, getRegPF(),
+                            this.reg_xp, this.reg_yp, this.reg_bp, this.reg_sp, this.reg_ip, this.reg_isp, this.halted, this.cycles);
+    }
+    
+    /**
+     * Rolls back the faulting instruction and fires the interrupt for the exception
+     * 
+     * @param e
+     */
+    private void runException(Exception e) {
+        this.reg_ip = this.previousIP;
+        this.handlingException = true;
+        
+        String name;
+        byte vector;
+        int vecBP = this.reg_bp;
+        
+        switch(e) {
+            case GPFException gpf -> {
+                name = "General Protection Fault";
+                vector = VECTOR_GENERAL_PROTECTION_FAULT;
+            }
+            
+            case UnprivilegedAccessException uae -> {
+                name = "Memory Protection Fault";
+                vector = VECTOR_MEMORY_PROTECTION_FAULT;
+                vecBP = uae.getAddress();
+            }
+            
+            case DecodingException de -> {
+                name = "Decoding Error";
+                vector = VECTOR_DECODING_ERROR;
+            }
+            
+            case ArithmeticException ae -> {
+                name = "Division Error";
+                vector = VECTOR_DIVISION_ERROR;
+            }
+            
+            case NonexistentAccessException nae -> {
+                name = "Memory Error";
+                vector = VECTOR_MEMORY_ERROR;
+                vecBP = nae.getAddress();
+            }
+            
+            default -> throw new IllegalStateException("Unexpected exception", e);
+        }
+        
+        System.out.printf("%s: %08X\n", name, this.reg_ip);
+        if(e.getMessage() != null) System.out.println(e.getMessage());
+        
+        runInterrupt(vector, vecBP);
+    }
+    
+    /*
+     * Basic Blocks
+     */
+    
+    /**
+     * Finds the block starting at IP, following links from the previous block where possible
+     * 
+     * @return The block, or null if it needs to be recorded
+     */
+    private BasicBlock findBlock() {
+        if(this.previousBlock != null) {
+            BasicBlock block = this.previousBlock.getSuccessor(this.reg_ip, this.pf_pv, this.icache);
+            
+            if(block != null) return block;
+        }
+        
+        BasicBlock block = this.blocks[this.reg_ip & BLOCK_MASK];
+        
+        if(block == null || block.startIP != this.reg_ip || !block.isUsable(this.pf_pv, this.icache)) {
+            return null;
+        }
+        
+        if(this.previousBlock != null) this.previousBlock.link(block);
+        return block;
+    }
+    
+    /**
+     * @param ip
+     * @return The block recorded at ip, or null if there isn't one
+     */
+    BasicBlock getBlock(int ip) {
+        BasicBlock block = this.blocks[ip & BLOCK_MASK];
+        
+        return (block != null && block.startIP == ip) ? block : null;
+    }
+    
+    /**
+     * Runs a recorded block, compiling it once it gets hot
+     * 
+     * @param block
+     * @param budget Maximum number of instructions to execute
+     * @return Number of instructions executed
+     */
+    private int runBlock(BasicBlock block, int budget) {
+        int length = block.getLength(),
+            executed = 0;
+        
+        this.previousBlock = null;
+        this.currentBlock = block;
+        this.blockCodeWrites = this.icache.getCodeWrites();
+        
+        if(block.countExecution() >= JIT_THRESHOLD && !block.isCompileAttempted()) {
+            compileBlock(block);
+        }
+        
+        try {
+            CompiledBlock compiled = block.getCompiled();
+            
+            // compiled blocks don't count cycles
+            if(compiled != null && length <= budget && this.timing == null) {
+                executed = compiled.run(this);
+            } else {
+                while(executed < length && executed < budget) {
+                    if(runBlockInstruction(this.reg_ip, executed++)) {
+                        return executed;
+                    }
+                }
+            }
+        } catch(GPFException | UnprivilegedAccessException | DecodingException | ArithmeticException | NonexistentAccessException e) {
+            runException(e);
+            return this.blockIndex + 1;
+        }
+        
+        if(executed == length) this.previousBlock = block;
+        return executed;
+    }
+    
+    /**
+     * Runs one instruction of the current block. Also called by compiled blocks for instructions they don't translate.
+     * 
+     * @param ip IP of the instruction
+     * @param index Index of the instruction in the block
+     * @return true if the instruction did anything the rest of the block doesn't expect
+     */
+    private boolean runBlockInstruction(int ip, int index) throws UnprivilegedAccessException, NonexistentAccessException, GPFException, DecodingException {
+        this.blockIndex = index;
+        this.reg_ip = ip;
+        this.previousIP = ip;
+        
+        this.currentBlock.copyFetchWindow(ip, this.fetchBuffer);
+        loadDecode(this.currentBlock.getDecoded(index));
+        int next = this.reg_ip;
+        runExecute();
+        
+        if(this.timing != null) countCycles(next);
+        
+        return this.reg_ip != next || this.pf_pv != this.currentBlock.privileged || this.halted || codeChanged(this.currentBlock);
+    }
+    
+    /**
+     * Checks whether a write has changed the code of a block since it was last checked
+     * 
+     * @param block
+     * @return true if the block is no longer current
+     */
+    private boolean codeChanged(BasicBlock block) {
+        int writes = this.icache.getCodeWrites();
+        
+        if(writes == this.blockCodeWrites) {
+            return false;
+        }
+        
+        // something hit code, but only the block's own pages matter
+        this.blockCodeWrites = writes;
+        return !block.isCurrent(this.icache);
+    }
+    
+    /**
+     * Compiles a block. Blocks that fail to compile are left to the interpreter.
+     * 
+     * @param block
+     */
+    private void compileBlock(BasicBlock block) {
+        try {
+            block.setCompiled(this.compiler.compile(block));
+        } catch(ReflectiveOperationException | LinkageError e) {
+            block.setCompiled(null);
+        }
+    }
+    
+    /**
+     * Executes instructions normally, recording them as a block
+     * 
+     * @param budget Maximum number of instructions to execute
+     * @return Number of instructions executed
+     */
+    private int recordBlock(int budget) {
+        BasicBlock block = new BasicBlock(this.reg_ip, this.pf_pv, this.icache);
+        BasicBlock previous = this.previousBlock;
+        boolean complete = false;
+        int executed = 0;
+        
+        this.previousBlock = null;
+        this.blockCodeWrites = this.icache.getCodeWrites();
+        
+        try {
+            while(executed < budget) {
+                runFetch();
+                runCachedDecode();
+                block.append(this.fetchBuffer, this.cid);
                 
-            case 7:
-                this.fetchBuffer[0] = this.fetchBuffer[7];
+                int next = this.reg_ip;
+                runExecute();
+                executed++;
                 
-                readArr = this.memory.read4ByteArray(this.reg_ip + 1, this.pf_pv);
-                this.fetchBuffer[1] = readArr[0];
-                this.fetchBuffer[2] = readArr[1];
-                this.fetchBuffer[3] = readArr[2];
-                this.fetchBuffer[4] = readArr[3];
+                if(this.timing != null) countCycles(next);
                 
-                readArr = this.memory.read3ByteArray(this.reg_ip + 5, this.pf_pv);
-                this.fetchBuffer[5] = readArr[0];
-                this.fetchBuffer[6] = readArr[1];
-                this.fetchBuffer[7] = readArr[2];
-                break;
+                if(this.pf_pv != block.privileged || this.halted || codeChanged(block)) {
+                    // Can't be replayed past this point
+                    complete = this.reg_ip == next;
+                    break;
+                } else if(this.reg_ip != next || BasicBlock.endsBlock(this.cid.opcode) || block.getLength() == BasicBlock.MAX_LENGTH) {
+                    complete = true;
+                    break;
+                }
+            }
+        } catch(GPFException | UnprivilegedAccessException | DecodingException | ArithmeticException | NonexistentAccessException e) {
+            runException(e);
+            return executed + 1;
+        }
+        
+        // Blocks cut short by the budget would end early every time they ran
+        if(complete && block.isCurrent(this.icache)) {
+            block.finish();
+            this.blocks[block.startIP & BLOCK_MASK] = block;
             
-            default:
-                readArr = this.memory.read4ByteArray(this.reg_ip + 0, this.pf_pv);
-                this.fetchBuffer[0] = readArr[0];
-                this.fetchBuffer[1] = readArr[1];
-                this.fetchBuffer[2] = readArr[2];
-                this.fetchBuffer[3] = readArr[3];
-                
-                readArr = this.memory.read4ByteArray(this.reg_ip + 4, this.pf_pv);
-                this.fetchBuffer[4] = readArr[0];
-                this.fetchBuffer[5] = readArr[1];
-                this.fetchBuffer[6] = readArr[2];
-                this.fetchBuffer[7] = readArr[3];
+            if(previous != null) previous.link(block);
+            this.previousBlock = block;
         }
+        
+        return executed;
+    }
+    
+    /*
+     * Timing
+     */
+    
+    /**
+     * Sets the timing model used to count cycles. Compiled blocks don't count cycles, so they aren't used while a
+     * model is set.
+     * 
+     * @param model Timing model, or null to disable timing
+     */
+    public void setTimingModel(TimingModel model) {
+        this.timing = model;
+        this.memory.setAccessListener((model == null) ? null : this::countMemoryCycles);
+    }
+    
+    /**
+     * Adds the cycles of the instruction just executed
+     * 
+     * @param next IP following the instruction, to detect control flow changes
+     */
+    private void countCycles(int next) {
+        this.cycles += this.timing.getInstructionCycles(this.cid.opcode, this.cid.instructionSize);
+        
+        if(this.reg_ip != next) {
+            this.cycles += this.timing.getBranchPenalty(this.cid.opcode);
+        }
+    }
+    
+    /**
+     * Adds the cycles of a data memory access made by the simulator. Instruction fetches read in bulk, which isn't
+     * reported.
+     * 
+     * @param segment
+     * @param address
+     * @param size
+     * @param write
+     * @param cacheHit
+     */
+    private void countMemoryCycles(Segment segment, long address, int size, boolean write, boolean cacheHit) {
+        if(this.executing) this.cycles += this.timing.getMemoryCycles(segment, address, size, write, cacheHit);
+    }
+    
+    /*
+     * Execution Stages
+     */
+    
+    /**
+     * Update the Instruction Readahead Buffer
+     * @throws UnprivilegedAccessException
+     */
+    private void runFetch() throws UnprivilegedAccessException, NonexistentAccessException {
+        // Cached instructions don't need to touch memory
+        int index = this.icache.lookup(this.reg_ip, this.pf_pv);
+        
+        if(index != -1) {
+            this.icache.copyFetchWindow(index, this.fetchBuffer);
+            this.previousIP = this.reg_ip;
+            this.cacheIndex = index;
+            this.fetchedOpcode = this.icache.getOpcode(index);
+            return;
+        }
+        
+        // Misses read the whole window. Shifting the previous window would carry stale bytes into the cache if the
+        // code was modified since it was read.
+        this.previousIP = this.reg_ip;
+        
+        this.memory.readBytes(this.reg_ip + 0, this.fetchBuffer, 0, 4, this.pf_pv);
+        this.memory.readBytes(this.reg_ip + 4, this.fetchBuffer, 4, 4, this.pf_pv);
+        
+        this.cacheIndex = this.icache.fill(this.reg_ip, this.fetchBuffer, this.pf_pv);
+        this.fetchedOpcode = this.icache.getOpcode(this.cacheIndex);
     }
     
     /**
@@ -401,206 +1186,177 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException
      * @throws DecodingException
      */
-    private void runDecode() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
+    private void runDecode() throws UnprivilegedAccessException, NonexistentAccessException, GPFException, DecodingException {
         // Get opcode
-        this.cid.reset(Opcode.fromOp(this.fetchBuffer[0]));
+        this.cid.reset(this.fetchedOpcode);
         
         // Decode
-        switch(this.cid.opcode.dgroup) {
-            case NODECODE:
-                break;
-                
-            case RIM_NORMAL:
-                // Normal RIM
-                decodeRIM();
-                break;
-            
-            case RIM_PACKED:
-                // Packed RIM
+        this.decodeHandlers[this.fetchedOpcode.op & 0xFF].run();
+        
+        //System.out.printf("IP: %08X\n", this.reg_ip);
+        //this.cid.print();
+        this.reg_ip += this.cid.instructionSize;
+    }
+    
+    /**
+     * Decodes the fetched instruction, or repeats its decode from the instruction cache
+     * 
+     * @throws UnprivilegedAccessException
+     * @throws DecodingException
+     */
+    private void runCachedDecode() throws UnprivilegedAccessException, NonexistentAccessException, GPFException, DecodingException {
+        InstructionDescriptor decoded = this.icache.getDecoded(this.cacheIndex);
+        
+        if(decoded != null) {
+            loadDecode(decoded);
+        } else {
+            runDecode();
+            this.icache.setDecoded(this.cacheIndex, this.cid);
+        }
+    }
+    
+    /**
+     * Repeats a decode from its decoded form. Only the parts depending on registers and memory, BIO addresses and
+     * operand values, are computed again.
+     * 
+     * @param decoded
+     * @throws UnprivilegedAccessException
+     * @throws DecodingException
+     */
+    private void loadDecode(InstructionDescriptor decoded) throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
+        this.cid.copy(decoded);
+        
+        if(this.cid.sourceBIO != 0) {
+            this.cid.instructionSize = this.cid.sourceBIO;
+            this.cid.sourceOperand.address = decodeBIO();
+            this.cid.instructionSize = decoded.instructionSize;
+        } else if(this.cid.destinationBIO != 0) {
+            this.cid.instructionSize = this.cid.destinationBIO;
+            this.cid.destinationOperand.address = decodeBIO();
+            this.cid.instructionSize = decoded.instructionSize;
+        }
+        
+        if((this.cid.valueReads & InstructionDescriptor.READ_SOURCE) != 0) {
+            this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        } else if((this.cid.valueReads & InstructionDescriptor.SOURCE_ADDRESS) != 0) {
+            this.cid.sourceValue = this.cid.sourceDescriptor.address;
+        }
+        
+        if((this.cid.valueReads & InstructionDescriptor.READ_DESTINATION) != 0) {
+            this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        }
+        
+        this.reg_ip += this.cid.instructionSize;
+    }
+    
+    /**
+     * Reads the source operand's value during decode
+     */
+    private void readSourceValue() throws UnprivilegedAccessException, NonexistentAccessException {
+        this.cid.valueReads |= InstructionDescriptor.READ_SOURCE;
+        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+    }
+    
+    /**
+     * Reads the destination operand's value during decode
+     */
+    private void readDestinationValue() throws UnprivilegedAccessException, NonexistentAccessException {
+        this.cid.valueReads |= InstructionDescriptor.READ_DESTINATION;
+        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+    }
+    
+    /**
+     * Gets the decode handler for a decoding group
+     * 
+     * @param group
+     * @return
+     */
+    private InstructionHandler getDecodeHandler(DecodingGroup group) {
+        return switch(group) {
+            case NODECODE            -> () -> {};
+            case RIM_NORMAL          -> this::decodeRIM;
+            case RIM_PACKED          -> () -> {
                 this.cid.isPacked = true;
                 decodePackedRIM();
-                break;
-            
-            case RIM_WOD:
-                // Write-only destination RIM
-                decodeRIMNoDestRead();
-                break;
-                
-            case RIM_WOD_EI8:
-                // Write-only destination RIM with EI8
+            };
+            case RIM_WOD             -> this::decodeRIMNoDestRead;
+            case RIM_WOD_EI8         -> () -> {
                 this.cid.hasEI8 = true;
                 decodeRIMNoDestReadEI8();
-                break;
-                
-            case RIM_WIDEDST:
-                // Wide destination RIM
-                decodeRIMWideDest();
-                break;
-            
-            case RIM_WIDEDST_WOD:
-                // Wide write-only destination RIM
-                decodeRIMWideDestNoRead();
-                break;
-            
-            case RIM_PACKED_EI8:
-                // Packed RIM with EI8
+            };
+            case RIM_WIDEDST         -> this::decodeRIMWideDest;
+            case RIM_WIDEDST_WOD     -> this::decodeRIMWideDestNoRead;
+            case RIM_PACKED_EI8      -> () -> {
                 this.cid.hasEI8 = true;
                 this.cid.isPacked = true;
                 decodePackedRIMEI8();
-                break;
-                
-            case RIM_PACKED_WIDEDST:
-                // Packed wide destination RIM
+            };
+            case RIM_PACKED_WIDEDST  -> () -> {
                 this.cid.isPacked = true;
                 decodePackedRIMWideDest();
-                break;
-            
-            case RIM_WIDE:
-                // Wide source & wide destination RIM
-                decodeWideRIM();
-                break;
-                
-            case RIM_WIDE_WOD:
-                // Wide source & wide write-only destination RIM
-                decodeWideRIMNoDestRead();
-                break;
-                
-            case RIM_WIDE_WOD_EI8:
-                // Wide source & wide write-only destination RIM with EI8
+            };
+            case RIM_WIDE            -> this::decodeWideRIM;
+            case RIM_WIDE_WOD        -> this::decodeWideRIMNoDestRead;
+            case RIM_WIDE_WOD_EI8    -> () -> {
                 this.cid.hasEI8 = true;
                 decodeWideRIMNoDestReadEI8();
-                break;
-            
-            case RIM_WIDE_DO_WOD:
-                // Wide write-only destination only RIM
-                decodeRIMWideDestOnlyNoRead();
-                break;
-            
-            case RIM_SO:
-                // Source only RIM
-                decodeRIMSourceOnly();
-                break;
-                
-            case RIM_SO_EI8:
-                // Source only RIM with EI8
+            };
+            case RIM_WIDE_DO_WOD     -> this::decodeRIMWideDestOnlyNoRead;
+            case RIM_SO              -> this::decodeRIMSourceOnly;
+            case RIM_SO_EI8          -> () -> {
                 this.cid.hasEI8 = true;
                 decodeRIMSourceOnlyEI8();
-                break;
-            
-            case RIM_WIDE_SO:
-                // Wide source only RIM
-                decodeRIMWideSourceOnly();
-                break;
-            
-            case RIM_DO:
-                // Destination only RIM
-                decodeRIMDestOnly();
-                break;
-                
-            case RIM_WIDE_DO:
-                // Wide destination only RIM
-                decodeRIMWideDestOnly();
-                break;
-                
-            case RIM_WIDE_DO_EI8:
-                // WIde destination only RIM with EI8
+            };
+            case RIM_WIDE_SO         -> this::decodeRIMWideSourceOnly;
+            case RIM_DO              -> this::decodeRIMDestOnly;
+            case RIM_WIDE_DO         -> this::decodeRIMWideDestOnly;
+            case RIM_WIDE_DO_EI8     -> () -> {
                 this.cid.hasEI8 = true;
                 decodeRIMWideDestOnlyEI8();
-                break;
-                
-            case RIM_PACKED_DO:
-                // Packed destination only RIM
+            };
+            case RIM_PACKED_DO       -> () -> {
                 this.cid.isPacked = true;
                 decodePackedRIMDestOnly();
-                break;
-                
-            case RIM_DO_EI8:
-                // Destination only RIM with EI8 source
+            };
+            case RIM_DO_EI8          -> () -> {
                 this.cid.hasEI8 = true;
                 decodeRIMDestOnlyEI8();
-                break;
-            
-            case RIM_DO_WOD:
-                // Write-only destination only RIM
-                decodeRIMDestOnlyNoRead();
-                break;
-            
-            case RIM_LEA:
-                // kinda does its own thing
-                decodeLEA();
-                break;
-                
-            case RIM_R32S_WOD:
-                // 32-bit register source RIM
-                decodeRIMR32SourceNoDestRead();
-                break;
-            
-            case RIM_WIDE_SO_EI8:
-                // Wide register source only RIM with EI8
-                decodeRIMWideSourceOnlyEI8();
-                break;
-            
-            case RIM_WIDE_R32S_WOD:
-                // 32-bit register source wide RIM
-                decodeWideRIMR32SourceNoDestRead();
-                break;
-                
-            case RIM_DO_WOD_EI8:
-                // Register destination only RIM with EI8
+            };
+            case RIM_DO_WOD          -> this::decodeRIMDestOnlyNoRead;
+            case RIM_LEA             -> this::decodeLEA;
+            case RIM_R32S_WOD        -> this::decodeRIMR32SourceNoDestRead;
+            case RIM_WIDE_SO_EI8     -> this::decodeRIMWideSourceOnlyEI8;
+            case RIM_WIDE_R32S_WOD   -> this::decodeWideRIMR32SourceNoDestRead;
+            case RIM_DO_WOD_EI8      -> () -> {
                 this.cid.hasEI8 = true;
                 decodeRIMDestinationOnlyNoReadEI8();
-                break;
-            
-            case RIM_R32D:
-                // 32-bit register destination RIM
-                decodeRIMR32Destination();
-                break;
-            
-            case RIM_WIDE_DO_WOD_EI8:
-                // Wide register destination only RIM with EI8
-                decodeWideRIMDestinationOnlyNoReadEI8();
-                break;
-            
-            case RIM_WIDE_R32D:
-                // 32-bit register destination wide RIM
-                decodeWideRIMR32Destination();
-                break;
-            
-            case I8:
-                // i8 source only
-                this.cid.sourceValue = decodeOffset(1);
-                this.cid.sourceDescriptor = new LocationDescriptor(LocationType.IMMEDIATE, this.cid.sourceValue, LocationSize.BYTE);
-                break;
-                
-            case I8_EI8:
-                // i8 source only with EI8
+            };
+            case RIM_R32D            -> this::decodeRIMR32Destination;
+            case RIM_WIDE_DO_WOD_EI8 -> this::decodeWideRIMDestinationOnlyNoReadEI8;
+            case RIM_WIDE_R32D       -> this::decodeWideRIMR32Destination;
+            case I8                  -> () -> decodeImmediate(LocationSize.BYTE);
+            case I8_EI8              -> () -> {
                 this.cid.hasEI8 = true;
-                this.cid.sourceValue = decodeOffset(1);
-                this.cid.sourceDescriptor = new LocationDescriptor(LocationType.IMMEDIATE, this.cid.sourceValue, LocationSize.BYTE);
+                decodeImmediate(LocationSize.BYTE);
                 this.cid.i8Byte = this.fetchBuffer[this.cid.instructionSize++];
-                break;
-            
-            case I16:
-                // i16 source only
-                this.cid.sourceValue = decodeOffset(2);
-                this.cid.sourceDescriptor = new LocationDescriptor(LocationType.IMMEDIATE, this.cid.sourceValue, LocationSize.WORD);
-                break;
-                
-            case I32:
-                // i32 source only
-                this.cid.sourceValue = decodeOffset(4);
-                this.cid.sourceDescriptor = new LocationDescriptor(LocationType.IMMEDIATE, this.cid.sourceValue, LocationSize.DWORD);
-                break;
+            };
+            case I16                 -> () -> decodeImmediate(LocationSize.WORD);
+            case I32                 -> () -> decodeImmediate(LocationSize.DWORD);
             
-            case UNDEF:
-            default:
-                // Undefined opcode
-                throw new DecodingException();
-        }
-        
-        //System.out.printf("IP: %08X\n", this.reg_ip);
-        //this.cid.print();
-        this.reg_ip += this.cid.instructionSize;
+            // Undefined opcode
+            case UNDEF               -> () -> { throw new DecodingException(); };
+        };
+    }
+    
+    /**
+     * Decode an immediate-only source
+     * 
+     * @param size
+     * @throws DecodingException
+     */
+    private void decodeImmediate(LocationSize size) throws DecodingException {
+        this.cid.sourceValue = decodeOffset(size.bytes);
+        this.cid.sourceDescriptor = this.cid.sourceOperand.set(LocationType.IMMEDIATE, this.cid.sourceValue, size);
     }
     
     /**
@@ -610,7 +1366,7 @@ public class NotSoTinySimulator {
      */
     private void decodeRIM() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
         decodeRIMNoDestRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -659,7 +1415,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -701,7 +1457,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -754,7 +1510,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -764,7 +1520,7 @@ public class NotSoTinySimulator {
      */
     private void decodeRIMR32Destination() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
         decodeRIMR32DestinationNoDestRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -774,7 +1530,7 @@ public class NotSoTinySimulator {
      */
     private void decodeRIMWideDest() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
         decodeRIMWideDestNoRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -823,7 +1579,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -833,7 +1589,7 @@ public class NotSoTinySimulator {
      */
     private void decodeWideRIM() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
         decodeWideRIMNoDestRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -882,7 +1638,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -935,7 +1691,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -945,7 +1701,7 @@ public class NotSoTinySimulator {
      */
     private void decodeWideRIMR32Destination() throws UnprivilegedAccessException,NonexistentAccessException, DecodingException {
         decodeWideRIMR32DestinationNoRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -988,7 +1744,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -1031,7 +1787,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -1084,7 +1840,7 @@ public class NotSoTinySimulator {
             }
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
+        readSourceValue();
     }
     
     /**
@@ -1104,7 +1860,7 @@ public class NotSoTinySimulator {
      */
     private void decodeRIMDestOnly() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
         decodeRIMDestOnlyNoRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -1216,7 +1972,7 @@ public class NotSoTinySimulator {
      */
     private void decodeRIMWideDestOnly() throws UnprivilegedAccessException, NonexistentAccessException, DecodingException {
         decodeRIMWideDestOnlyNoRead();
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -1257,6 +2013,7 @@ public class NotSoTinySimulator {
             // rim is memory source
             this.cid.sourceDescriptor = decodeRimSourceField(LocationSize.WORD, rim);
             this.cid.sourceValue = this.cid.sourceDescriptor.address;
+            this.cid.valueReads |= InstructionDescriptor.SOURCE_ADDRESS;
             this.cid.destinationDescriptor = decodeDwordRegField(reg);
         } else {
             // invalid
@@ -1299,8 +2056,8 @@ public class NotSoTinySimulator {
             this.cid.destinationDescriptor = decodeWordRegField(reg);
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readSourceValue();
+        readDestinationValue();
     }
     
     /**
@@ -1338,8 +2095,8 @@ public class NotSoTinySimulator {
             this.cid.destinationDescriptor = decodeWordRegField(reg);
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readSourceValue();
+        readDestinationValue();
         this.cid.i8Byte = this.fetchBuffer[this.cid.instructionSize++];
     }
     
@@ -1378,8 +2135,8 @@ public class NotSoTinySimulator {
             this.cid.destinationDescriptor = decodeDwordRegField(reg);
         }
         
-        this.cid.sourceValue = readLocation(this.cid.sourceDescriptor);
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readSourceValue();
+        readDestinationValue();
     }
     
     /**
@@ -1414,7 +2171,7 @@ public class NotSoTinySimulator {
             this.cid.destinationDescriptor = decodeWordRegField(reg);
         }
         
-        this.cid.destinationValue = readLocation(this.cid.destinationDescriptor);
+        readDestinationValue();
     }
     
     /**
@@ -1425,15 +2182,19 @@ public class NotSoTinySimulator {
     private LocationDescriptor decodeRimSourceField(LocationSize size, int field) throws DecodingException {
         return switch(field & 0x03) {
             // immediate
-            case 0  -> new LocationDescriptor(LocationType.IMMEDIATE, decodeOffset(size.bytes), size);
+            case 0  -> this.cid.sourceOperand.set(LocationType.IMMEDIATE, decodeOffset(size.bytes), size);
             // immediate address
-            case 1  -> new LocationDescriptor(LocationType.MEMORY, decodeOffset(4), size);
+            case 1  -> this.cid.sourceOperand.set(LocationType.MEMORY, decodeOffset(4), size);
             // base index
-            case 2  -> new LocationDescriptor(LocationType.MEMORY, decodeBIO(), size);
+            case 2  -> {
+                this.cid.sourceBIO = this.cid.instructionSize;
+                yield this.cid.sourceOperand.set(LocationType.MEMORY, decodeBIO(), size);
+            }
             // base index offset
             case 3  -> {
                 this.cid.hasOffset = true;
-                yield new LocationDescriptor(LocationType.MEMORY, decodeBIO(), size);
+                this.cid.sourceBIO = this.cid.instructionSize;
+                yield this.cid.sourceOperand.set(LocationType.MEMORY, decodeBIO(), size);
             }
             default -> throw new DecodingException();
         };
@@ -1449,13 +2210,17 @@ public class NotSoTinySimulator {
             // immediate
             case 0  -> throw new DecodingException();
             // immediate address
-            case 1  -> new LocationDescriptor(LocationType.MEMORY, decodeOffset(4), size);
+            case 1  -> this.cid.destinationOperand.set(LocationType.MEMORY, decodeOffset(4), size);
             // base index
-            case 2  -> new LocationDescriptor(LocationType.MEMORY, decodeBIO(), size);
+            case 2  -> {
+                this.cid.destinationBIO = this.cid.instructionSize;
+                yield this.cid.destinationOperand.set(LocationType.MEMORY, decodeBIO(), size);
+            }
             // base index offset
             case 3  -> {
                 this.cid.hasOffset = true;
-                yield new LocationDescriptor(LocationType.MEMORY, decodeBIO(), size);
+                this.cid.destinationBIO = this.cid.instructionSize;
+                yield this.cid.destinationOperand.set(LocationType.MEMORY, decodeBIO(), size);
             }
             default -> throw new DecodingException();
         };
@@ -2437,182 +3202,65 @@ public class NotSoTinySimulator {
      * @throws DecodingException 
      */
     private void runExecute() throws UnprivilegedAccessException, NonexistentAccessException, GPFException, DecodingException {
-            switch(this.cid.opcode.egroup) {
-                case NOP:
-                    return;
-                
-                case HLT:
-                    this.halted = true;
-                    return;
-                
-                case MOV:
-                    writeLocation(this.cid.destinationDescriptor, this.cid.sourceValue);
-                    return;
-                    
-                case XCHG:
-                    writeLocation(this.cid.destinationDescriptor, this.cid.sourceValue);
-                    writeLocation(this.cid.sourceDescriptor, this.cid.destinationValue);
-                    return;
-                
-                case JMP:
-                    this.reg_ip += this.cid.sourceValue;
-                    return;
-                
-                case JMPA:
-                    this.reg_ip = this.cid.sourceValue;
-                    return;
-                    
-                case MOVS:
-                    runMOVS();
-                    return;
-                
-                case MOVZ:
-                    runMOVZ();
-                    return;
-                
-                case MOV_SHORTCUT:
-                    runShortcutMOV();
-                    return;
-                
-                case MOV_PROTECTED:
-                    runProtectedMOV();
-                    return;
-                
-                case CMOV:
-                    runCMOV();
-                    return;
-                    
-                case PUSH_SHORTCUT:
-                    runShortcutPUSH();
-                    return;
-                
-                case POP_SHORTCUT:
-                    runShortcutPOP();
-                    return;
-                
-                case MVI:
-                    runMVI();
-                    return;
-                    
-                case DMV:
-                    runDMV();
-                    return;
-                
-                case PUSHA:
-                    runPUSHA();
-                    return;
-                
-                case POPA:
-                    runPOPA();
-                    return;
-                    
-                case ADD_SHORTCUT:
-                    runShortcutADD();
-                    return;
-                    
-                case ADD:
-                    runADD();
-                    return;
-                
-                case ADC:
-                    runADC();
-                    return;
-                
-                case PADD:
-                    runPADD();
-                    return;
-                
-                case ADJ:
-                    runADJ();
-                    return;
-                
-                case INC:
-                    runINC();
-                    return;
-                
-                case PINC:
-                    runPINC();
-                    return;
-                    
-                case NEG:
-                    runNEG();
-                    return;
-                    
-                case SUB_SHORTCUT:
-                    runShortcutSUB();
-                    return;
-                
-                case SUB:
-                    runSUB();
-                    return;
-                
-                case SBB:
-                    runSBB();
-                    return;
-                
-                case PSUB:
-                    runPSUB();
-                    return;
-                    
-                case MUL:
-                    runMUL();
-                    return;
-                
-                case DIV:
-                    runDIV();
-                    return;
-                    
-                case LOGIC:
-                    runLogic();
-                    return;
-            
-                case SHIFT:
-                    runShifts();
-                    return;
-                    
-                case TST:
-                    runTST();
-                    return;
-                    
-                case CMP:
-                    runCMP();
-                    return;
-                
-                case PCMP:
-                    runPCMP();
-                    return;
-                    
-                case F_OPS:
-                    runFOps();
-                    return;
-                    
-                case JCC:
-                    runJCC();
-                    return;
-                    
-                case CALL:
-                    runCALL();
-                    return;
-                
-                case CALLA:
-                    runCALLA();
-                    return;
-                
-                case RET:
-                    runRET();
-                    return;
-                
-                case IRET:
-                    runIRET();
-                    return;
-                
-                case INT:
-                    runINT();
-                    return;
-                    
-                default:
-                    throw new DecodingException();
-        }
+        this.executeHandlers[this.cid.opcode.op & 0xFF].run();
+    }
+    
+    /**
+     * Gets the execution handler for an execution group
+     * 
+     * @param group
+     * @return
+     */
+    private InstructionHandler getExecuteHandler(ExecutionGroup group) {
+        return switch(group) {
+            case NOP           -> () -> {};
+            case HLT           -> () -> this.halted = true;
+            case MOV           -> () -> writeLocation(this.cid.destinationDescriptor, this.cid.sourceValue);
+            case XCHG          -> () -> {
+                writeLocation(this.cid.destinationDescriptor, this.cid.sourceValue);
+                writeLocation(this.cid.sourceDescriptor, this.cid.destinationValue);
+            };
+            case JMP           -> () -> this.reg_ip += this.cid.sourceValue;
+            case JMPA          -> () -> this.reg_ip = this.cid.sourceValue;
+            case MOVS          -> this::runMOVS;
+            case MOVZ          -> this::runMOVZ;
+            case MOV_SHORTCUT  -> this::runShortcutMOV;
+            case MOV_PROTECTED -> this::runProtectedMOV;
+            case CMOV          -> this::runCMOV;
+            case PUSH_SHORTCUT -> this::runShortcutPUSH;
+            case POP_SHORTCUT  -> this::runShortcutPOP;
+            case MVI           -> this::runMVI;
+            case DMV           -> this::runDMV;
+            case PUSHA         -> this::runPUSHA;
+            case POPA          -> this::runPOPA;
+            case ADD_SHORTCUT  -> this::runShortcutADD;
+            case ADD           -> this::runADD;
+            case ADC           -> this::runADC;
+            case PADD          -> this::runPADD;
+            case ADJ           -> this::runADJ;
+            case INC           -> this::runINC;
+            case PINC          -> this::runPINC;
+            case NEG           -> this::runNEG;
+            case SUB_SHORTCUT  -> this::runShortcutSUB;
+            case SUB           -> this::runSUB;
+            case SBB           -> this::runSBB;
+            case PSUB          -> this::runPSUB;
+            case MUL           -> this::runMUL;
+            case DIV           -> this::runDIV;
+            case LOGIC         -> this::runLogic;
+            case SHIFT         -> this::runShifts;
+            case TST           -> this::runTST;
+            case CMP           -> this::runCMP;
+            case PCMP          -> this::runPCMP;
+            case F_OPS         -> this::runFOps;
+            case JCC           -> this::runJCC;
+            case CALL          -> this::runCALL;
+            case CALLA         -> this::runCALLA;
+            case RET           -> this::runRET;
+            case IRET          -> this::runIRET;
+            case INT           -> this::runINT;
+            case UNDEF         -> () -> { throw new DecodingException(); };
+        };
     }
     
     /*
@@ -2679,11 +3327,11 @@ public class NotSoTinySimulator {
             case MOV_L_I16: this.reg_l = (short) this.cid.sourceValue; break;
             
             case MOV_F_RIM:                 this.reg_f = (short) this.cid.sourceValue; break;
-            case MOV_BP_RIM, MOVW_BP_RIM:   writeLocation(new LocationDescriptor(LocationType.MEMORY, this.reg_bp + this.cid.i8Byte, this.cid.sourceDescriptor.size), this.cid.sourceValue); break;
+            case MOV_BP_RIM, MOVW_BP_RIM:   writeMemory(this.cid.sourceDescriptor.size, this.reg_bp + this.cid.i8Byte, this.cid.sourceValue); break;
             
             case MOVW_RIM_0:                writeLocation(this.cid.destinationDescriptor, 0); break;
             case MOV_RIM_F:                 writeLocation(this.cid.destinationDescriptor, this.reg_f); break;
-            case MOV_RIM_BP, MOVW_RIM_BP:   writeLocation(this.cid.destinationDescriptor, readLocation(new LocationDescriptor(LocationType.MEMORY, this.reg_bp + this.cid.i8Byte, this.cid.destinationDescriptor.size))); break;
+            case MOV_RIM_BP, MOVW_RIM_BP:   writeLocation(this.cid.destinationDescriptor, readMemory(this.cid.destinationDescriptor.size, this.reg_bp + this.cid.i8Byte)); break;
         }
     }
     
@@ -2944,16 +3592,16 @@ public class NotSoTinySimulator {
     private void runCMP() {
         int cmpVal = (this.cid.opcode == Opcode.CMP_RIM_0 || this.cid.opcode == Opcode.CMPW_RIM_0) ? 0 : this.cid.sourceValue; 
         
-        int[] res = add(this.cid.destinationValue, cmpVal, this.cid.destinationDescriptor.size.bytes, true, false);
-        this.reg_f = (short) res[1];
+        int res = add(this.cid.destinationValue, cmpVal, this.cid.destinationDescriptor.size.bytes, true, false);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
      * PCMP
      */
     private void runPCMP() {
-        short[] res = addPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, true, false);
-        this.reg_f = res[1];
+        short res = addPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, true, false);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -2985,30 +3633,30 @@ public class NotSoTinySimulator {
         }
         
         // add
-        int[] res = add(v, this.cid.sourceValue & 0x00FF, size, false, false);
+        int res = add(v, this.cid.sourceValue & 0x00FF, size, false, false);
         
         // write
         switch(this.cid.opcode) {
-            case ADD_A_I8:      this.reg_a = (short) res[0]; break;
-            case ADD_B_I8:      this.reg_b = (short) res[0]; break;
-            case ADD_C_I8:      this.reg_c = (short) res[0]; break;
-            case ADD_D_I8:      this.reg_d = (short) res[0]; break;
-            case ADD_I_I8:      this.reg_i = (short) res[0]; break;
-            case ADD_J_I8:      this.reg_j = (short) res[0]; break;
-            case ADD_K_I8:      this.reg_k = (short) res[0]; break;
-            case ADD_L_I8:      this.reg_l = (short) res[0]; break;
-            
-            case ADDW_DA_I8:    this.reg_d = (short)(res[0] >> 16); this.reg_a = (short) res[0]; break;
-            case ADDW_BC_I8:    this.reg_b = (short)(res[0] >> 16); this.reg_c = (short) res[0]; break;
-            case ADDW_JI_I8:    this.reg_j = (short)(res[0] >> 16); this.reg_i = (short) res[0]; break;
-            case ADDW_LK_I8:    this.reg_l = (short)(res[0] >> 16); this.reg_k = (short) res[0]; break;
-            case ADDW_XP_I8:    this.reg_xp = res[0]; break;
-            case ADDW_YP_I8:    this.reg_yp = res[0]; break;
-            case ADDW_BP_I8:    this.reg_bp = res[0]; break;
-            case ADDW_SP_I8:    this.reg_sp = res[0]; break;
+            case ADD_A_I8:      this.reg_a = (short) res; break;
+            case ADD_B_I8:      this.reg_b = (short) res; break;
+            case ADD_C_I8:      this.reg_c = (short) res; break;
+            case ADD_D_I8:      this.reg_d = (short) res; break;
+            case ADD_I_I8:      this.reg_i = (short) res; break;
+            case ADD_J_I8:      this.reg_j = (short) res; break;
+            case ADD_K_I8:      this.reg_k = (short) res; break;
+            case ADD_L_I8:      this.reg_l = (short) res; break;
+            
+            case ADDW_DA_I8:    this.reg_d = (short)(res >> 16); this.reg_a = (short) res; break;
+            case ADDW_BC_I8:    this.reg_b = (short)(res >> 16); this.reg_c = (short) res; break;
+            case ADDW_JI_I8:    this.reg_j = (short)(res >> 16); this.reg_i = (short) res; break;
+            case ADDW_LK_I8:    this.reg_l = (short)(res >> 16); this.reg_k = (short) res; break;
+            case ADDW_XP_I8:    this.reg_xp = res; break;
+            case ADDW_YP_I8:    this.reg_yp = res; break;
+            case ADDW_BP_I8:    this.reg_bp = res; break;
+            case ADDW_SP_I8:    this.reg_sp = res; break;
         }
         
-        this.reg_f = (short) res[1];
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3016,9 +3664,9 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException 
      */
     private void runADD() throws UnprivilegedAccessException, NonexistentAccessException {
-        int[] res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, false, false);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = (short) res[1];
+        int res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, false, false);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3049,29 +3697,29 @@ public class NotSoTinySimulator {
             case SUBW_SP_I8:    size = 4; v = this.reg_sp; break;
         }
         
-        int[] res = add(v, this.cid.sourceValue & 0x00FF, size, true, false);
+        int res = add(v, this.cid.sourceValue & 0x00FF, size, true, false);
         
         switch(this.cid.opcode) {
-            case SUB_A_I8:      this.reg_a = (short) res[0]; break;
-            case SUB_B_I8:      this.reg_b = (short) res[0]; break;
-            case SUB_C_I8:      this.reg_c = (short) res[0]; break;
-            case SUB_D_I8:      this.reg_d = (short) res[0]; break;
-            case SUB_I_I8:      this.reg_i = (short) res[0]; break;
-            case SUB_J_I8:      this.reg_j = (short) res[0]; break;
-            case SUB_K_I8:      this.reg_k = (short) res[0]; break;
-            case SUB_L_I8:      this.reg_l = (short) res[0]; break;
-            
-            case SUBW_DA_I8:    this.reg_d = (short)(res[0] >> 16); this.reg_a = (short) res[0]; break;
-            case SUBW_BC_I8:    this.reg_b = (short)(res[0] >> 16); this.reg_c = (short) res[0]; break;
-            case SUBW_JI_I8:    this.reg_j = (short)(res[0] >> 16); this.reg_i = (short) res[0]; break;
-            case SUBW_LK_I8:    this.reg_l = (short)(res[0] >> 16); this.reg_k = (short) res[0]; break;
-            case SUBW_XP_I8:    this.reg_xp = res[0]; break;
-            case SUBW_YP_I8:    this.reg_yp = res[0]; break;
-            case SUBW_BP_I8:    this.reg_bp = res[0]; break;
-            case SUBW_SP_I8:    this.reg_sp = res[0]; break;
+            case SUB_A_I8:      this.reg_a = (short) res; break;
+            case SUB_B_I8:      this.reg_b = (short) res; break;
+            case SUB_C_I8:      this.reg_c = (short) res; break;
+            case SUB_D_I8:      this.reg_d = (short) res; break;
+            case SUB_I_I8:      this.reg_i = (short) res; break;
+            case SUB_J_I8:      this.reg_j = (short) res; break;
+            case SUB_K_I8:      this.reg_k = (short) res; break;
+            case SUB_L_I8:      this.reg_l = (short) res; break;
+            
+            case SUBW_DA_I8:    this.reg_d = (short)(res >> 16); this.reg_a = (short) res; break;
+            case SUBW_BC_I8:    this.reg_b = (short)(res >> 16); this.reg_c = (short) res; break;
+            case SUBW_JI_I8:    this.reg_j = (short)(res >> 16); this.reg_i = (short) res; break;
+            case SUBW_LK_I8:    this.reg_l = (short)(res >> 16); this.reg_k = (short) res; break;
+            case SUBW_XP_I8:    this.reg_xp = res; break;
+            case SUBW_YP_I8:    this.reg_yp = res; break;
+            case SUBW_BP_I8:    this.reg_bp = res; break;
+            case SUBW_SP_I8:    this.reg_sp = res; break;
         }
         
-        this.reg_f = (short) res[1];
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3079,9 +3727,9 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException 
      */
     private void runSUB() throws UnprivilegedAccessException, NonexistentAccessException {
-        int[] res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, true, false);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = (short) res[1];
+        int res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, true, false);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3089,9 +3737,9 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException
      */
     private void runADC() throws UnprivilegedAccessException, NonexistentAccessException {
-        int[] res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, false, true);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = (short) res[1];
+        int res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, false, true);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3099,9 +3747,9 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException
      */
     private void runSBB() throws UnprivilegedAccessException, NonexistentAccessException {
-        int[] res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, true, true);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = (short) res[1];
+        int res = add(this.cid.destinationValue, this.cid.sourceValue, this.cid.destinationDescriptor.size.bytes, true, true);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3109,9 +3757,9 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException
      */
     private void runPADD() throws UnprivilegedAccessException, NonexistentAccessException {
-        short[] res = addPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, false, this.cid.opcode == Opcode.PADC_RIMP);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = res[1];
+        short res = addPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, false, this.cid.opcode == Opcode.PADC_RIMP);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3119,9 +3767,9 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException
      */
     private void runPSUB() throws UnprivilegedAccessException, NonexistentAccessException {
-        short[] res = addPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, true, this.cid.opcode == Opcode.PSBB_RIMP);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = res[1];
+        short res = addPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, true, this.cid.opcode == Opcode.PSBB_RIMP);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3192,9 +3840,9 @@ public class NotSoTinySimulator {
             default                                     -> false;
         };
         
-        int[] res = add(this.cid.destinationValue, i, this.cid.destinationDescriptor.size.bytes, sub, false);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = (short) res[1];
+        int res = add(this.cid.destinationValue, i, this.cid.destinationDescriptor.size.bytes, sub, false);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3212,9 +3860,9 @@ public class NotSoTinySimulator {
             i = this.reg_f & (this.cid.packedIs4s ? 0x0101 : 0x1111);
         }
         
-        short[] res = addPacked(this.cid.destinationValue, i, !this.cid.packedIs4s, sub, false);
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = res[1];
+        short res = addPacked(this.cid.destinationValue, i, !this.cid.packedIs4s, sub, false);
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3224,7 +3872,7 @@ public class NotSoTinySimulator {
     private void runMUL() throws UnprivilegedAccessException, NonexistentAccessException {
         boolean high = this.cid.opcode == Opcode.MULSH_RIM || this.cid.opcode == Opcode.PMULSH_RIMP || this.cid.opcode == Opcode.MULH_RIM || this.cid.opcode == Opcode.PMULH_RIMP;
         boolean signed = this.cid.opcode == Opcode.MULSH_RIM || this.cid.opcode == Opcode.PMULSH_RIMP;
-        int[] res;
+        int res;
         
         if(this.cid.isPacked) {
             res = multiplyPacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, high, signed);
@@ -3233,8 +3881,8 @@ public class NotSoTinySimulator {
             
         }
         
-        writeLocation(this.cid.destinationDescriptor, res[0]);
-        this.reg_f = (short) res[1];
+        writeLocation(this.cid.destinationDescriptor, res);
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3243,7 +3891,7 @@ public class NotSoTinySimulator {
     private void runDIV() throws UnprivilegedAccessException, NonexistentAccessException {
         boolean mod = this.cid.opcode == Opcode.DIVM_RIM || this.cid.opcode == Opcode.PDIVM_RIMP || this.cid.opcode == Opcode.DIVMS_RIM || this.cid.opcode == Opcode.PDIVMS_RIMP;
         boolean signed = this.cid.opcode == Opcode.DIVS_RIM || this.cid.opcode == Opcode.PDIVS_RIMP || this.cid.opcode == Opcode.DIVMS_RIM || this.cid.opcode == Opcode.PDIVMS_RIMP;
-        int[] res;
+        int res;
         
         if(this.cid.isPacked) {
             res = dividePacked(this.cid.destinationValue, this.cid.sourceValue, !this.cid.packedIs4s, mod, signed);
@@ -3252,14 +3900,14 @@ public class NotSoTinySimulator {
         }
         
         int r = switch(this.cid.destinationDescriptor.size) {
-            case BYTE   -> mod ? (((res[1] & 0x0F) << 4) | (res[0] & 0x0F)) : res[0];
-            case WORD   -> mod ? (((res[1] & 0xFF) << 8) | (res[0] & 0xFF)) : res[0];
-            case DWORD  -> mod ? (((res[1] & 0xFFFF) << 16) | (res[0] & 0xFFFF)) : res[0];
+            case BYTE   -> mod ? (((this.aluRemainder & 0x0F) << 4) | (res & 0x0F)) : res;
+            case WORD   -> mod ? (((this.aluRemainder & 0xFF) << 8) | (res & 0xFF)) : res;
+            case DWORD  -> mod ? (((this.aluRemainder & 0xFFFF) << 16) | (res & 0xFFFF)) : res;
             default     -> 0; // NULL
         };
         
         writeLocation(this.cid.destinationDescriptor, r);
-        this.reg_f = (short) res[2];
+        this.reg_f = (short) this.aluFlags;
     }
     
     /**
@@ -3571,13 +4219,13 @@ public class NotSoTinySimulator {
      */
     private void runNEG() throws UnprivilegedAccessException, NonexistentAccessException {
         if(this.cid.isPacked) {
-            short[] res = addPacked(~this.cid.destinationValue, this.cid.packedIs4s ? 0x1111 : 0x0101, !this.cid.packedIs4s, false, false);
-            writeLocation(this.cid.destinationDescriptor, res[0]);
-            this.reg_f = res[1];
+            short res = addPacked(~this.cid.destinationValue, this.cid.packedIs4s ? 0x1111 : 0x0101, !this.cid.packedIs4s, false, false);
+            writeLocation(this.cid.destinationDescriptor, res);
+            this.reg_f = (short) this.aluFlags;
         } else {
-            int[] res = add(~this.cid.destinationValue, 1, this.cid.destinationDescriptor.size.bytes, false, false);
-            writeLocation(this.cid.destinationDescriptor, res[0]);
-            this.reg_f = (short) res[1];
+            int res = add(~this.cid.destinationValue, 1, this.cid.destinationDescriptor.size.bytes, false, false);
+            writeLocation(this.cid.destinationDescriptor, res);
+            this.reg_f = (short) this.aluFlags;
         }
     }
     
@@ -3593,19 +4241,20 @@ public class NotSoTinySimulator {
      * @throws UnprivilegedAccessException 
      */
     private int readLocation(LocationDescriptor ld) throws UnprivilegedAccessException, NonexistentAccessException {
-        switch(ld.type) {
-            case IMMEDIATE:
+        switch(ld.kind) {
+            case LocationDescriptor.KIND_IMMEDIATE:
                 return ld.address;
+            
+            case LocationDescriptor.KIND_MEMORY_BYTE:
+                return this.memory.readByte(ld.address, this.pf_pv);
+            
+            case LocationDescriptor.KIND_MEMORY_WORD:
+                return this.memory.read2Bytes(ld.address, this.pf_pv);
+            
+            case LocationDescriptor.KIND_MEMORY_DWORD:
+                return this.memory.read4Bytes(ld.address, this.pf_pv);
                 
-            case MEMORY:
-                return switch(ld.size) {
-                    case DWORD  -> this.memory.read4Bytes(ld.address, this.pf_pv);
-                    case WORD   -> this.memory.read2Bytes(ld.address, this.pf_pv);
-                    case BYTE   -> this.memory.readByte(ld.address, this.pf_pv);
-                    default     -> 0;
-                };
-                
-            case REGISTER:
+            case LocationDescriptor.KIND_REGISTER:
                 return switch(ld.register) {
                     case NONE   -> 0;
                     case DA     -> (this.reg_d << 16) | (this.reg_a & 0xFFFF);
@@ -3638,7 +4287,7 @@ public class NotSoTinySimulator {
                     default     -> throw new IllegalStateException("Invalid register in readLocation: " + ld.register);
                 };
                 
-            default: //case NULL:
+            default: // KIND_NULL
                 return 0;
         }
     }
@@ -3652,17 +4301,20 @@ public class NotSoTinySimulator {
      * @throws GPFException 
      */
     private void writeLocation(LocationDescriptor ld, int value) throws UnprivilegedAccessException, NonexistentAccessException {
-        switch(ld.type) {
-            case MEMORY:
-                switch(ld.size) {
-                    case DWORD: this.memory.write4Bytes(ld.address, value, this.pf_pv); break;
-                    case WORD:  this.memory.write2Bytes(ld.address, (short) value, this.pf_pv); break;
-                    case BYTE:  this.memory.writeByte(ld.address, (byte) value, this.pf_pv); break;
-                    default: // NULL
-                }
+        switch(ld.kind) {
+            case LocationDescriptor.KIND_MEMORY_BYTE:
+                this.memory.writeByte(ld.address, (byte) value, this.pf_pv);
+                break;
+            
+            case LocationDescriptor.KIND_MEMORY_WORD:
+                this.memory.write2Bytes(ld.address, (short) value, this.pf_pv);
+                break;
+            
+            case LocationDescriptor.KIND_MEMORY_DWORD:
+                this.memory.write4Bytes(ld.address, value, this.pf_pv);
                 break;
                 
-            case REGISTER:
+            case LocationDescriptor.KIND_REGISTER:
                 switch(ld.register) {
                     case DA:    this.reg_d = (short)(value >> 16); this.reg_a = (short) value; break;
                     case BC:    this.reg_b = (short)(value >> 16); this.reg_c = (short) value; break;
@@ -3694,7 +4346,7 @@ public class NotSoTinySimulator {
                 break;
                 
             default:
-                // NULL, IMMEDAITE
+                // NULL, IMMEDIATE
         }
     }
     
@@ -3770,9 +4422,9 @@ public class NotSoTinySimulator {
      * @param size
      * @param subtract determines if B is complemented and how CF is treated. if true: b, carry in, and carry out are complemented.
      * @param includeCarry true to use flags for cin
-     * @return {a+b, flags}
+     * @return a+b. Flags are left in aluFlags
      */
-    private int[] add(int a, int b, int size, boolean subtract, boolean includeCarry) {
+    private int add(int a, int b, int size, boolean subtract, boolean includeCarry) {
         int carryIn = includeCarry ? (this.reg_f & 0x01) : 0;
         
         if(subtract) {
@@ -3818,7 +4470,8 @@ public class NotSoTinySimulator {
         
         int flags = (zero ? 0x08 : 0x00) | (overflow ? 0x04 : 0x00) | (sign ? 0x02 : 0x00) | ((carry != subtract) ? 0x01 : 0x00);
         
-        return new int[] { (int) c, flags };
+        this.aluFlags = flags;
+        return (int) c;
     }
     
     /**
@@ -3829,9 +4482,9 @@ public class NotSoTinySimulator {
      * @param bytes
      * @param subtract
      * @param includeCarry
-     * @return {a+b, flags}
+     * @return a+b. Flags are left in aluFlags
      */
-    private short[] addPacked(int a, int b, boolean bytes, boolean subtract, boolean includeCarry) {
+    private short addPacked(int a, int b, boolean bytes, boolean subtract, boolean includeCarry) {
         
         // split things up
         long al, bl, carryIn;
@@ -3895,7 +4548,8 @@ public class NotSoTinySimulator {
             v = (short) (((c >> 12) & 0xF000) | ((c >> 8) & 0x0F00) | ((c >> 4) & 0x00F0) | (c & 0x000F));
         }
         
-        return new short[] { v, (short) f };
+        this.aluFlags = f;
+        return v;
     }
     
     /**
@@ -3906,9 +4560,9 @@ public class NotSoTinySimulator {
      * @param size
      * @param high
      * @param signed
-     * @return {a * b, flags}
+     * @return a * b. Flags are left in aluFlags
      */
-    private int[] multiply(int a, int b, int size, boolean high, boolean signed) {
+    private int multiply(int a, int b, int size, boolean high, boolean signed) {
         // calculate
         long res;
         
@@ -4022,7 +4676,8 @@ public class NotSoTinySimulator {
         
         int f = (zero ? 0x08 : 0x00) | (overflow ? 0x04 : 0x00) | (sign ? 0x02 : 0x00) | (carry ? 0x01 : 0x00);
         
-        return new int[] { (int) res, f };
+        this.aluFlags = f;
+        return (int) res;
     }
     
     /**
@@ -4033,38 +4688,45 @@ public class NotSoTinySimulator {
      * @param bytes
      * @param high
      * @param signed
-     * @return {a*b, flags}
+     * @return a*b. Flags are left in aluFlags
      */
-    private int[] multiplyPacked(int a, int b, boolean bytes, boolean high, boolean signed) {
+    private int multiplyPacked(int a, int b, boolean bytes, boolean high, boolean signed) {
         // multiplication isn't local like additon, so we have to do things separately
         int r, f;
         if(bytes) {
-            int[] res1 = multiply(a >> 8, b >> 8, 1, high, signed);
-            int[] res2 = multiply(a, b, 1, high, signed);
+            int res1 = multiply(a >> 8, b >> 8, 1, high, signed),
+                f1 = this.aluFlags;
+            int res2 = multiply(a, b, 1, high, signed),
+                f2 = this.aluFlags;
             
-            f = (res1[1] << 8) | res2[1];
+            f = (f1 << 8) | f2;
             
             if(high) {
-                r = ((res1[0] << 16) & 0xFFFF_0000) | (res2[0] & 0x0000_FFFF); 
+                r = ((res1 << 16) & 0xFFFF_0000) | (res2 & 0x0000_FFFF); 
             } else {
-                r = ((res1[0] << 8) & 0xFF00) | (res2[0] & 0x00FF);
+                r = ((res1 << 8) & 0xFF00) | (res2 & 0x00FF);
             } 
         } else {
-            int[] res1 = multiply(a >> 12, b >> 12, 0, high, signed);
-            int[] res2 = multiply(a >> 8, b >> 8, 0, high, signed);
-            int[] res3 = multiply(a >> 4, b >> 4, 0, high, signed);
-            int[] res4 = multiply(a, b, 0, high, signed);
+            int res1 = multiply(a >> 12, b >> 12, 0, high, signed),
+                f1 = this.aluFlags;
+            int res2 = multiply(a >> 8, b >> 8, 0, high, signed),
+                f2 = this.aluFlags;
+            int res3 = multiply(a >> 4, b >> 4, 0, high, signed),
+                f3 = this.aluFlags;
+            int res4 = multiply(a, b, 0, high, signed),
+                f4 = this.aluFlags;
             
-            f = (res1[1] << 12) | (res2[1] << 8) | (res3[1] << 4) | res4[1];
+            f = (f1 << 12) | (f2 << 8) | (f3 << 4) | f4;
             
             if(high) {
-                r = ((res1[0] << 24) & 0xFF00_0000) | ((res2[0] << 16) & 0x00FF_0000) | ((res3[0] << 8) & 0x0000_FF00) | (res4[0] & 0x0000_00FF);
+                r = ((res1 << 24) & 0xFF00_0000) | ((res2 << 16) & 0x00FF_0000) | ((res3 << 8) & 0x0000_FF00) | (res4 & 0x0000_00FF);
             } else {
-                r = ((res1[0] << 12) & 0xF000) | ((res2[0] << 8) & 0x0F00) | ((res3[0] << 4) & 0x00F0) | (res4[0] & 0x000F); 
+                r = ((res1 << 12) & 0xF000) | ((res2 << 8) & 0x0F00) | ((res3 << 4) & 0x00F0) | (res4 & 0x000F); 
             }
         }
         
-        return new int[] { r, f };
+        this.aluFlags = f;
+        return r;
     }
     
     /**
@@ -4075,9 +4737,9 @@ public class NotSoTinySimulator {
      * @param size
      * @param mod
      * @param signed
-     * @return a / b {quotient, remainder, flags}
+     * @return a / b. The remainder is left in aluRemainder and flags in aluFlags
      */
-    private int[] divide(int a, int b, int size, boolean mod, boolean signed) {
+    private int divide(int a, int b, int size, boolean mod, boolean signed) {
         long quot,
              rem;
         
@@ -4172,7 +4834,9 @@ public class NotSoTinySimulator {
         
         int f = (short)((zero ? 0x08 : 0x00) | (overflow ? 0x04 : 0x00) | (sign ? 0x02 : 0x00) | (carry ? 0x01 : 0x00));
         
-        return new int[] {(int) quot, (int) rem, f};
+        this.aluRemainder = (int) rem;
+        this.aluFlags = f;
+        return (int) quot;
     }
     
     /**
@@ -4183,10 +4847,12 @@ public class NotSoTinySimulator {
      * @param bytes
      * @param mod
      * @param signed
-     * @return a / b {quotient, remainder, flags}
+     * @return a / b. The remainder is left in aluRemainder and flags in aluFlags
      */
-    private int[] dividePacked(int a, int b, boolean bytes, boolean mod, boolean signed) {
+    private int dividePacked(int a, int b, boolean bytes, boolean mod, boolean signed) {
         // division isn't local like additon, so we have to do things separately
+        int quot, rem, f;
+        
         if(bytes) {
             // get values
             int shifta = mod ? 16 : 8,
@@ -4199,14 +4865,16 @@ public class NotSoTinySimulator {
                 b2 = b & maskb;
             
             // divide in parts
-            int[] r1 = divide(a1, b1, 1, mod, signed);
-            int[] r2 = divide(a2, b2, 1, mod, signed);
-            
-            return new int[] {
-                    ((r1[0] << 8) & 0xFF00) | (r2[0] & 0xFF),
-                    ((r1[1] << 8) & 0xFF00) | (r2[1] & 0xFF),
-                    (r1[2] << 8) | r2[2]
-            };
+            int q1 = divide(a1, b1, 1, mod, signed),
+                r1 = this.aluRemainder,
+                f1 = this.aluFlags;
+            int q2 = divide(a2, b2, 1, mod, signed),
+                r2 = this.aluRemainder,
+                f2 = this.aluFlags;
+            
+            quot = ((q1 << 8) & 0xFF00) | (q2 & 0xFF);
+            rem = ((r1 << 8) & 0xFF00) | (r2 & 0xFF);
+            f = (f1 << 8) | f2;
         } else {
             // above but more
             int shifta = mod ? 8 : 4,
@@ -4223,17 +4891,27 @@ public class NotSoTinySimulator {
                 b4 = b & maskb;
             
             // divide
-            int[] r1 = divide(a1, b1, 0, mod, signed);
-            int[] r2 = divide(a2, b2, 0, mod, signed);
-            int[] r3 = divide(a3, b3, 0, mod, signed);
-            int[] r4 = divide(a4, b4, 0, mod, signed);
-            
-            return new int[] {
-                    ((r1[0] << 12) & 0xF000) | ((r2[0] << 8) & 0x0F00) | ((r3[0] << 4) & 0xF0) | (r4[0] & 0x0F),
-                    ((r1[1] << 12) & 0xF000) | ((r2[1] << 8) & 0x0F00) | ((r3[1] << 4) & 0xF0) | (r4[1] & 0x0F),
-                    (r1[2] << 12) | (r2[2] << 8) | (r3[2] << 4) | r4[2]
-            };
+            int q1 = divide(a1, b1, 0, mod, signed),
+                r1 = this.aluRemainder,
+                f1 = this.aluFlags;
+            int q2 = divide(a2, b2, 0, mod, signed),
+                r2 = this.aluRemainder,
+                f2 = this.aluFlags;
+            int q3 = divide(a3, b3, 0, mod, signed),
+                r3 = this.aluRemainder,
+                f3 = this.aluFlags;
+            int q4 = divide(a4, b4, 0, mod, signed),
+                r4 = this.aluRemainder,
+                f4 = this.aluFlags;
+            
+            quot = ((q1 << 12) & 0xF000) | ((q2 << 8) & 0x0F00) | ((q3 << 4) & 0xF0) | (q4 & 0x0F);
+            rem = ((r1 << 12) & 0xF000) | ((r2 << 8) & 0x0F00) | ((r3 << 4) & 0xF0) | (r4 & 0x0F);
+            f = (f1 << 12) | (f2 << 8) | (f3 << 4) | f4;
         }
+        
+        this.aluRemainder = rem;
+        this.aluFlags = f;
+        return quot;
     }
     
     /**
@@ -4330,6 +5008,8 @@ public class NotSoTinySimulator {
      * @param vecF
      */
     private void runInterrupt(byte vector, int vecBP, short vecF) {
+        if(this.timing != null) this.cycles += this.timing.getInterruptCycles();
+        
         // What pointer are we using
         // In interrupt -> SP, ISP otherwise
         int pointer = (this.pf_ii) ? this.reg_sp : this.reg_isp;
@@ -4361,32 +5041,29 @@ public class NotSoTinySimulator {
     
     /**
      * Attempts to fire an interrupt with the given vector.
-     * The interrupt will be ignored if interrupts are not enabled.
+     * The interrupt will be ignored if interrupts are not enabled, or if another interrupt is waiting to be taken. Checks
+     * the current PF, so only the thread running the simulator should call this.
      * 
      * @param vector
      * @return true if the interrupt was fired
      */
     public boolean fireMaskableInterrupt(byte vector) {
-        if(this.pf_ie) {
-            this.halted = false;
-            this.pendingExternalInterrupt = true;
-            this.externalInterruptVector = vector;
-            
-            return true;
+        if(this.pf_ie && !this.pendingExternalInterrupt) {
+            return postInterrupt(vector);
         } else {
             return false;
         }
     }
     
     /**
-     * Fires an interrupt with the given vector, regardless of whether interrupts are enabled.
+     * Fires an interrupt with the given vector, regardless of whether interrupts are enabled. Ignored if another
+     * interrupt is waiting to be taken. Any thread.
      * 
      * @param vector
+     * @return true if the interrupt was fired
      */
-    public void fireNonMaskableInterrupt(byte vector) {
-        this.halted = false;
-        this.pendingExternalInterrupt = true;
-        this.externalInterruptVector = vector;
+    public boolean fireNonMaskableInterrupt(byte vector) {
+        return !this.pendingExternalInterrupt && postInterrupt(vector);
     }
     
     /*
@@ -4406,9 +5083,16 @@ public class NotSoTinySimulator {
     public int getRegBP() { return this.reg_bp; }
     public int getRegSP() { return this.reg_sp; }
     public int getRegIP() { return this.reg_ip; }
-    public boolean getHalted() { return this.halted; }
-    public boolean hasPendingInterrupt() { return this.pendingExternalInterrupt; }
-    public byte getPendingInterruptVector() { return this.externalInterruptVector; }
+    public boolean getHalted() { return this.halted && ((int) MAILBOX.getAcquire(this) & (MAIL_INTERRUPT | MAIL_RESUME)) == 0 && (this.journal == null || this.journal.getNextInterruptCount() != this.instructionCount); }
+    public InstructionCache getInstructionCache() { return this.icache; }
+    public boolean hasPendingInterrupt() { return this.pendingExternalInterrupt || ((int) MAILBOX.getAcquire(this) & MAIL_INTERRUPT) != 0; }
+    public byte getPendingInterruptVector() { return this.pendingExternalInterrupt ? this.externalInterruptVector : (byte)(int) MAILBOX.getAcquire(this); }
+    public TimingModel getTimingModel() { return this.timing; }
+    public long getCycles() { return this.cycles; }
+    public long getInstructionCount() { return this.instructionCount; }
+    public InterruptController getInterruptController() { return this.pic; }
+    public EventJournal getJournal() { return this.journal; }
+    public int[] getBreakpoints() { return this.breakpoints.clone(); }
     
     private short getRegPFChecked() throws GPFException {
         if(this.pf_pv) {
@@ -4455,6 +5139,23 @@ public class NotSoTinySimulator {
     public void setRegIP(int ip) { this.reg_ip = ip; }
     public void setRegISP(int isp) { this.reg_isp = isp; } 
     public void setHalted(boolean h) { this.halted = h; }
+    public void setCycles(long c) { this.cycles = c; }
+    public void setInstructionCount(long c) { this.instructionCount = c; }
+    public void setJournal(EventJournal j) { this.journal = j; }
+    
+    /**
+     * Sets the interrupt controller stepped by run() and idle(), and has it wake the simulator when an interrupt is
+     * requested
+     * 
+     * @param pic
+     */
+    public void setInterruptController(InterruptController pic) {
+        this.pic = pic;
+        
+        if(pic != null) {
+            pic.setRequestListener(this::wake);
+        }
+    }
     
     private void setRegPFChecked(short pf) throws GPFException {
         if(this.pf_pv) {
@@ -0,0 +1,428 @@
+package notsotiny.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import notsotiny.sim.memory.InterruptController;
+
+/**
+ * Runs many independent machines on a fixed set of worker threads.
+ * Instances are run in slices of a fixed number of instructions, taken round-robin from a shared queue, so every
+ * running instance gets the same share of the workers.
+ *
+ * Slices are CPU bound, so virtual threads gain nothing over a platform worker per core, which is the default. Any
+ * ThreadFactory can be given instead.
+ *
+ * An instance halted with interrupts enabled while a host time interrupt source is armed waits off the queue until the
+ * source is due, rather than finishing. Simulated time sources wake a halt within the slice.
+ *
+ * @author Mechafinch
+ */
+public class SimulationFarm implements AutoCloseable {
+
+    private static Logger LOG = Logger.getLogger(SimulationFarm.class.getName());
+
+    public static final int DEFAULT_SLICE = 100_000;
+
+    /**
+     * The state of an instance
+     */
+    public enum State {
+        QUEUED,     // waiting for a worker
+        RUNNING,    // on a worker
+        WAITING,    // halted until a host time interrupt source is due
+        HALTED,     // the processor halted
+        EXHAUSTED,  // the instruction budget ran out
+        CANCELLED,  // cancel() was called
+        FAILED      // a slice threw
+    }
+
+    /**
+     * A machine run by the farm, and its statistics
+     */
+    public static class Instance {
+        private final String name;
+        private final NotSoTinySimulator sim;
+        private final Machine machine;
+        private final long instructionBudget;
+        private final CompletableFuture<Instance> completion;
+
+        // written only by the worker running the instance
+        private volatile long instructions,
+                              slices,
+                              runNanos,
+                              startTime,
+                              endTime;
+
+        private volatile State state;
+        private volatile boolean cancelRequested;
+        private volatile Throwable failure;
+
+        private Instance(String name, NotSoTinySimulator sim, Machine machine, long instructionBudget) {
+            this.name = name;
+            this.sim = sim;
+            this.machine = machine;
+            this.instructionBudget = instructionBudget;
+            this.completion = new CompletableFuture<>();
+
+            this.instructions = 0;
+            this.slices = 0;
+            this.runNanos = 0;
+            this.startTime = System.nanoTime();
+            this.endTime = 0;
+            this.state = State.QUEUED;
+            this.cancelRequested = false;
+            this.failure = null;
+        }
+
+        /**
+         * Stops the instance at the end of its current slice
+         */
+        public void cancel() {
+            this.cancelRequested = true;
+        }
+
+        /**
+         * @return true if the instance will not run again
+         */
+        public boolean isDone() {
+            return this.completion.isDone();
+        }
+
+        /**
+         * @return Average instructions per microsecond of time spent on a worker
+         */
+        public double getMIPS() {
+            long nanos = this.runNanos;
+            return (nanos == 0) ? 0 : (this.instructions * 1000.0) / nanos;
+        }
+
+        /**
+         * @return Time from submission until done, or until now if running
+         */
+        public long getElapsedNanos() {
+            long end = this.endTime;
+            return ((end == 0) ? System.nanoTime() : end) - this.startTime;
+        }
+
+        public String getName() { return this.name; }
+        public NotSoTinySimulator getSimulator() { return this.sim; }
+        public Machine getMachine() { return this.machine; }
+        public long getInstructionBudget() { return this.instructionBudget; }
+        public CompletableFuture<Instance> getCompletion() { return this.completion; }
+        public long getInstructions() { return this.instructions; }
+        public long getSlices() { return this.slices; }
+        public long getRunNanos() { return this.runNanos; }
+        public State getState() { return this.state; }
+        public Throwable getFailure() { return this.failure; }
+    }
+
+    private final LinkedBlockingQueue<Instance> runQueue;
+
+    private final List<Instance> instances;
+
+    private final Thread[] workers;
+
+    private final int sliceSize;
+
+    private final ScheduledExecutorService waker;   // requeues waiting instances
+
+    private volatile boolean closed;
+
+    /**
+     * Create a farm with a platform worker per processor and the default slice size
+     */
+    public SimulationFarm() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE, Thread.ofPlatform().name("farm-worker-", 0).daemon(true).factory());
+    }
+
+    /**
+     * @param workerCount Number of worker threads
+     * @param sliceSize Instructions an instance runs before going to the back of the queue
+     * @param threadFactory Creates the worker threads
+     */
+    public SimulationFarm(int workerCount, int sliceSize, ThreadFactory threadFactory) {
+        if(workerCount < 1 || sliceSize < 1) {
+            throw new IllegalArgumentException("Worker count and slice size must be positive");
+        }
+
+        this.runQueue = new LinkedBlockingQueue<>();
+        this.instances = Collections.synchronizedList(new ArrayList<>());
+        this.workers = new Thread[workerCount];
+        this.sliceSize = sliceSize;
+        this.closed = false;
+        this.waker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("farm-waker").daemon(true).factory());
+
+        for(int i = 0; i < workerCount; i++) {
+            this.workers[i] = threadFactory.newThread(this::work);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Adds a loaded machine to the farm. The farm closes the machine when it is closed.
+     *
+     * @param name
+     * @param machine
+     * @param instructionBudget Maximum instructions to run, or Long.MAX_VALUE to run until halted
+     * @return
+     */
+    public Instance submit(String name, Machine machine, long instructionBudget) {
+        if(machine.getSimulator() == null) {
+            throw new IllegalArgumentException("Machine " + name + " has no program loaded");
+        }
+
+        return submit(name, machine.getSimulator(), machine.getInterruptController(), machine, instructionBudget);
+    }
+
+    /**
+     * Adds a simulator to the farm. The simulator must not be stepped elsewhere while the farm runs it.
+     *
+     * @param name
+     * @param sim
+     * @param pic Interrupt controller for the simulator to step, or null to keep the simulator's own
+     * @param instructionBudget Maximum instructions to run, or Long.MAX_VALUE to run until halted
+     * @return
+     */
+    public Instance submit(String name, NotSoTinySimulator sim, InterruptController pic, long instructionBudget) {
+        return submit(name, sim, pic, null, instructionBudget);
+    }
+
+    /**
+     * @param name
+     * @param sim
+     * @param pic
+     * @param machine Machine to close with the farm, or null
+     * @param instructionBudget
+     * @return
+     */
+    private Instance submit(String name, NotSoTinySimulator sim, InterruptController pic, Machine machine, long instructionBudget) {
+        if(this.closed) {
+            throw new IllegalStateException("Farm is closed");
+        }
+
+        if(pic != null) {
+            sim.setInterruptController(pic);
+        }
+
+        Instance instance = new Instance(name, sim, machine, instructionBudget);
+        this.instances.add(instance);
+        this.runQueue.add(instance);
+
+        return instance;
+    }
+
+    /**
+     * Worker loop
+     */
+    private void work() {
+        try {
+            while(!this.closed) {
+                Instance instance = this.runQueue.take();
+
+                if(runSlice(instance)) {
+                    this.runQueue.add(instance);
+                }
+            }
+        } catch(InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Runs one slice of an instance
+     *
+     * @param instance
+     * @return true if the instance should run again
+     */
+    private boolean runSlice(Instance instance) {
+        NotSoTinySimulator sim = instance.sim;
+
+        if(instance.cancelRequested || this.closed) {
+            finish(instance, State.CANCELLED);
+            return false;
+        }
+
+        instance.state = State.RUNNING;
+
+        long remaining = instance.instructionBudget - instance.instructions,
+             slice = Math.min(this.sliceSize, remaining),
+             startCount = sim.getInstructionCount(),
+             start = System.nanoTime(),
+             executed = 0;
+
+        try {
+            // faults and interrupts also stop a run, so keep going until the slice is done or the processor halts
+            while(executed < slice && sim.run(slice - executed) != StopReason.HALTED) {
+                executed = sim.getInstructionCount() - startCount;
+            }
+        } catch(RuntimeException e) {
+            LOG.log(Level.WARNING, "Instance " + instance.name + " failed", e);
+            instance.failure = e;
+        }
+
+        instance.runNanos += System.nanoTime() - start;
+        instance.instructions += sim.getInstructionCount() - startCount;
+        instance.slices++;
+
+        if(instance.failure != null) {
+            finish(instance, State.FAILED);
+            return false;
+        } else if(sim.getHalted()) {
+            long deadline = getWakeDeadline(sim);
+
+            if(deadline == Long.MAX_VALUE) {
+                finish(instance, State.HALTED);
+            } else {
+                // the waker requeues it
+                instance.state = State.WAITING;
+
+                try {
+                    this.waker.schedule(() -> this.runQueue.add(instance), Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch(RejectedExecutionException e) {
+                    // closed
+                    finish(instance, State.CANCELLED);
+                }
+            }
+
+            return false;
+        } else if(instance.instructions >= instance.instructionBudget) {
+            finish(instance, State.EXHAUSTED);
+            return false;
+        }
+
+        instance.state = State.QUEUED;
+        return true;
+    }
+
+    /**
+     * @param sim Halted simulator
+     * @return System.nanoTime() at which a host time interrupt source can wake the simulator, or Long.MAX_VALUE if
+     * nothing will
+     */
+    private static long getWakeDeadline(NotSoTinySimulator sim) {
+        InterruptController pic = sim.getInterruptController();
+
+        if(pic == null || (sim.getRegPF() & 0x01) == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        return pic.getHostDeadline();
+    }
+
+    /**
+     * Marks an instance as done
+     *
+     * @param instance
+     * @param state
+     */
+    private void finish(Instance instance, State state) {
+        instance.endTime = System.nanoTime();
+        instance.state = state;
+        instance.completion.complete(instance);
+    }
+
+    /**
+     * Waits for every submitted instance to finish
+     *
+     * @throws InterruptedException
+     */
+    public void awaitAll() throws InterruptedException {
+        for(Instance instance : getInstances()) {
+            try {
+                instance.completion.get();
+            } catch(ExecutionException e) {
+                // instances complete normally
+            }
+        }
+    }
+
+    /**
+     * @return Snapshot of the submitted instances
+     */
+    public List<Instance> getInstances() {
+        synchronized(this.instances) {
+            return new ArrayList<>(this.instances);
+        }
+    }
+
+    /**
+     * @return Instructions run by all instances
+     */
+    public long getTotalInstructions() {
+        long total = 0;
+
+        for(Instance instance : getInstances()) {
+            total += instance.instructions;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return Instances not yet done
+     */
+    public int getActiveCount() {
+        int active = 0;
+
+        for(Instance instance : getInstances()) {
+            if(!instance.isDone()) {
+                active++;
+            }
+        }
+
+        return active;
+    }
+
+    public int getWorkerCount() { return this.workers.length; }
+    public int getSliceSize() { return this.sliceSize; }
+
+    /**
+     * Stops the workers and closes the submitted machines. Instances still queued or waiting are cancelled.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.waker.shutdownNow();
+
+        for(Thread worker : this.workers) {
+            worker.interrupt();
+        }
+
+        for(Thread worker : this.workers) {
+            try {
+                worker.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Instance instance;
+
+        while((instance = this.runQueue.poll()) != null) {
+            finish(instance, State.CANCELLED);
+        }
+
+        for(Instance i : getInstances()) {
+            if(i.state == State.WAITING) {
+                finish(i, State.CANCELLED);
+            }
+
+            if(i.machine != null) {
+                i.machine.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package notsotiny.sim;
+
+/**
+ * Decides whether NotSoTinySimulator.runUntil() should stop
+ *
+ * @author Mechafinch
+ */
+@FunctionalInterface
+public interface StopCondition {
+
+    /**
+     * Tested on the thread running the simulator, before each instruction or interrupt entry
+     *
+     * @param sim
+     * @return true to stop before the instruction at IP
+     */
+    public boolean shouldStop(NotSoTinySimulator sim);
+}
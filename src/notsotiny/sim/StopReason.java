@@ -0,0 +1,15 @@
+package notsotiny.sim;
+
+/**
+ * Why NotSoTinySimulator.run() returned
+ *
+ * @author Mechafinch
+ */
+public enum StopReason {
+    HALTED,     // the processor is halted, by HLT or requestHalt()
+    BREAKPOINT, // an instruction reached a breakpoint
+    CONDITION,  // the stop condition held
+    BUDGET,     // the instruction budget was used up
+    FAULT,      // an instruction faulted and its exception interrupt was entered
+    INTERRUPT   // an external interrupt was entered
+}
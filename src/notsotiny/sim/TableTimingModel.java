@@ -0,0 +1,184 @@
+package notsotiny.sim;
+
+import java.util.HashMap;
+
+import notsotiny.sim.memory.Segment;
+import notsotiny.sim.ops.ExecutionGroup;
+import notsotiny.sim.ops.Opcode;
+
+/**
+ * A TimingModel taking costs from tables. Opcodes cost a base number of cycles, memory accesses cost a latency for
+ * the segment (or the cache) plus a cost per bus transfer, and control flow changes cost a fixed penalty.
+ *
+ * @author Mechafinch
+ */
+public class TableTimingModel implements TimingModel {
+
+    public static final int DEFAULT_INSTRUCTION_CYCLES = 1,
+                            DEFAULT_BRANCH_PENALTY = 2,
+                            DEFAULT_MEMORY_LATENCY = 2,
+                            DEFAULT_CACHE_LATENCY = 0,
+                            DEFAULT_INTERRUPT_CYCLES = 4,
+                            DEFAULT_BUS_WIDTH = 2;
+
+    // indexed by unsigned opcode
+    private int[] instructionCycles,
+                  branchPenalties;
+
+    // latency by segment start address
+    private HashMap<Long, Integer> segmentLatencies;
+
+    private int defaultMemoryLatency,
+                cacheLatency,
+                busWidth,
+                interruptCycles;
+
+    // most recently looked up segment, to avoid boxing for every access
+    private Segment lastSegment;
+    private int lastLatency;
+
+    /**
+     * Create a model with the default costs
+     */
+    public TableTimingModel() {
+        this.instructionCycles = new int[256];
+        this.branchPenalties = new int[256];
+        this.segmentLatencies = new HashMap<>();
+
+        this.defaultMemoryLatency = DEFAULT_MEMORY_LATENCY;
+        this.cacheLatency = DEFAULT_CACHE_LATENCY;
+        this.busWidth = DEFAULT_BUS_WIDTH;
+        this.interruptCycles = DEFAULT_INTERRUPT_CYCLES;
+        this.lastSegment = null;
+
+        for(int i = 0; i < 256; i++) {
+            this.instructionCycles[i] = DEFAULT_INSTRUCTION_CYCLES;
+            this.branchPenalties[i] = DEFAULT_BRANCH_PENALTY;
+        }
+    }
+
+    @Override
+    public int getInstructionCycles(Opcode op, int size) {
+        return this.instructionCycles[op.op & 0xFF];
+    }
+
+    @Override
+    public int getBranchPenalty(Opcode op) {
+        return this.branchPenalties[op.op & 0xFF];
+    }
+
+    @Override
+    public int getMemoryCycles(Segment segment, long address, int size, boolean write, boolean cacheHit) {
+        // bus transfers, counting misaligned accesses that straddle a bus word
+        int transfers = (int)(((address + size - 1) / this.busWidth) - (address / this.busWidth)) + 1;
+
+        if(cacheHit) {
+            return this.cacheLatency + transfers - 1;
+        }
+
+        if(segment != this.lastSegment) {
+            this.lastSegment = segment;
+            this.lastLatency = this.segmentLatencies.getOrDefault(segment.start(), this.defaultMemoryLatency);
+        }
+
+        return this.lastLatency + transfers - 1;
+    }
+
+    @Override
+    public int getInterruptCycles() {
+        return this.interruptCycles;
+    }
+
+    /**
+     * Sets the base cycles of an opcode
+     *
+     * @param op
+     * @param cycles
+     */
+    public void setInstructionCycles(Opcode op, int cycles) {
+        this.instructionCycles[op.op & 0xFF] = cycles;
+    }
+
+    /**
+     * Sets the base cycles of every opcode in an execution group
+     *
+     * @param group
+     * @param cycles
+     */
+    public void setInstructionCycles(ExecutionGroup group, int cycles) {
+        for(Opcode op : Opcode.values()) {
+            if(op.egroup == group) setInstructionCycles(op, cycles);
+        }
+    }
+
+    /**
+     * Sets the penalty for an opcode changing control flow
+     *
+     * @param op
+     * @param cycles
+     */
+    public void setBranchPenalty(Opcode op, int cycles) {
+        this.branchPenalties[op.op & 0xFF] = cycles;
+    }
+
+    /**
+     * Sets the penalty for every opcode changing control flow
+     *
+     * @param cycles
+     */
+    public void setBranchPenalty(int cycles) {
+        for(int i = 0; i < 256; i++) {
+            this.branchPenalties[i] = cycles;
+        }
+    }
+
+    /**
+     * Sets the latency of accesses to the segment starting at an address
+     *
+     * @param start Segment start address
+     * @param cycles
+     */
+    public void setSegmentLatency(long start, int cycles) {
+        this.segmentLatencies.put(start & 0xFFFF_FFFFl, cycles);
+        this.lastSegment = null;
+    }
+
+    /**
+     * Sets the latency of segments without their own
+     *
+     * @param cycles
+     */
+    public void setDefaultMemoryLatency(int cycles) {
+        this.defaultMemoryLatency = cycles;
+        this.lastSegment = null;
+    }
+
+    /**
+     * Sets the latency of cache hits
+     *
+     * @param cycles
+     */
+    public void setCacheLatency(int cycles) {
+        this.cacheLatency = cycles;
+    }
+
+    /**
+     * Sets the bus width. Each transfer after the first costs a cycle.
+     *
+     * @param bytes
+     * @throws IllegalArgumentException if not positive
+     */
+    public void setBusWidth(int bytes) {
+        if(bytes < 1) throw new IllegalArgumentException("Invalid bus width: " + bytes);
+        this.busWidth = bytes;
+    }
+
+    /**
+     * Sets the cycles to enter an interrupt
+     *
+     * @param cycles
+     */
+    public void setInterruptCycles(int cycles) {
+        this.interruptCycles = cycles;
+    }
+}
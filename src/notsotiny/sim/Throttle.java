@@ -0,0 +1,168 @@
+package notsotiny.sim;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a simulator at a target instruction rate.
+ *
+ * Instructions are run in batches, each covering a fixed slice of time at the target rate, and the thread parks until
+ * the guest's virtual time catches up with real time. Deadlines are absolute, so oversleeping is made up by the
+ * following batches. If the guest falls more than the maximum lag behind (a stall, or a target the host can't reach),
+ * the excess is dropped rather than run at full speed.
+ *
+ * Used only by the thread running the simulator.
+ *
+ * @author Mechafinch
+ */
+public class Throttle {
+
+    public static final long DEFAULT_BATCH_NANOS = 1_000_000,      // 1 ms
+                             DEFAULT_MAX_LAG_NANOS = 50_000_000;   // 50 ms
+
+    private final double targetHz;
+
+    private final long batchInstructions,
+                       maxLagNanos;
+
+    // the schedule: instruction n of the schedule is due at epoch + n / targetHz
+    private long epoch,
+                 scheduled;
+
+    // statistics
+    private long totalInstructions,
+                 activeNanos,
+                 droppedNanos,
+                 lastMark;
+
+    /**
+     * @param targetHz Instructions per second
+     */
+    public Throttle(double targetHz) {
+        this(targetHz, DEFAULT_BATCH_NANOS, DEFAULT_MAX_LAG_NANOS);
+    }
+
+    /**
+     * @param targetHz Instructions per second
+     * @param batchNanos Time covered by each batch. Shorter batches are smoother but park more often.
+     * @param maxLagNanos How far behind the guest can fall before time is dropped
+     */
+    public Throttle(double targetHz, long batchNanos, long maxLagNanos) {
+        if(!(targetHz > 0) || batchNanos < 1 || maxLagNanos < 0) {
+            throw new IllegalArgumentException("Target frequency and batch length must be positive");
+        }
+
+        this.targetHz = targetHz;
+        this.batchInstructions = Math.max(1, Math.round(targetHz * batchNanos / 1_000_000_000.0));
+        this.maxLagNanos = maxLagNanos;
+
+        this.totalInstructions = 0;
+        this.activeNanos = 0;
+        this.droppedNanos = 0;
+
+        sync();
+    }
+
+    /**
+     * Restarts the schedule from now. Call after the simulator has been idle, e.g. halted, so the time spent isn't
+     * treated as lag.
+     */
+    public void sync() {
+        this.epoch = System.nanoTime();
+        this.scheduled = 0;
+        this.lastMark = this.epoch;
+    }
+
+    /**
+     * Runs at the target rate until the budget is used up or the simulator stops for another reason
+     *
+     * @param sim
+     * @param maxInstructions
+     * @return Why it stopped
+     * @throws InterruptedException if interrupted while waiting for a deadline
+     */
+    public StopReason run(NotSoTinySimulator sim, long maxInstructions) throws InterruptedException {
+        return runUntil(sim, maxInstructions, null);
+    }
+
+    /**
+     * As run(), testing the condition before each instruction
+     *
+     * @param sim
+     * @param maxInstructions
+     * @param condition Passed to NotSoTinySimulator.runUntil(), or null
+     * @return Why it stopped
+     * @throws InterruptedException if interrupted while waiting for a deadline
+     */
+    public StopReason runUntil(NotSoTinySimulator sim, long maxInstructions, StopCondition condition) throws InterruptedException {
+        long remaining = maxInstructions;
+        StopReason reason = StopReason.BUDGET;
+
+        while(remaining > 0 && reason == StopReason.BUDGET) {
+            awaitDeadline();
+
+            long before = sim.getInstructionCount();
+            reason = sim.runUntil(Math.min(this.batchInstructions, remaining), condition);
+            long executed = sim.getInstructionCount() - before;
+
+            remaining -= executed;
+            this.scheduled += executed;
+            this.totalInstructions += executed;
+        }
+
+        long now = System.nanoTime();
+        this.activeNanos += now - this.lastMark;
+        this.lastMark = now;
+
+        return reason;
+    }
+
+    /**
+     * Parks until the next scheduled instruction is due, dropping lag past the maximum
+     *
+     * @throws InterruptedException
+     */
+    private void awaitDeadline() throws InterruptedException {
+        long now = System.nanoTime(),
+             deadline = this.epoch + (long)(this.scheduled * 1_000_000_000.0 / this.targetHz),
+             lag = now - deadline;
+
+        if(lag > this.maxLagNanos) {
+            this.epoch += lag - this.maxLagNanos;
+            this.droppedNanos += lag - this.maxLagNanos;
+            return;
+        }
+
+        while(deadline - now > 0) {
+            LockSupport.parkNanos(deadline - now);
+
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            now = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return Instructions per second since the statistics were reset, not counting time idle before a sync()
+     */
+    public double getAchievedHz() {
+        return (this.activeNanos == 0) ? 0 : (this.totalInstructions * 1_000_000_000.0) / this.activeNanos;
+    }
+
+    /**
+     * Clears the statistics
+     */
+    public void resetStatistics() {
+        this.totalInstructions = 0;
+        this.activeNanos = 0;
+        this.droppedNanos = 0;
+        this.lastMark = System.nanoTime();
+    }
+
+    public double getTargetHz() { return this.targetHz; }
+    public long getBatchInstructions() { return this.batchInstructions; }
+    public long getMaxLagNanos() { return this.maxLagNanos; }
+    public long getTotalInstructions() { return this.totalInstructions; }
+    public long getDroppedNanos() { return this.droppedNanos; }
+}
@@ -0,0 +1,48 @@
+package notsotiny.sim;
+
+import notsotiny.sim.memory.Segment;
+import notsotiny.sim.ops.Opcode;
+
+/**
+ * Estimates the cycles taken by the hardware, for a simulator to accumulate
+ *
+ * @author Mechafinch
+ */
+public interface TimingModel {
+
+    /**
+     * Cycles for an instruction excluding data memory accesses, including fetch
+     *
+     * @param op
+     * @param size Instruction size in bytes
+     * @return
+     */
+    public int getInstructionCycles(Opcode op, int size);
+
+    /**
+     * Extra cycles for an instruction which changed control flow
+     *
+     * @param op
+     * @return
+     */
+    public int getBranchPenalty(Opcode op);
+
+    /**
+     * Cycles for a data memory access
+     *
+     * @param segment Segment accessed
+     * @param address
+     * @param size Bytes accessed
+     * @param write
+     * @param cacheHit True if served by a cache without touching the segment
+     * @return
+     */
+    public int getMemoryCycles(Segment segment, long address, int size, boolean write, boolean cacheHit);
+
+    /**
+     * Cycles to enter an interrupt, excluding its memory accesses
+     *
+     * @return
+     */
+    public int getInterruptCycles();
+}
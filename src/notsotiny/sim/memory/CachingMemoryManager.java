@@ -1,60 +1,133 @@
 package notsotiny.sim.memory;
 
 import java.util.HashMap;
-import java.util.Map.Entry;
 
 /**
- * Memory manager which caches some segments
- * TODO: verify performance benefits in current system
- * TODO: fix privilege handling (currently raises an exception even when privileged)
+ * Memory manager which caches some segments in a set-associative cache.
+ * Size, line size, associativity, replacement and write policy are configurable, to model the cache of the hardware.
+ *
+ * @author Mechafinch
  */
-public class CachingMemoryManager extends MemoryManager {
+public class CachingMemoryManager extends PageTableMemoryManager {
     
-    private static final boolean DEBUG = false;
+    /**
+     * How a way is chosen for eviction
+     */
+    public enum ReplacementPolicy {
+        LRU,    // least recently used
+        PLRU,   // tree pseudo-LRU
+        RANDOM
+    }
     
-    private static final int CACHE_SIZE = 16384,
-                             BLOCK_SIZE = 32,
-                             BLOCK_SHIFT = 5,   // log2(BLOCK_SIZE)
-                             BLOCK_COUNT = CACHE_SIZE >> BLOCK_SHIFT,
-                             BLOCK_MASK = BLOCK_COUNT - 1,
-                             INDEX_MASK = BLOCK_SIZE - 1,
-                             LINE_MASK = ~INDEX_MASK,
-                             TAG_SHIFT = 14;    // log2(CACHE_SIZE)\
+    /**
+     * When writes reach memory
+     */
+    public enum WritePolicy {
+        WRITE_BACK,     // written when evicted. Write misses allocate.
+        WRITE_THROUGH   // written immediately. Write misses don't allocate.
+    }
     
-    private int[] tags;
-    private boolean[] dirty,
-                      readPrivilege,
-                      writePrivilege;
-    private byte[][] cache;
+    public static final int DEFAULT_CACHE_SIZE = 16384,
+                            DEFAULT_LINE_SIZE = 32,
+                            DEFAULT_WAYS = 1;
+                            
+    private static final long INVALID = -1;
     
+    // geometry
+    private final int lineSize,
+                      lineShift,
+                      lineMask,
+                      ways,
+                      waysShift,
+                      sets,
+                      setMask;
+                      
+    private final ReplacementPolicy replacementPolicy;
+    private final WritePolicy writePolicy;
+    
+    // per line, indexed by set * ways + way
+    private long[] tags;        // line number (address >>> lineShift) or INVALID
+    private boolean[] dirty;
+    private Segment[] lineSegments;
+    private byte[] data;        // line i at i << lineShift
+    
+    // replacement state
+    private long[] lastUsed;    // LRU, per line
+    private long useCounter;
+    private int[] plruBits;     // PLRU, per set. Bit n is node n of the tree, 1 = victim is on the right
+    private int randomState;
+    
+    // statistics
+    private long hits,
+                 misses,
+                 evictions,
+                 writebacks;
+                 
     // Map of what segments are cachable
     private HashMap<Long, Boolean> cachabilityMap;
     
+    // most recently checked segment, to avoid boxing for every access
+    private Segment lastCheckedSegment;
+    private boolean lastCheckedCachable;
+    
     /**
-     * Create an empty CachingMemoryManager
+     * Create a 16 KiB direct mapped write-back cache with 32 byte lines
      */
     public CachingMemoryManager() {
+        this(DEFAULT_CACHE_SIZE, DEFAULT_LINE_SIZE, DEFAULT_WAYS, ReplacementPolicy.LRU, WritePolicy.WRITE_BACK);
+    }
+    
+    /**
+     * Create a CachingMemoryManager with the given cache configuration
+     *
+     * @param cacheSize Total size in bytes
+     * @param lineSize Line size in bytes
+     * @param ways Associativity. 1 for direct mapped, cacheSize / lineSize for fully associative.
+     * @param replacementPolicy
+     * @param writePolicy
+     * @throws IllegalArgumentException if the sizes aren't powers of two or don't divide evenly
+     */
+    public CachingMemoryManager(int cacheSize, int lineSize, int ways, ReplacementPolicy replacementPolicy, WritePolicy writePolicy) {
         super();
         
-        this.cachabilityMap = new HashMap<>();
+        if(Integer.bitCount(cacheSize) != 1 || Integer.bitCount(lineSize) != 1 || Integer.bitCount(ways) != 1 ||
+           lineSize < 4 || ways > 32 || cacheSize < lineSize * ways) {
+            throw new IllegalArgumentException("Invalid cache geometry: " + cacheSize + " bytes, " + lineSize + " byte lines, " + ways + " ways");
+        }
+        
+        this.lineSize = lineSize;
+        this.lineShift = Integer.numberOfTrailingZeros(lineSize);
+        this.lineMask = lineSize - 1;
+        this.ways = ways;
+        this.waysShift = Integer.numberOfTrailingZeros(ways);
+        this.sets = cacheSize / (lineSize * ways);
+        this.setMask = this.sets - 1;
+        this.replacementPolicy = replacementPolicy;
+        this.writePolicy = writePolicy;
         
-        this.cache = new byte[BLOCK_COUNT][BLOCK_SIZE];
-        this.tags = new int[BLOCK_COUNT];
-        this.dirty = new boolean[BLOCK_COUNT];
-        this.readPrivilege = new boolean[BLOCK_COUNT];
-        this.writePrivilege = new boolean[BLOCK_COUNT];
-        
-        for(int i = 0; i < BLOCK_COUNT; i++) {
-            this.tags[i] = -1;
-            this.dirty[i] = false;
-            this.readPrivilege[i] = true;
-            this.writePrivilege[i] = true;
+        int lines = this.sets * ways;
+        this.tags = new long[lines];
+        this.dirty = new boolean[lines];
+        this.lineSegments = new Segment[lines];
+        this.data = new byte[cacheSize];
+        this.lastUsed = new long[lines];
+        this.plruBits = new int[this.sets];
+        this.useCounter = 0;
+        this.randomState = 0x2545F491;
+        
+        for(int i = 0; i < lines; i++) {
+            this.tags[i] = INVALID;
         }
+        
+        this.cachabilityMap = new HashMap<>();
+        this.lastCheckedSegment = null;
+        
+        resetStatistics();
     }
     
     /**
      * Adds a new segment to the memory map
-     * 
+     *
      * @param mc Segment controller
      * @param start Start address
      * @param end End address
@@ -64,8 +137,8 @@ public class CachingMemoryManager extends MemoryManager {
     public void registerSegment(MemoryController mc, long start, long size, boolean cachable) {
         super.registerSegment(mc, start, size);
         start &= 0xFFFF_FFFFl;
-        //System.out.printf("%s %08X %s\n", mc, start, cachable);
         this.cachabilityMap.put(start, cachable);
+        this.lastCheckedSegment = null;
     }
     
     @Override
@@ -75,301 +148,458 @@ public class CachingMemoryManager extends MemoryManager {
     
     @Override
     public void removeSegment(long address) {
-        super.removeSegment(address);
-        
         address &= 0xFFFF_FFFFl;
+        
+        // lines of the segment go back to it before it's gone
+        for(int i = 0; i < this.tags.length; i++) {
+            if(this.tags[i] != INVALID && this.lineSegments[i].start() == address) {
+                if(this.dirty[i]) writeBack(i);
+                this.tags[i] = INVALID;
+                this.lineSegments[i] = null;
+            }
+        }
+        
+        super.removeSegment(address);
         this.cachabilityMap.remove(address);
+        this.lastCheckedSegment = null;
     }
     
     /**
-     * Reads a cache line from memory
-     * 
-     * @param tag
-     * @param block
-     * @param address
-     * @param seg
-     * @throws UnprivilegedAccessException
+     * Writes all dirty lines back to memory
      */
-    private void readCacheLine(int tag, int block, long address, Entry<Long, MemoryController> seg) throws UnprivilegedAccessException, NonexistentAccessException {
-        if(this.dirty[block]) {
-            if(DEBUG) System.out.printf("line was dirty ");
-            long dirtyAddress = (this.tags[block] << TAG_SHIFT) | (block << BLOCK_SHIFT);
-            Entry<Long, MemoryController> dirtySeg = getSegment(dirtyAddress, dirtyAddress + 1, true, false);
-            writeCacheLine(this.tags[block], block, dirtyAddress, dirtySeg);
-        } else {
-            if(DEBUG) System.out.printf("line was clean ");
+    public void flush() {
+        for(int i = 0; i < this.tags.length; i++) {
+            if(this.tags[i] != INVALID && this.dirty[i]) {
+                writeBack(i);
+            }
         }
+    }
+    
+    /**
+     * Writes all dirty lines back to memory and empties the cache
+     */
+    public void invalidate() {
+        flush();
         
-        final long lineAddress = (address & LINE_MASK) - seg.getKey();
-        this.tags[block] = tag;
-        this.readPrivilege[block] = seg.getValue().readRequiresPrivilege();
-        this.writePrivilege[block] = seg.getValue().writeRequiresPrivilege();
-        byte[] line = this.cache[block];
-        
-        if(DEBUG) System.out.printf("reading block %03X for address %08X with tag %05X from segment offset %08X ", block, address, tag, lineAddress);
+        for(int i = 0; i < this.tags.length; i++) {
+            this.tags[i] = INVALID;
+            this.lineSegments[i] = null;
+        }
+    }
+    
+    /**
+     * Resets the hit, miss, eviction, and writeback counters
+     */
+    public void resetStatistics() {
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        this.writebacks = 0;
+    }
+    
+    /**
+     * Determines if an access can go through the cache. Every line it touches must be inside a cachable segment.
+     *
+     * @param seg
+     * @param address
+     * @param length
+     * @return
+     */
+    private boolean isCachable(Segment seg, long address, int length) {
+        if(seg != this.lastCheckedSegment) {
+            this.lastCheckedSegment = seg;
+            this.lastCheckedCachable = this.cachabilityMap.getOrDefault(seg.start(), false);
+        }
         
-        for(int offs = 0; offs < BLOCK_SIZE; offs += 4) {
-            byte[] data = seg.getValue().read4ByteArray(lineAddress + offs);
+        return this.lastCheckedCachable &&
+               (address & ~this.lineMask) >= seg.start() &&
+               ((address + length - 1) | this.lineMask) <= seg.end();
+    }
+    
+    /**
+     * Finds the line holding an address
+     *
+     * @param address
+     * @return line index, or -1 if not cached
+     */
+    private int findLine(long address) {
+        long lineNumber = address >>> this.lineShift;
+        int set = (int) lineNumber & this.setMask,
+            first = set << this.waysShift;
             
-            line[offs + 0] = data[0];
-            line[offs + 1] = data[1];
-            line[offs + 2] = data[2];
-            line[offs + 3] = data[3];
+        for(int way = 0; way < this.ways; way++) {
+            if(this.tags[first + way] == lineNumber) {
+                this.hits++;
+                touch(set, way);
+                return first + way;
+            }
         }
+        
+        this.misses++;
+        return -1;
     }
     
     /**
-     * Writes a cache line to memory
-     * 
-     * @param tag
-     * @param block
+     * Gets the line holding an address, filling it from memory if needed
+     *
+     * @param seg Segment containing the line
      * @param address
-     * @param seg
-     * @throws UnprivilegedAccessException
+     * @return line index
      */
-    private void writeCacheLine(int tag, int block, long address, Entry<Long, MemoryController> seg) throws UnprivilegedAccessException {
-        final long lineAddress = (address & LINE_MASK) - seg.getKey();
-        this.tags[block] = tag;
-        this.dirty[block] = false;
-        byte[] line = this.cache[block];
-        
-        for(int offs = 0; offs < BLOCK_SIZE; offs += 4) {
-            int val = (line[offs + 0] & 0xFF) | ((line[offs + 1] & 0xFF) << 8) | ((line[offs + 2] & 0xFF) << 16) | ((line[offs + 3] & 0xFF) << 24);
-            seg.getValue().write4Bytes(lineAddress + offs, val);
+    private int getLine(Segment seg, long address) {
+        int line = findLine(address);
+        if(line != -1) return line;
+        
+        long lineNumber = address >>> this.lineShift;
+        int set = (int) lineNumber & this.setMask,
+            way = chooseVictim(set);
+        line = (set << this.waysShift) + way;
+        
+        // evict
+        if(this.tags[line] != INVALID) {
+            this.evictions++;
+            if(this.dirty[line]) writeBack(line);
         }
+        
+        // fill
+        long lineAddress = lineNumber << this.lineShift;
+        seg.controller().readBytes(lineAddress - seg.start(), this.data, line << this.lineShift, this.lineSize);
+        this.tags[line] = lineNumber;
+        this.dirty[line] = false;
+        this.lineSegments[line] = seg;
+        touch(set, way);
+        
+        return line;
     }
     
-    /*
-    @Override
-    public byte readByte(long address, boolean privilege) throws UnprivilegedAccessException {
-        if(DEBUG) System.out.printf("reading byte: %08X ", address);
-        byte b = readByteInternal(address, privilege);
-        if(DEBUG) System.out.printf("got %02X\n", b);
-        return b;
-    }*/
+    /**
+     * Writes a line back to memory
+     *
+     * @param line
+     */
+    private void writeBack(int line) {
+        Segment seg = this.lineSegments[line];
+        long lineAddress = this.tags[line] << this.lineShift;
+        
+        seg.controller().writeBytes(lineAddress - seg.start(), this.data, line << this.lineShift, this.lineSize);
+        this.dirty[line] = false;
+        this.writebacks++;
+    }
     
-    @Override
-    public byte readByte(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        address &= 0xFFFF_FFFFl;
+    /**
+     * Updates replacement state for an access
+     *
+     * @param set
+     * @param way
+     */
+    private void touch(int set, int way) {
+        switch(this.replacementPolicy) {
+            case LRU:
+                this.lastUsed[(set << this.waysShift) + way] = ++this.useCounter;
+                break;
+                
+            case PLRU:
+                // point each node on the path away from this way
+                int bits = this.plruBits[set],
+                    node = 1;
+                    
+                for(int level = this.waysShift - 1; level >= 0; level--) {
+                    int right = (way >> level) & 1;
+                    
+                    if(right == 0) {
+                        bits |= 1 << node;
+                    } else {
+                        bits &= ~(1 << node);
+                    }
+                    
+                    node = (node << 1) | right;
+                }
+                
+                this.plruBits[set] = bits;
+                break;
+                
+            case RANDOM:
+                break;
+        }
+    }
+    
+    /**
+     * Chooses a way to replace
+     *
+     * @param set
+     * @return
+     */
+    private int chooseVictim(int set) {
+        int first = set << this.waysShift;
         
-        int tag = (int)address >> TAG_SHIFT;
-        int block = ((int)address >> BLOCK_SHIFT) & BLOCK_MASK;
-        int index = (int)address & INDEX_MASK;
+        // empty ways first
+        for(int way = 0; way < this.ways; way++) {
+            if(this.tags[first + way] == INVALID) return way;
+        }
         
-        if(this.tags[block] == tag) {
-            // value in cache
-            if(DEBUG) System.out.printf("from cache block %02X index %02X ", block, (int)address & INDEX_MASK);
-            if(this.readPrivilege[block]) throw new UnprivilegedAccessException((int)address);
-            return this.cache[block][index]; 
-        } else {
-            // not in cache, retrieve
-            if(DEBUG) System.out.printf("from memory ");
-            Entry<Long, MemoryController> seg = getSegment(address, address, privilege, true);
+        switch(this.replacementPolicy) {
+            case LRU: {
+                int victim = 0;
+                
+                for(int way = 1; way < this.ways; way++) {
+                    if(this.lastUsed[first + way] < this.lastUsed[first + victim]) victim = way;
+                }
+                
+                return victim;
+            }
+            
+            case PLRU: {
+                int bits = this.plruBits[set],
+                    node = 1;
+                    
+                for(int level = 0; level < this.waysShift; level++) {
+                    node = (node << 1) | ((bits >> node) & 1);
+                }
+                
+                return node - this.ways;
+            }
             
-            // if cachable, cache
-            if(this.cachabilityMap.get(seg.getKey())) {
-                readCacheLine(tag, block, address, seg);
-                return this.cache[block][index];
-            } else {
-                return seg.getValue().readByte(address - seg.getKey());
+            default: {
+                // xorshift
+                int x = this.randomState;
+                x ^= x << 13;
+                x ^= x >>> 17;
+                x ^= x << 5;
+                this.randomState = x;
+                
+                return x & (this.ways - 1);
             }
         }
     }
     
-    /*
-    @Override
-    public short read2Bytes(long address, boolean privilege) throws UnprivilegedAccessException {
-        address &= 0xFFFF_FFFFl;
+    /**
+     * Reads little-endian bytes through the cache
+     *
+     * @param seg
+     * @param address
+     * @param length 1 to 4
+     * @return
+     */
+    private int readCached(Segment seg, long address, int length) {
+        long startMisses = this.misses;
+        int v = 0;
+        
+        for(int i = 0; i < length; ) {
+            long a = address + i;
+            int line = getLine(seg, a),
+                offset = (int) a & this.lineMask,
+                n = Math.min(length - i, this.lineSize - offset),
+                index = (line << this.lineShift) + offset;
+                
+            for(int k = 0; k < n; k++, i++) {
+                v |= (this.data[index + k] & 0xFF) << (i * 8);
+            }
+        }
         
-        int tag = (int)address >> TAG_SHIFT;
-        int block = ((int)address >> BLOCK_SHIFT) & BLOCK_MASK;
-        int index = (int)address & INDEX_MASK;
+        notifyAccess(seg, address, length, false, this.misses == startMisses);
+        return v;
+    }
+    
+    /**
+     * Writes little-endian bytes through the cache
+     *
+     * @param seg
+     * @param address
+     * @param length 1 to 4
+     * @param value
+     */
+    private void writeCached(Segment seg, long address, int length, int value) {
+        boolean writeBack = this.writePolicy == WritePolicy.WRITE_BACK;
+        long startMisses = this.misses;
         
-        if(this.tags[block] == tag) {
-            // value in cache
-            if(DEBUG) System.out.printf("from cache block %02X index %02X ", block, (int)address & INDEX_MASK);
-            if(this.readPrivilege[block]) throw new UnprivilegedAccessException();
+        for(int i = 0; i < length; ) {
+            long a = address + i;
+            int line = writeBack ? getLine(seg, a) : findLine(a),
+                offset = (int) a & this.lineMask,
+                n = Math.min(length - i, this.lineSize - offset);
+                
+            if(line == -1) {
+                // not allocated
+                i += n;
+                continue;
+            }
+            
+            int index = (line << this.lineShift) + offset;
             
-            // when crossing cache lines, break things up
-            if(index >= BLOCK_SIZE - 1) {
-                return (short)((this.readByte(address, privilege) & 0xFF) | (this.readByte(address + 1, privilege) << 8));
-            } else {
-                return (short)((this.cache[block][index + 0] & 0xFF) | ((this.cache[block][index + 1] & 0xFF) << 8));
+            for(int k = 0; k < n; k++, i++) {
+                this.data[index + k] = (byte)(value >> (i * 8));
             }
-        } else {
-            // not in cache, retrieve
-            if(DEBUG) System.out.printf("from memory ");
-            Entry<Long, MemoryController> seg = getSegment(address, address + 1, privilege, true);
             
-            // if cachable, cache
-            if(this.cachabilityMap.get(seg.getKey())) {
-                if(index >= BLOCK_SIZE - 1) {
-                    // 2 lins
-                    readCacheLine(tag, block, address, seg);
-                    readCacheLine(tag, block + 1, address + 32, seg);
-                } else {
-                    // 1 line
-                    readCacheLine(tag, block, address, seg);
-                    return (short)((this.cache[block][index + 0] & 0xFF) | ((this.cache[block][index + 1] & 0xFF) << 8));
-                }
-            } else {
-                return seg.getValue().read2Bytes(address - seg.getKey());
+            if(writeBack) this.dirty[line] = true;
+        }
+        
+        if(!writeBack) {
+            long offset = address - seg.start();
+            
+            switch(length) {
+                case 1: seg.controller().writeByte(offset, (byte) value); break;
+                case 2: seg.controller().write2Bytes(offset, (short) value); break;
+                case 3: seg.controller().write3Bytes(offset, value); break;
+                default: seg.controller().write4Bytes(offset, value);
             }
         }
         
-        return (short)((this.readByte(address, privilege) & 0xFF) | (this.readByte(address + 1, privilege) << 8));
+        // write-through always reaches memory
+        notifyAccess(seg, address, length, true, writeBack && this.misses == startMisses);
+    }
+    
+    @Override
+    public byte readByte(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+        address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address, privilege, true);
+        
+        if(isCachable(seg, address, 1)) {
+            return (byte) readCached(seg, address, 1);
+        }
+        
+        return readByte(seg, address);
     }
-    */
     
     @Override
     public short read2Bytes(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        return (short)((this.readByte(address, privilege) & 0xFF) | ((this.readByte(address + 1, privilege) & 0xFF) << 8));
+        address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + 1, privilege, true);
+        
+        if(isCachable(seg, address, 2)) {
+            return (short) readCached(seg, address, 2);
+        }
+        
+        return read2Bytes(seg, address);
     }
     
     @Override
     public int read3Bytes(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        return (this.readByte(address, privilege) & 0xFF) | ((this.readByte(address + 1, privilege) & 0xFF) << 8) | ((this.readByte(address + 2, privilege) & 0xFF) << 16);
+        address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + 2, privilege, true);
+        
+        if(isCachable(seg, address, 3)) {
+            // sign extended, as FlatMemoryController does
+            return (readCached(seg, address, 3) << 8) >> 8;
+        }
+        
+        return read3Bytes(seg, address);
     }
     
     @Override
     public int read4Bytes(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        return (this.readByte(address, privilege) & 0xFF) | ((this.readByte(address + 1, privilege) & 0xFF) << 8) | ((this.readByte(address + 2, privilege) & 0xFF) << 16) | ((this.readByte(address + 3, privilege) & 0xFF) << 24);
+        address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + 3, privilege, true);
+        
+        if(isCachable(seg, address, 4)) {
+            return readCached(seg, address, 4);
+        }
+        
+        return read4Bytes(seg, address);
     }
     
     @Override
-    public void writeByte(long address, byte value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+    public void readBytes(long address, byte[] dest, int offset, int length, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
         address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + length - 1, privilege, true);
         
-        if(DEBUG) System.out.printf("writing byte: %02X to %08X\n", value, address);
-        
-        int tag = (int)address >> TAG_SHIFT;
-        int block = ((int)address >> BLOCK_SHIFT) & BLOCK_MASK;
-        int index = (int)address & INDEX_MASK;
+        if(!isCachable(seg, address, length)) {
+            readBytes(seg, address, dest, offset, length);
+            return;
+        }
         
-        if(this.tags[block] == tag) {
-            // value in cache
-            if(this.writePrivilege[block]) throw new UnprivilegedAccessException((int) address);
-            this.cache[block][index] = value;
-            this.dirty[block] = true;
-        } else {
-            // not in cache
-            Entry<Long, MemoryController> seg = getSegment(address, address, privilege, true);
-            
-            // if cachable, cache
-            if(this.cachabilityMap.get(seg.getKey())) {
-                readCacheLine(tag, block, address, seg);
+        while(length > 0) {
+            int line = getLine(seg, address),
+                lineOffset = (int) address & this.lineMask,
+                n = Math.min(length, this.lineSize - lineOffset);
                 
-                this.cache[block][index] = value;
-                this.dirty[block] = true;
-            } else {
-                seg.getValue().writeByte(address - seg.getKey(), value);
-            }
+            System.arraycopy(this.data, (line << this.lineShift) + lineOffset, dest, offset, n);
+            
+            address += n;
+            offset += n;
+            length -= n;
         }
     }
     
     @Override
-    public void write2Bytes(long address, short value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        this.writeByte(address + 0, (byte) value, privilege);
-        this.writeByte(address + 1, (byte) (value >> 8), privilege);
+    public byte[] read2ByteArray(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+        byte[] b = new byte[2];
+        readBytes(address, b, 0, 2, privilege);
+        return b;
     }
     
     @Override
-    public void write3Bytes(long address, int value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        this.writeByte(address + 0, (byte) value, privilege);
-        this.writeByte(address + 1, (byte) (value >> 8), privilege);
-        this.writeByte(address + 2, (byte) (value >> 16), privilege);
+    public byte[] read3ByteArray(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+        byte[] b = new byte[3];
+        readBytes(address, b, 0, 3, privilege);
+        return b;
     }
     
     @Override
-    public void write4Bytes(long address, int value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
-        this.writeByte(address + 0, (byte) value, privilege);
-        this.writeByte(address + 1, (byte) (value >> 8), privilege);
-        this.writeByte(address + 2, (byte) (value >> 16), privilege);
-        this.writeByte(address + 3, (byte) (value >> 24), privilege);
+    public byte[] read4ByteArray(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+        byte[] b = new byte[4];
+        readBytes(address, b, 0, 4, privilege);
+        return b;
     }
     
-    // Instruction fetch uses these, so they get special attention
     @Override
-    public byte[] read2ByteArray(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+    public void writeByte(long address, byte value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
         address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address, privilege, false);
         
-        int tag = (int)address >> TAG_SHIFT;
-        int block = ((int)address >> BLOCK_SHIFT) & BLOCK_MASK;
-        int index = (int)address & INDEX_MASK;
-        
-        if(this.tags[block] == tag && index < BLOCK_SIZE - 1) {
-            // value in cache & doesn't cross lines
-            if(DEBUG) System.out.printf("from cache block %02X index %02X ", block, (int)address & INDEX_MASK);
-            if(this.readPrivilege[block]) throw new UnprivilegedAccessException((int)address);
-            
-            return new byte[] {
-                this.cache[block][index + 0],
-                this.cache[block][index + 1]
-            };
+        if(isCachable(seg, address, 1)) {
+            writeCached(seg, address, 1, value);
+            notifyWrite(address, 1);
         } else {
-            // defer
-            return new byte[] {
-                this.readByte(address + 0, privilege),
-                this.readByte(address + 1, privilege)
-            };
+            writeByte(seg, address, value);
         }
     }
     
     @Override
-    public byte[] read3ByteArray(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+    public void write2Bytes(long address, short value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
         address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + 1, privilege, false);
         
-        int tag = (int)address >> TAG_SHIFT;
-        int block = ((int)address >> BLOCK_SHIFT) & BLOCK_MASK;
-        int index = (int)address & INDEX_MASK;
-        
-        if(this.tags[block] == tag && index < BLOCK_SIZE - 2) {
-            // value in cache & doesn't cross lines
-            if(DEBUG) System.out.printf("from cache block %02X index %02X ", block, (int)address & INDEX_MASK);
-            if(this.readPrivilege[block]) throw new UnprivilegedAccessException((int)address);
-            
-            return new byte[] {
-                this.cache[block][index + 0],
-                this.cache[block][index + 1],
-                this.cache[block][index + 2]
-            };
+        if(isCachable(seg, address, 2)) {
+            writeCached(seg, address, 2, value);
+            notifyWrite(address, 2);
         } else {
-            // defer
-            return new byte[] {
-                this.readByte(address + 0, privilege),
-                this.readByte(address + 1, privilege),
-                this.readByte(address + 2, privilege)
-            };
+            write2Bytes(seg, address, value);
         }
     }
     
     @Override
-    public byte[] read4ByteArray(long address, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+    public void write3Bytes(long address, int value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
         address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + 2, privilege, false);
         
-        int tag = (int)address >> TAG_SHIFT;
-        int block = ((int)address >> BLOCK_SHIFT) & BLOCK_MASK;
-        int index = (int)address & INDEX_MASK;
+        if(isCachable(seg, address, 3)) {
+            writeCached(seg, address, 3, value);
+            notifyWrite(address, 3);
+        } else {
+            write3Bytes(seg, address, value);
+        }
+    }
+    
+    @Override
+    public void write4Bytes(long address, int value, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+        address &= 0xFFFF_FFFFl;
+        Segment seg = getSegment(address, address + 3, privilege, false);
         
-        if(this.tags[block] == tag && index < BLOCK_SIZE - 3) {
-            // value in cache & doesn't cross lines
-            if(DEBUG) System.out.printf("from cache block %02X index %02X ", block, (int)address & INDEX_MASK);
-            if(this.readPrivilege[block]) throw new UnprivilegedAccessException((int)address);
-            
-            return new byte[] {
-                this.cache[block][index + 0],
-                this.cache[block][index + 1],
-                this.cache[block][index + 2],
-                this.cache[block][index + 3]
-            };
+        if(isCachable(seg, address, 4)) {
+            writeCached(seg, address, 4, value);
+            notifyWrite(address, 4);
         } else {
-            // defer
-            return new byte[] {
-                this.readByte(address + 0, privilege),
-                this.readByte(address + 1, privilege),
-                this.readByte(address + 2, privilege),
-                this.readByte(address + 3, privilege)
-            };
+            write4Bytes(seg, address, value);
         }
     }
+    
+    public long getHits() { return this.hits; }
+    public long getMisses() { return this.misses; }
+    public long getEvictions() { return this.evictions; }
+    public long getWritebacks() { return this.writebacks; }
+    public int getLineSize() { return this.lineSize; }
+    public int getWays() { return this.ways; }
+    public int getSets() { return this.sets; }
+    public ReplacementPolicy getReplacementPolicy() { return this.replacementPolicy; }
+    public WritePolicy getWritePolicy() { return this.writePolicy; }
 }
@@ -0,0 +1,40 @@
+package notsotiny.sim.memory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A MemoryController exposing a 64 bit little-endian cycle counter to guest code.
+ * Reading the first byte latches the whole counter, so reading the low dword then the high dword is consistent.
+ *
+ * @author Mechafinch
+ */
+public class CycleCounterController implements MemoryController {
+
+    public static final int SIZE = 8;
+
+    private LongSupplier counter;
+
+    private long latched;
+
+    /**
+     * @param counter Source of the count, such as NotSoTinySimulator::getCycles
+     */
+    public CycleCounterController(LongSupplier counter) {
+        this.counter = counter;
+        this.latched = 0;
+    }
+
+    @Override
+    public byte readByte(long address) {
+        if(address == 0) {
+            this.latched = this.counter.getAsLong();
+        }
+
+        return (byte)(this.latched >>> (address * 8));
+    }
+
+    @Override
+    public void writeByte(long address, byte value) {
+        // read only
+    }
+}
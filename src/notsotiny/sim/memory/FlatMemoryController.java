@@ -1,5 +1,9 @@
 package notsotiny.sim.memory;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 /**
  * A MemoryController using a flat array
  * 
@@ -7,6 +11,10 @@ package notsotiny.sim.memory;
  */
 public class FlatMemoryController implements MemoryController {
 
+    // little-endian views for multi-byte accesses, also used by MemoryManager's direct path
+    static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN),
+                           INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    
     byte[] mem;
     boolean readPrivileged, writePrivileged;
     
@@ -33,23 +41,17 @@ public class FlatMemoryController implements MemoryController {
     
     @Override
     public short read2Bytes(long address) {
-        int addr = (int) address;
-        
-        return (short)((mem[addr] & 0xFF) | (mem[addr + 1] << 8)); 
+        return (short) SHORT_LE.get(mem, (int) address);
     }
     
     @Override
     public int read3Bytes(long address) {
-        int addr = (int) address;
-        
-        return (mem[addr] & 0xFF) | ((mem[addr + 1] & 0xFF) << 8) | (mem[addr + 2] << 16);
+        return read3Bytes(mem, (int) address);
     }
     
     @Override
     public int read4Bytes(long address) {
-        int addr = (int) address;
-        
-        return (mem[addr] & 0xFF) | ((mem[addr + 1] & 0xFF) << 8) | ((mem[addr + 2] & 0xFF) << 16) | (mem[addr + 3] << 24);
+        return (int) INT_LE.get(mem, (int) address);
     }
     
     @Override
@@ -85,6 +87,16 @@ public class FlatMemoryController implements MemoryController {
         };
     }
 
+    @Override
+    public void readBytes(long address, byte[] dest, int offset, int length) {
+        System.arraycopy(mem, (int) address, dest, offset, length);
+    }
+
+    @Override
+    public void writeBytes(long address, byte[] src, int offset, int length) {
+        System.arraycopy(src, offset, mem, (int) address, length);
+    }
+
     @Override
     public void writeByte(long address, byte value) {
         mem[(int) address] = value;
@@ -92,28 +104,39 @@ public class FlatMemoryController implements MemoryController {
     
     @Override
     public void write2Bytes(long address, short value) {
-        int addr = (int) address;
-        
-        mem[addr + 0] = (byte) value;
-        mem[addr + 1] = (byte)(value >> 8);
+        SHORT_LE.set(mem, (int) address, value);
     }
     
     @Override
     public void write3Bytes(long address, int value) {
-        int addr = (int) address;
-        
-        mem[addr + 0] = (byte) value;
-        mem[addr + 1] = (byte)(value >> 8);
-        mem[addr + 2] = (byte)(value >> 16);
+        write3Bytes(mem, (int) address, value);
     }
     
     @Override
     public void write4Bytes(long address, int value) {
-        int addr = (int) address;
-        
-        mem[addr + 0] = (byte) value;
-        mem[addr + 1] = (byte)(value >> 8);
+        INT_LE.set(mem, (int) address, value);
+    }
+    
+    /**
+     * Get 3 little-endian bytes from an array, sign extended
+     * 
+     * @param mem
+     * @param addr
+     * @return
+     */
+    static int read3Bytes(byte[] mem, int addr) {
+        return ((short) SHORT_LE.get(mem, addr) & 0xFFFF) | (mem[addr + 2] << 16);
+    }
+    
+    /**
+     * Set 3 little-endian bytes in an array
+     * 
+     * @param mem
+     * @param addr
+     * @param value
+     */
+    static void write3Bytes(byte[] mem, int addr, int value) {
+        SHORT_LE.set(mem, addr, (short) value);
         mem[addr + 2] = (byte)(value >> 16);
-        mem[addr + 3] = (byte)(value >> 24);
     }
 }
@@ -1,9 +1,8 @@
 package notsotiny.sim.memory;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 
 import notsotiny.sim.NotSoTinySimulator;
 
@@ -13,24 +12,112 @@ import notsotiny.sim.NotSoTinySimulator;
  * Reading the first 256 addresses will yield 0 if there is no outstanding interrupt on that vector and 1 if there is
  * Reading the second 256 addresses will yield 0 if the vector is maskable and 1 if it is not
  * 
+ * Requests are kept in a 256 bit bitmap, with a summary word marking which of its longs are nonzero, so a step with
+ * nothing requested is one volatile read. Lower vectors have priority. Requests can be made from any thread without
+ * locking; step() is for the thread running the simulator.
+ * 
+ * Devices that raise interrupts on their own, such as timers, are added as sources and polled by step() once one of
+ * their deadlines has passed, so a step before then doesn't touch them.
+ * 
  * @author Mechafinch
  */
 public class InterruptController implements MemoryController {
     
-    private Set<Integer> requestedInterrupts;
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class),
+                                   SUMMARY;
+    
+    static {
+        try {
+            SUMMARY = MethodHandles.lookup().findVarHandle(InterruptController.class, "summary", int.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private long[] requested,       // through WORDS
+                   nonMaskable;     // through WORDS
     
-    private Map<Integer, Boolean> maskable;
+    private int summary;            // through SUMMARY. Bit n is set if requested[n] may be nonzero
+    
+    private volatile Runnable requestListener;
+    
+    private InterruptSource[] sources;
+    
+    private long pollCount,         // instruction count at which the sources are next polled
+                 pollTime;          // System.nanoTime() at which the sources are next polled, or Long.MAX_VALUE
     
     /**
      * Creates a controller
      */
     public InterruptController() {
-        this.requestedInterrupts = new HashSet<>();
-        this.maskable = new HashMap<>();
+        this.requested = new long[4];
+        this.nonMaskable = new long[4];
+        this.summary = 0;
+        this.requestListener = () -> {};
+        this.sources = new InterruptSource[0];
+        this.pollCount = Long.MAX_VALUE;
+        this.pollTime = Long.MAX_VALUE;
+    }
+    
+    /**
+     * Adds a source to poll. Thread running the simulator.
+     * @param source
+     */
+    public void addSource(InterruptSource source) {
+        this.sources = Arrays.copyOf(this.sources, this.sources.length + 1);
+        this.sources[this.sources.length - 1] = source;
+        
+        source.attach(this);
+        sourceChanged();
+    }
+    
+    /**
+     * Makes the next step poll every source, for when a source's deadlines move. Thread running the simulator.
+     */
+    public void sourceChanged() {
+        this.pollCount = 0;
+    }
+    
+    /**
+     * Makes the earliest simulated time deadline of the sources due now, for a halted processor. Thread running the
+     * simulator.
+     * 
+     * @return true if a source had a simulated time deadline
+     */
+    public boolean skipAhead() {
+        InterruptSource earliest = null;
+        long delay = Long.MAX_VALUE;
         
-        for(int i = 0; i < 256; i++) {
-            this.maskable.put(i, true);
+        for(InterruptSource source : this.sources) {
+            long d = source.getSimulatedDelay();
+            
+            if(d < delay) {
+                delay = d;
+                earliest = source;
+            }
         }
+        
+        return earliest != null && earliest.skipAhead();
+    }
+    
+    /**
+     * @return Instruction count at which step() next polls the sources. May be at or before the current count.
+     */
+    public long getPollCount() {
+        return this.pollCount;
+    }
+    
+    /**
+     * @return The earliest host deadline of the sources, or Long.MAX_VALUE
+     */
+    public long getHostDeadline() {
+        long deadline = Long.MAX_VALUE;
+        
+        for(InterruptSource source : this.sources) {
+            deadline = Math.min(deadline, source.getHostDeadline());
+        }
+        
+        return deadline;
     }
     
     /**
@@ -38,7 +125,7 @@ public class InterruptController implements MemoryController {
      * @param vector
      */
     public void setMaskable(byte vector) {
-        this.maskable.put(vector & 0xFF, true);
+        WORDS.getAndBitwiseAnd(this.nonMaskable, (vector & 0xFF) >>> 6, ~(1l << vector));
     }
     
     /**
@@ -46,56 +133,171 @@ public class InterruptController implements MemoryController {
      * @param vector
      */
     public void setNonMaskable(byte vector) {
-        this.maskable.put(vector & 0xFF, false);
+        WORDS.getAndBitwiseOr(this.nonMaskable, (vector & 0xFF) >>> 6, 1l << vector);
+    }
+    
+    /**
+     * Polls the sources if a deadline has passed, then attempts to fire an interrupt if any are requested. The lowest
+     * vector that can be fired is.
+     */
+    public void step(NotSoTinySimulator sim) {
+        if(this.sources.length != 0) {
+            pollSources(sim.getInstructionCount());
+        }
+        
+        fire(sim);
+    }
+    
+    /**
+     * Polls the sources if a deadline has passed, without firing any requests
+     * 
+     * @param sim
+     */
+    public void poll(NotSoTinySimulator sim) {
+        if(this.sources.length != 0) {
+            pollSources(sim.getInstructionCount());
+        }
     }
+    
+    /**
+     * Polls the sources if their earliest deadline has passed, and finds their next deadlines
+     * 
+     * @param count Current instruction count
+     */
+    private void pollSources(long count) {
+        if(count < this.pollCount && (this.pollTime == Long.MAX_VALUE || System.nanoTime() - this.pollTime < 0)) {
+            return;
+        }
+        
+        long delay = Long.MAX_VALUE,
+             time = Long.MAX_VALUE;
+        
+        for(InterruptSource source : this.sources) {
+            source.poll(this);
+            delay = Math.min(delay, source.getSimulatedDelay());
+            time = Math.min(time, source.getHostDeadline());
+        }
         
+        this.pollCount = (delay > Long.MAX_VALUE - count) ? Long.MAX_VALUE : count + delay;
+        this.pollTime = time;
+    }
+    
     /**
-     * Attempts to fire an interrupt if any are requested
+     * Attempts to fire an interrupt if any are requested, without polling the sources. The lowest vector that can be
+     * fired is. Requests wait while the simulator has an interrupt waiting to be taken.
+     * 
+     * @param sim
      */
-    public synchronized void step(NotSoTinySimulator sim) {
-        if(!this.requestedInterrupts.isEmpty()) {
-            // try in whatever order we're given
-            for(int i : requestedInterrupts) {
+    public void fire(NotSoTinySimulator sim) {
+        int summary = (int) SUMMARY.getAcquire(this);
+        
+        if(summary == 0 || sim.hasPendingInterrupt()) {
+            return;
+        }
+        
+        boolean maskableBlocked = false;
+        
+        for(int word = 0; word < 4; word++) {
+            if((summary & (1 << word)) == 0) {
+                continue;
+            }
+            
+            long bits = (long) WORDS.getAcquire(this.requested, word);
+            
+            if(bits == 0) {
+                clearSummary(word);
+                continue;
+            }
+            
+            long nmi = (long) WORDS.getAcquire(this.nonMaskable, word);
+            
+            while(bits != 0) {
+                if(maskableBlocked) {
+                    bits &= nmi;
+                    if(bits == 0) break;
+                }
+                
+                int bit = Long.numberOfTrailingZeros(bits);
+                long mask = 1l << bit;
                 boolean fired;
                 
-                if(this.maskable.get(i)) {
-                    fired = sim.fireMaskableInterrupt((byte) i);
+                if((nmi & mask) != 0) {
+                    fired = sim.fireNonMaskableInterrupt((byte)((word << 6) | bit));
                 } else {
-                    sim.fireNonMaskableInterrupt((byte) i);
-                    fired = true;
+                    fired = sim.fireMaskableInterrupt((byte)((word << 6) | bit));
+                    maskableBlocked = !fired;
                 }
                 
                 if(fired) {
-                    //System.out.println("Fired interrupt " + i);
-                    this.requestedInterrupts.remove(i);
-                    break;
+                    //System.out.println("Fired interrupt " + ((word << 6) | bit));
+                    if(((long) WORDS.getAndBitwiseAnd(this.requested, word, ~mask) & ~mask) == 0) {
+                        clearSummary(word);
+                    }
+                    
+                    return;
                 }
+                
+                bits &= ~mask;
             }
         }
     }
     
+    /**
+     * Clears a summary bit whose word was seen empty. The word is checked again afterwards, so a request racing with
+     * the clear puts the bit back.
+     * 
+     * @param word
+     */
+    private void clearSummary(int word) {
+        SUMMARY.getAndBitwiseAnd(this, ~(1 << word));
+        
+        if((long) WORDS.getVolatile(this.requested, word) != 0) {
+            SUMMARY.getAndBitwiseOr(this, 1 << word);
+        }
+    }
+    
     /**
      * Adds an interrupt request
      * @param vector
      */
-    public synchronized void setRequest(byte vector) {
-        //System.out.println("Requested interrupt " + vector + " (" + (this.requestedInterrupts.contains(vector & 0xFF) ? "present" : "not present") + ")");
-        this.requestedInterrupts.add(vector & 0xFF);
+    public void setRequest(byte vector) {
+        //System.out.println("Requested interrupt " + vector);
+        int word = (vector & 0xFF) >>> 6;
+        
+        WORDS.getAndBitwiseOr(this.requested, word, 1l << vector);
+        SUMMARY.getAndBitwiseOr(this, 1 << word);
+        
+        this.requestListener.run();
     }
-
+    
+    /**
+     * Sets what to call after an interrupt is requested, such as waking an idle simulator
+     * @param listener
+     */
+    public void setRequestListener(Runnable listener) {
+        this.requestListener = listener;
+    }
+    
+    /**
+     * @return true if any interrupt is requested
+     */
+    public boolean hasRequests() {
+        return (int) SUMMARY.getAcquire(this) != 0;
+    }
+    
     @Override
     public byte readByte(long address) {
         int local = (int) address & 0xFF;
         
         if(address < 256) {
             // read requested
-            return (byte) (this.requestedInterrupts.contains(local) ? 1 : 0);
+            return (byte) (((long) WORDS.getAcquire(this.requested, local >>> 6) >>> local) & 1);
         } else {
             // read maskability
-            return (byte) (this.maskable.get(local) ? 0 : 1);
+            return (byte) (((long) WORDS.getAcquire(this.nonMaskable, local >>> 6) >>> local) & 1);
         }
     }
-
+    
     @Override
     public void writeByte(long address, byte value) {
         // TODO Auto-generated method stub
@@ -0,0 +1,52 @@
+package notsotiny.sim.memory;
+
+/**
+ * A device that requests interrupts on its own, polled by the InterruptController it's added to rather than running
+ * a thread of its own.
+ * Sources are only polled once a deadline they report has passed, so a source must call
+ * InterruptController.sourceChanged() when its deadlines move earlier.
+ *
+ * @author Mechafinch
+ */
+public interface InterruptSource {
+
+    /**
+     * Requests any interrupts that are due. Called from InterruptController.step(), on the thread running the simulator.
+     *
+     * @param pic
+     */
+    public void poll(InterruptController pic);
+
+    /**
+     * @return System.nanoTime() at which the source next needs polling, or Long.MAX_VALUE if it doesn't depend on host
+     * time. Lets an idle simulator sleep until then.
+     */
+    public default long getHostDeadline() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return Instructions that can run before the source next needs polling, 0 to be polled at every check, or
+     * Long.MAX_VALUE if it doesn't depend on simulated time. May be early, but not late.
+     */
+    public default long getSimulatedDelay() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Makes the source's simulated time deadline due now. Simulated time doesn't pass while the processor is halted, so
+     * this is how a halt waits for it.
+     *
+     * @return true if the source had a simulated time deadline
+     */
+    public default boolean skipAhead() {
+        return false;
+    }
+
+    /**
+     * Called when the source is added to an interrupt controller
+     *
+     * @param pic
+     */
+    public default void attach(InterruptController pic) {}
+}
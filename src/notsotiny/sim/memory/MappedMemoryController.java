@@ -0,0 +1,189 @@
+package notsotiny.sim.memory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A MemoryController backed by off-heap memory, optionally mapped from a file.
+ * Mapped memory persists to the file, so it can be saved and restored without copying through the heap.
+ *
+ * @author Mechafinch
+ */
+public class MappedMemoryController implements MemoryController, AutoCloseable {
+
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Arena arena;
+
+    private final MemorySegment mem;
+
+    private final boolean readPrivileged,
+                          writePrivileged,
+                          mapped;
+
+    /**
+     * Create a controller over zeroed off-heap memory
+     *
+     * @param size Size in bytes
+     * @param readPrivileged
+     * @param writePrivileged
+     */
+    public MappedMemoryController(long size, boolean readPrivileged, boolean writePrivileged) {
+        this.arena = Arena.ofShared();
+        this.mem = this.arena.allocate(size, 8);
+        this.readPrivileged = readPrivileged;
+        this.writePrivileged = writePrivileged;
+        this.mapped = false;
+    }
+
+    /**
+     * Create a controller mapping a file. The file is created or extended to the given size if needed.
+     *
+     * @param file
+     * @param size Size in bytes
+     * @param readPrivileged
+     * @param writePrivileged
+     * @throws IOException
+     */
+    public MappedMemoryController(Path file, long size, boolean readPrivileged, boolean writePrivileged) throws IOException {
+        this.arena = Arena.ofShared();
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            this.mem = channel.map(MapMode.READ_WRITE, 0, size, this.arena);
+        } catch(IOException | RuntimeException e) {
+            this.arena.close();
+            throw e;
+        }
+
+        this.readPrivileged = readPrivileged;
+        this.writePrivileged = writePrivileged;
+        this.mapped = true;
+    }
+
+    @Override
+    public boolean readRequiresPrivilege() {
+        return this.readPrivileged;
+    }
+
+    @Override
+    public boolean writeRequiresPrivilege() {
+        return this.writePrivileged;
+    }
+
+    @Override
+    public byte readByte(long address) {
+        return this.mem.get(ValueLayout.JAVA_BYTE, address);
+    }
+
+    @Override
+    public short read2Bytes(long address) {
+        return this.mem.get(SHORT_LE, address);
+    }
+
+    @Override
+    public int read3Bytes(long address) {
+        // sign extended, as FlatMemoryController does
+        return (this.mem.get(SHORT_LE, address) & 0xFFFF) | (this.mem.get(ValueLayout.JAVA_BYTE, address + 2) << 16);
+    }
+
+    @Override
+    public int read4Bytes(long address) {
+        return this.mem.get(INT_LE, address);
+    }
+
+    @Override
+    public void readBytes(long address, byte[] dest, int offset, int length) {
+        MemorySegment.copy(this.mem, ValueLayout.JAVA_BYTE, address, dest, offset, length);
+    }
+
+    @Override
+    public void writeBytes(long address, byte[] src, int offset, int length) {
+        MemorySegment.copy(src, offset, this.mem, ValueLayout.JAVA_BYTE, address, length);
+    }
+
+    @Override
+    public void writeByte(long address, byte value) {
+        this.mem.set(ValueLayout.JAVA_BYTE, address, value);
+    }
+
+    @Override
+    public void write2Bytes(long address, short value) {
+        this.mem.set(SHORT_LE, address, value);
+    }
+
+    @Override
+    public void write3Bytes(long address, int value) {
+        this.mem.set(SHORT_LE, address, (short) value);
+        this.mem.set(ValueLayout.JAVA_BYTE, address + 2, (byte)(value >> 16));
+    }
+
+    @Override
+    public void write4Bytes(long address, int value) {
+        this.mem.set(INT_LE, address, value);
+    }
+
+    /**
+     * Copies data into memory
+     *
+     * @param address Destination address
+     * @param data
+     * @param offset Index in data of the first byte
+     * @param length
+     */
+    public void load(long address, byte[] data, int offset, int length) {
+        writeBytes(address, data, offset, length);
+    }
+
+    /**
+     * Copies memory out to another segment, such as a snapshot
+     *
+     * @param address Source address
+     * @param dest
+     * @param destOffset
+     * @param length
+     */
+    public void copyTo(long address, MemorySegment dest, long destOffset, long length) {
+        MemorySegment.copy(this.mem, address, dest, destOffset, length);
+    }
+
+    /**
+     * Copies memory in from another segment, such as a snapshot
+     *
+     * @param src
+     * @param srcOffset
+     * @param address Destination address
+     * @param length
+     */
+    public void copyFrom(MemorySegment src, long srcOffset, long address, long length) {
+        MemorySegment.copy(src, srcOffset, this.mem, address, length);
+    }
+
+    /**
+     * Writes mapped memory back to its file. Does nothing if not mapped.
+     */
+    public void force() {
+        if(this.mapped) {
+            this.mem.force();
+        }
+    }
+
+    /**
+     * Releases the memory. The controller cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        this.arena.close();
+    }
+
+    public long getSize() { return this.mem.byteSize(); }
+    public boolean isMapped() { return this.mapped; }
+}
@@ -0,0 +1,20 @@
+package notsotiny.sim.memory;
+
+/**
+ * Receives notice of reads and writes made through a MemoryManager, such that their cost can be modeled
+ *
+ * @author Mechafinch
+ */
+public interface MemoryAccessListener {
+
+    /**
+     * Called for each access which passed its privilege and bounds checks
+     *
+     * @param segment Segment accessed
+     * @param address Address of the access
+     * @param size Number of bytes accessed
+     * @param write True for writes
+     * @param cacheHit True if served by a cache without touching the segment
+     */
+    public void memoryAccessed(Segment segment, long address, int size, boolean write, boolean cacheHit);
+}
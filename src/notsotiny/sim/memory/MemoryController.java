@@ -103,6 +103,34 @@ public interface MemoryController {
         };
     }
     
+    /**
+     * Reads bytes into an existing array
+     * 
+     * @param address
+     * @param dest
+     * @param offset Index in dest of the first byte
+     * @param length
+     */
+    public default void readBytes(long address, byte[] dest, int offset, int length) {
+        for(int i = 0; i < length; i++) {
+            dest[offset + i] = this.readByte(address + i);
+        }
+    }
+    
+    /**
+     * Writes bytes from an array
+     * 
+     * @param address
+     * @param src
+     * @param offset Index in src of the first byte
+     * @param length
+     */
+    public default void writeBytes(long address, byte[] src, int offset, int length) {
+        for(int i = 0; i < length; i++) {
+            this.writeByte(address + i, src[offset + i]);
+        }
+    }
+    
     /**
      * Set 1 byte at an address
      * 
@@ -1,9 +1,7 @@
 package notsotiny.sim.memory;
 
-import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
  * A MemoryController container which can register other MemoryControllers with their own address spaces 
@@ -12,12 +10,17 @@ import java.util.TreeSet;
  */
 public class MemoryManager {
     
-    // maps starting address to controller, treemap for searching
-    private TreeMap<Long, MemoryController> segmentControllerMap;
+    // maps starting address to segment, treemap for searching
+    protected TreeMap<Long, Segment> segmentMap;
     
-    // maps starting address to ending address
-    // long hash should be basically free
-    private HashMap<Long, Long> endAddressMap;
+    // notified of writes, such that cached copies of memory can be invalidated
+    private MemoryWriteListener writeListener;
+    
+    // notified of accesses, for timing
+    private MemoryAccessListener accessListener;
+    
+    // most recently accessed segment, as most accesses hit the same one as the last
+    private Segment lastSegment;
     
     private static final boolean DEBUG = false;
     
@@ -25,8 +28,55 @@ public class MemoryManager {
      * Create an empty MemoryManager
      */
     public MemoryManager() {
-        this.segmentControllerMap = new TreeMap<>();
-        this.endAddressMap = new HashMap<>();
+        this.segmentMap = new TreeMap<>();
+        this.writeListener = null;
+        this.accessListener = null;
+        this.lastSegment = null;
+    }
+    
+    /**
+     * Sets the listener notified of writes. Segment changes are reported as writes to the whole segment.
+     * 
+     * @param listener Listener, or null for none
+     */
+    public void setWriteListener(MemoryWriteListener listener) {
+        this.writeListener = listener;
+    }
+    
+    /**
+     * Notifies the write listener, if any
+     * 
+     * @param address
+     * @param size
+     */
+    protected void notifyWrite(long address, long size) {
+        if(this.writeListener != null) {
+            this.writeListener.memoryWritten(address, size);
+        }
+    }
+    
+    /**
+     * Sets the listener notified of single reads and writes. Bulk reads through readBytes aren't reported.
+     * 
+     * @param listener Listener, or null for none
+     */
+    public void setAccessListener(MemoryAccessListener listener) {
+        this.accessListener = listener;
+    }
+    
+    /**
+     * Notifies the access listener, if any
+     * 
+     * @param segment Segment accessed
+     * @param address
+     * @param size
+     * @param write
+     * @param cacheHit True if served by a cache without touching the segment
+     */
+    protected void notifyAccess(Segment segment, long address, int size, boolean write, boolean cacheHit) {
+        if(this.accessListener != null) {
+            this.accessListener.memoryAccessed(segment, address, size, write, cacheHit);
+        }
     }
     
     /**
@@ -42,11 +92,12 @@ public class MemoryManager {
         size &= 0xFFFF_FFFFl;
         
         // check for overlap
-        if(this.segmentControllerMap.size() != 0) {
-            Long closestSegmentStart = this.segmentControllerMap.floorKey(start + size - 1);
+        if(this.segmentMap.size() != 0) {
+            Entry<Long, Segment> closestSegment = this.segmentMap.floorEntry(start + size - 1);
             
-            if(closestSegmentStart != null) {
-                long closestSegmentEnd = this.endAddressMap.get(closestSegmentStart);
+            if(closestSegment != null) {
+                long closestSegmentStart = closestSegment.getValue().start(),
+                     closestSegmentEnd = closestSegment.getValue().end();
                 
                 if(closestSegmentStart > start || closestSegmentEnd > start) {
                     throw new IllegalArgumentException("Memory segments cannot overlap");
@@ -55,8 +106,9 @@ public class MemoryManager {
         }
         
         // add
-        this.segmentControllerMap.put(start, mc);
-        this.endAddressMap.put(start, start + size - 1);
+        this.segmentMap.put(start, new Segment(start, start + size - 1, mc));
+        this.lastSegment = null;
+        notifyWrite(start, size);
     }
     
     /**
@@ -66,21 +118,25 @@ public class MemoryManager {
      */
     public void removeSegment(long address) {
         address &= 0xFFFF_FFFFl;
-        this.segmentControllerMap.remove(address);
-        this.endAddressMap.remove(address);
+        Segment seg = this.segmentMap.remove(address);
+        this.lastSegment = null;
+        
+        if(seg != null) {
+            notifyWrite(address, seg.end() - address + 1);
+        }
     }
     
     /**
      * Prints the memory mappings
      */
     public void printMap() {
-        for(Entry<Long, MemoryController> e : segmentControllerMap.entrySet()) {
-            System.out.printf("%08X: %s %s %s%n", e.getKey() & 0xFFFF_FFFFl, e.getValue().getClass().toString(), e.getValue().readRequiresPrivilege(), e.getValue().writeRequiresPrivilege());
+        for(Segment seg : this.segmentMap.values()) {
+            System.out.printf("%08X: %s %s %s%n", seg.start() & 0xFFFF_FFFFl, seg.controller().getClass().toString(), seg.readPrivileged(), seg.writePrivileged());
         }
     }
     
     /**
-     * Gets the start address of the segment containing the specified address
+     * Gets the segment containing the specified range
      * 
      * @param startAddress
      * @param endAddress
@@ -88,37 +144,48 @@ public class MemoryManager {
      * @param read
      * @return
      * @throws UnprivilegedAccessException 
-     * @throws IndexOutOfBoundsException when trying to access out-of-bounds memory
-     * @throws NullPointerException if no segments have been registered
+     * @throws NonexistentAccessException when trying to access out-of-bounds memory
      */
-    protected Entry<Long, MemoryController> getSegment(long startAddress, long endAddress, boolean privilege, boolean read) throws UnprivilegedAccessException, NonexistentAccessException {
+    protected Segment getSegment(long startAddress, long endAddress, boolean privilege, boolean read) throws UnprivilegedAccessException, NonexistentAccessException {
         startAddress &= 0xFFFF_FFFFl;
         endAddress &= 0xFFFF_FFFFl;
         
         // get segment
-        Entry<Long, MemoryController> segment = this.segmentControllerMap.floorEntry(startAddress);
-        Long start = segment.getKey(),
-             end = this.endAddressMap.get(start);
-        
-        // check bounds
-        if(start == null || end < startAddress ||   // floored segment ends before start, or
-           end == null || end < endAddress ||       // segment ends before access does, or
-           endAddress < startAddress) {             // integer overflow
-            throw new NonexistentAccessException((int) startAddress);
-        }
+        Segment segment = this.lastSegment;
         
-        // check privilege
-        if(!privilege && (
-           (read && segment.getValue().readRequiresPrivilege()) ||
-           (!read && segment.getValue().writeRequiresPrivilege())
-        )) {
-            throw new UnprivilegedAccessException((int) startAddress);
+        if(segment == null || !segment.contains(startAddress, endAddress)) {
+            Entry<Long, Segment> e = this.segmentMap.floorEntry(startAddress);
+            
+            // check bounds. contains() also catches integer overflow
+            if(e == null || !e.getValue().contains(startAddress, endAddress)) {
+                throw new NonexistentAccessException((int) startAddress);
+            }
+            
+            segment = e.getValue();
+            this.lastSegment = segment;
         }
         
+        checkPrivilege(segment, startAddress, privilege, read);
+        
         // good to go
         return segment;
     }
-
+    
+    /**
+     * Checks that an access to a segment is allowed
+     * 
+     * @param segment
+     * @param address
+     * @param privilege
+     * @param read
+     * @throws UnprivilegedAccessException
+     */
+    protected static void checkPrivilege(Segment segment, long address, boolean privilege, boolean read) throws UnprivilegedAccessException {
+        if(!privilege && (read ? segment.readPrivileged() : segment.writePrivileged())) {
+            throw new UnprivilegedAccessException((int) address);
+        }
+    }
+    
     /**
      * Get 1 byte from an address
      * 
@@ -131,9 +198,31 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 1 byte: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address, privilege, true);
+        Segment seg = getSegment(address, address, privilege, true);
+        return readByte(seg, address);
+    }
+    
+    /**
+     * Get 1 byte from a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @return
+     */
+    protected byte readByte(Segment seg, long address) throws NonexistentAccessException {
+        notifyAccess(seg, address, 1, false, false);
+        
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            return ram[(int)(address - seg.start())];
+        }
         
-        return seg.getValue().readByte(address - seg.getKey());
+        PagedMemoryController paged = seg.paged();
+        if(paged != null) {
+            return paged.readByte(address - seg.start());
+        }
+        
+        return seg.controller().readByte(address - seg.start());
     }
     
     /**
@@ -163,9 +252,31 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 2 bytes: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 1, privilege, true);
+        Segment seg = getSegment(address, address + 1, privilege, true);
+        return read2Bytes(seg, address);
+    }
+    
+    /**
+     * Get 2 little-endian bytes from a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @return
+     */
+    protected short read2Bytes(Segment seg, long address) throws NonexistentAccessException {
+        notifyAccess(seg, address, 2, false, false);
+        
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            return (short) FlatMemoryController.SHORT_LE.get(ram, (int)(address - seg.start()));
+        }
         
-        return seg.getValue().read2Bytes(address - seg.getKey());
+        PagedMemoryController paged = seg.paged();
+        if(paged != null) {
+            return paged.read2Bytes(address - seg.start());
+        }
+        
+        return seg.controller().read2Bytes(address - seg.start());
     }
     
     /**
@@ -195,9 +306,31 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 3 bytes: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 2, privilege, true);
+        Segment seg = getSegment(address, address + 2, privilege, true);
+        return read3Bytes(seg, address);
+    }
+    
+    /**
+     * Get 3 little-endian bytes from a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @return
+     */
+    protected int read3Bytes(Segment seg, long address) throws NonexistentAccessException {
+        notifyAccess(seg, address, 3, false, false);
+        
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            return FlatMemoryController.read3Bytes(ram, (int)(address - seg.start()));
+        }
+        
+        PagedMemoryController paged = seg.paged();
+        if(paged != null) {
+            return paged.read3Bytes(address - seg.start());
+        }
         
-        return seg.getValue().read3Bytes(address - seg.getKey());
+        return seg.controller().read3Bytes(address - seg.start());
     }
     
     /**
@@ -227,9 +360,31 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 4 bytes: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 3, privilege, true);
+        Segment seg = getSegment(address, address + 3, privilege, true);
+        return read4Bytes(seg, address);
+    }
+    
+    /**
+     * Get 4 little-endian bytes from a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @return
+     */
+    protected int read4Bytes(Segment seg, long address) throws NonexistentAccessException {
+        notifyAccess(seg, address, 4, false, false);
+        
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            return (int) FlatMemoryController.INT_LE.get(ram, (int)(address - seg.start()));
+        }
         
-        return seg.getValue().read4Bytes(address - seg.getKey());
+        PagedMemoryController paged = seg.paged();
+        if(paged != null) {
+            return paged.read4Bytes(address - seg.start());
+        }
+        
+        return seg.controller().read4Bytes(address - seg.start());
     }
     
     /**
@@ -259,9 +414,9 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 4 bytes (array): %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 1, privilege, true);
+        Segment seg = getSegment(address, address + 1, privilege, true);
         
-        return seg.getValue().read2ByteArray(address - seg.getKey());
+        return seg.controller().read2ByteArray(address - seg.start());
     }
     
     /**
@@ -291,9 +446,9 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 4 bytes (array): %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 2, privilege, true);
+        Segment seg = getSegment(address, address + 2, privilege, true);
         
-        return seg.getValue().read3ByteArray(address - seg.getKey());
+        return seg.controller().read3ByteArray(address - seg.start());
     }
     
     /**
@@ -323,9 +478,9 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("reading 4 bytes (array): %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 3, privilege, true);
+        Segment seg = getSegment(address, address + 3, privilege, true);
         
-        return seg.getValue().read4ByteArray(address - seg.getKey());
+        return seg.controller().read4ByteArray(address - seg.start());
     }
     
     /**
@@ -343,6 +498,42 @@ public class MemoryManager {
         }
     }
 
+    /**
+     * Reads bytes into an existing array
+     * 
+     * @param address
+     * @param dest
+     * @param offset Index in dest of the first byte
+     * @param length
+     * @param privilege
+     * @throws UnprivilegedAccessException
+     */
+    public void readBytes(long address, byte[] dest, int offset, int length, boolean privilege) throws UnprivilegedAccessException, NonexistentAccessException {
+        address &= 0xFFFF_FFFFl;
+        if(DEBUG) System.out.printf("reading %d bytes (array): %08X\n", length, address);
+        
+        Segment seg = getSegment(address, address + length - 1, privilege, true);
+        readBytes(seg, address, dest, offset, length);
+    }
+    
+    /**
+     * Get bytes from a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @param dest
+     * @param offset
+     * @param length
+     */
+    protected void readBytes(Segment seg, long address, byte[] dest, int offset, int length) throws NonexistentAccessException {
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            System.arraycopy(ram, (int)(address - seg.start()), dest, offset, length);
+        } else {
+            seg.controller().readBytes(address - seg.start(), dest, offset, length);
+        }
+    }
+    
     /**
      * Set 1 byte at an address
      * 
@@ -355,9 +546,29 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("writing 1 byte: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address, privilege, false);
+        Segment seg = getSegment(address, address, privilege, false);
+        writeByte(seg, address, value);
+    }
+    
+    /**
+     * Set 1 byte in a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @param value
+     */
+    protected void writeByte(Segment seg, long address, byte value) throws NonexistentAccessException {
+        notifyAccess(seg, address, 1, true, false);
         
-        seg.getValue().writeByte(address - seg.getKey(), value);
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            ram[(int)(address - seg.start())] = value;
+        } else if(seg.paged() != null) {
+            seg.paged().writeByte(address - seg.start(), value);
+        } else {
+            seg.controller().writeByte(address - seg.start(), value);
+        }
+        notifyWrite(address, 1);
     }
     
     /**
@@ -385,9 +596,29 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("writing 2 bytes: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 1, privilege, false);
+        Segment seg = getSegment(address, address + 1, privilege, false);
+        write2Bytes(seg, address, value);
+    }
+    
+    /**
+     * Set 2 little-endian bytes in a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @param value
+     */
+    protected void write2Bytes(Segment seg, long address, short value) throws NonexistentAccessException {
+        notifyAccess(seg, address, 2, true, false);
         
-        seg.getValue().write2Bytes(address - seg.getKey(), value);
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            FlatMemoryController.SHORT_LE.set(ram, (int)(address - seg.start()), value);
+        } else if(seg.paged() != null) {
+            seg.paged().write2Bytes(address - seg.start(), value);
+        } else {
+            seg.controller().write2Bytes(address - seg.start(), value);
+        }
+        notifyWrite(address, 2);
     }
     
     /**
@@ -415,9 +646,29 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("writing 3 bytes: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 2, privilege, false);
+        Segment seg = getSegment(address, address + 2, privilege, false);
+        write3Bytes(seg, address, value);
+    }
+    
+    /**
+     * Set 3 little-endian bytes in a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @param value
+     */
+    protected void write3Bytes(Segment seg, long address, int value) throws NonexistentAccessException {
+        notifyAccess(seg, address, 3, true, false);
         
-        seg.getValue().write3Bytes(address - seg.getKey(), value);
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            FlatMemoryController.write3Bytes(ram, (int)(address - seg.start()), value);
+        } else if(seg.paged() != null) {
+            seg.paged().write3Bytes(address - seg.start(), value);
+        } else {
+            seg.controller().write3Bytes(address - seg.start(), value);
+        }
+        notifyWrite(address, 3);
     }
     
     /**
@@ -445,9 +696,29 @@ public class MemoryManager {
         address &= 0xFFFF_FFFFl;
         if(DEBUG) System.out.printf("writing 4 bytes: %08X\n", address);
         
-        Entry<Long, MemoryController> seg = getSegment(address, address + 3, privilege, false);
+        Segment seg = getSegment(address, address + 3, privilege, false);
+        write4Bytes(seg, address, value);
+    }
+    
+    /**
+     * Set 4 little-endian bytes in a segment already resolved and checked by getSegment()
+     * 
+     * @param seg
+     * @param address
+     * @param value
+     */
+    protected void write4Bytes(Segment seg, long address, int value) throws NonexistentAccessException {
+        notifyAccess(seg, address, 4, true, false);
         
-        seg.getValue().write4Bytes(address - seg.getKey(), value);
+        byte[] ram = seg.ram();
+        if(ram != null) {
+            FlatMemoryController.INT_LE.set(ram, (int)(address - seg.start()), value);
+        } else if(seg.paged() != null) {
+            seg.paged().write4Bytes(address - seg.start(), value);
+        } else {
+            seg.controller().write4Bytes(address - seg.start(), value);
+        }
+        notifyWrite(address, 4);
     }
     
     /**
@@ -0,0 +1,17 @@
+package notsotiny.sim.memory;
+
+/**
+ * Receives notice of writes made through a MemoryManager
+ *
+ * @author Mechafinch
+ */
+public interface MemoryWriteListener {
+
+    /**
+     * Called after memory has been written
+     *
+     * @param address Start address of the write
+     * @param size Number of bytes written
+     */
+    public void memoryWritten(long address, long size);
+}
@@ -0,0 +1,118 @@
+package notsotiny.sim.memory;
+
+/**
+ * A MemoryManager which resolves segments through a two-level page table rather than searching the segment map.
+ * Pages shared by more than one segment fall back to the search.
+ *
+ * @author Mechafinch
+ */
+public class PageTableMemoryManager extends MemoryManager {
+
+    private static final int PAGE_SHIFT = 12,   // 4 KiB pages
+                             TABLE_SHIFT = 10,  // 1024 pages per table
+                             TABLE_SIZE = 1 << TABLE_SHIFT,
+                             TABLE_MASK = TABLE_SIZE - 1,
+                             DIRECTORY_SHIFT = PAGE_SHIFT + TABLE_SHIFT,
+                             DIRECTORY_SIZE = 1 << (32 - DIRECTORY_SHIFT);
+
+    // marks a page containing more than one segment
+    private static final Segment SHARED = new Segment(0, -1, null, false, false, null, null);
+
+    // directory -> table -> segment, null for unmapped
+    private Segment[][] directory;
+
+    /**
+     * Create an empty PageTableMemoryManager
+     */
+    public PageTableMemoryManager() {
+        super();
+
+        this.directory = new Segment[DIRECTORY_SIZE][];
+    }
+
+    @Override
+    public void registerSegment(MemoryController mc, long start, long size) {
+        super.registerSegment(mc, start, size);
+
+        start &= 0xFFFF_FFFFl;
+        size &= 0xFFFF_FFFFl;
+        updatePages(start, start + size - 1);
+    }
+
+    @Override
+    public void removeSegment(long address) {
+        address &= 0xFFFF_FFFFl;
+        Segment seg = this.segmentMap.get(address);
+
+        super.removeSegment(address);
+
+        if(seg != null) {
+            updatePages(seg.start(), seg.end());
+        }
+    }
+
+    @Override
+    protected Segment getSegment(long startAddress, long endAddress, boolean privilege, boolean read) throws UnprivilegedAccessException, NonexistentAccessException {
+        startAddress &= 0xFFFF_FFFFl;
+        endAddress &= 0xFFFF_FFFFl;
+
+        Segment[] table = this.directory[(int)(startAddress >>> DIRECTORY_SHIFT)];
+        Segment seg = (table == null) ? null : table[(int)(startAddress >>> PAGE_SHIFT) & TABLE_MASK];
+
+        if(seg == SHARED) {
+            return super.getSegment(startAddress, endAddress, privilege, read);
+        }
+
+        // the only segment in the page must contain the whole access
+        if(seg == null || !seg.contains(startAddress, endAddress)) {
+            throw new NonexistentAccessException((int) startAddress);
+        }
+
+        checkPrivilege(seg, startAddress, privilege, read);
+
+        return seg;
+    }
+
+    /**
+     * Recomputes the page table entries for pages overlapping the given range
+     *
+     * @param start
+     * @param end
+     */
+    private void updatePages(long start, long end) {
+        for(long page = start >>> PAGE_SHIFT; page <= (end >>> PAGE_SHIFT); page++) {
+            long pageStart = page << PAGE_SHIFT,
+                 pageEnd = pageStart + (1 << PAGE_SHIFT) - 1;
+
+            // find the segments overlapping the page
+            Segment seg = null;
+
+            Long first = this.segmentMap.floorKey(pageStart);
+            if(first == null) first = pageStart;
+
+            for(Segment s : this.segmentMap.subMap(first, true, pageEnd, true).values()) {
+                if(s.end() < pageStart) continue;
+
+                if(seg == null) {
+                    seg = s;
+                } else {
+                    seg = SHARED;
+                    break;
+                }
+            }
+
+            // update entry
+            int dirIndex = (int)(page >>> TABLE_SHIFT);
+            Segment[] table = this.directory[dirIndex];
+
+            if(table == null) {
+                if(seg == null) continue;
+
+                table = new Segment[TABLE_SIZE];
+                this.directory[dirIndex] = table;
+            }
+
+            table[(int) page & TABLE_MASK] = seg;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package notsotiny.sim.memory;
+
+import java.util.Arrays;
+
+/**
+ * A MemoryController for large RAM which allocates pages on first write. Untouched pages read as zero.
+ *
+ * @author Mechafinch
+ */
+public final class PagedMemoryController implements MemoryController {
+
+    public static final int MIN_PAGE_SIZE = 4096,
+                            MAX_PAGE_SIZE = 65536,
+                            DEFAULT_PAGE_SIZE = 16384;
+
+    private final long size;
+
+    private final int pageShift,
+                      pageSize,
+                      pageMask;
+
+    private final byte[][] pages;
+
+    private final boolean readPrivileged,
+                          writePrivileged;
+
+    private int allocatedPages;
+
+    /**
+     * Create a controller with the default page size
+     *
+     * @param size Size in bytes
+     * @param readPrivileged
+     * @param writePrivileged
+     */
+    public PagedMemoryController(long size, boolean readPrivileged, boolean writePrivileged) {
+        this(size, DEFAULT_PAGE_SIZE, readPrivileged, writePrivileged);
+    }
+
+    /**
+     * Create a controller
+     *
+     * @param size Size in bytes
+     * @param pageSize Page size, a power of two from 4 KiB to 64 KiB
+     * @param readPrivileged
+     * @param writePrivileged
+     * @throws IllegalArgumentException if the page size is invalid
+     */
+    public PagedMemoryController(long size, int pageSize, boolean readPrivileged, boolean writePrivileged) {
+        if(pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+
+        this.size = size;
+        this.pageSize = pageSize;
+        this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+        this.pageMask = pageSize - 1;
+        this.pages = new byte[(int)((size + pageSize - 1) >>> this.pageShift)][];
+        this.readPrivileged = readPrivileged;
+        this.writePrivileged = writePrivileged;
+        this.allocatedPages = 0;
+    }
+
+    @Override
+    public boolean readRequiresPrivilege() {
+        return this.readPrivileged;
+    }
+
+    @Override
+    public boolean writeRequiresPrivilege() {
+        return this.writePrivileged;
+    }
+
+    /**
+     * Gets a page for writing, allocating it if needed
+     *
+     * @param index
+     * @return
+     */
+    private byte[] getPageForWrite(int index) {
+        byte[] page = this.pages[index];
+
+        if(page == null) {
+            page = new byte[this.pageSize];
+            this.pages[index] = page;
+            this.allocatedPages++;
+        }
+
+        return page;
+    }
+
+    @Override
+    public byte readByte(long address) {
+        byte[] page = this.pages[(int)(address >>> this.pageShift)];
+
+        return (page == null) ? 0 : page[(int) address & this.pageMask];
+    }
+
+    @Override
+    public short read2Bytes(long address) {
+        int offset = (int) address & this.pageMask;
+
+        // crossing a page boundary
+        if(offset > this.pageSize - 2) {
+            return MemoryController.super.read2Bytes(address);
+        }
+
+        byte[] page = this.pages[(int)(address >>> this.pageShift)];
+
+        return (page == null) ? 0 : (short) FlatMemoryController.SHORT_LE.get(page, offset);
+    }
+
+    @Override
+    public int read3Bytes(long address) {
+        int offset = (int) address & this.pageMask;
+
+        // sign extended, as FlatMemoryController does
+        if(offset > this.pageSize - 3) {
+            return (read2Bytes(address) & 0xFFFF) | (readByte(address + 2) << 16);
+        }
+
+        byte[] page = this.pages[(int)(address >>> this.pageShift)];
+
+        return (page == null) ? 0 : FlatMemoryController.read3Bytes(page, offset);
+    }
+
+    @Override
+    public int read4Bytes(long address) {
+        int offset = (int) address & this.pageMask;
+
+        if(offset > this.pageSize - 4) {
+            return MemoryController.super.read4Bytes(address);
+        }
+
+        byte[] page = this.pages[(int)(address >>> this.pageShift)];
+
+        return (page == null) ? 0 : (int) FlatMemoryController.INT_LE.get(page, offset);
+    }
+
+    @Override
+    public void readBytes(long address, byte[] dest, int offset, int length) {
+        while(length > 0) {
+            int pageOffset = (int) address & this.pageMask,
+                chunk = Math.min(length, this.pageSize - pageOffset);
+            byte[] page = this.pages[(int)(address >>> this.pageShift)];
+
+            if(page == null) {
+                Arrays.fill(dest, offset, offset + chunk, (byte) 0);
+            } else {
+                System.arraycopy(page, pageOffset, dest, offset, chunk);
+            }
+
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void writeBytes(long address, byte[] src, int offset, int length) {
+        while(length > 0) {
+            int pageOffset = (int) address & this.pageMask,
+                chunk = Math.min(length, this.pageSize - pageOffset);
+
+            System.arraycopy(src, offset, getPageForWrite((int)(address >>> this.pageShift)), pageOffset, chunk);
+
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void writeByte(long address, byte value) {
+        getPageForWrite((int)(address >>> this.pageShift))[(int) address & this.pageMask] = value;
+    }
+
+    @Override
+    public void write2Bytes(long address, short value) {
+        int offset = (int) address & this.pageMask;
+
+        if(offset > this.pageSize - 2) {
+            MemoryController.super.write2Bytes(address, value);
+        } else {
+            FlatMemoryController.SHORT_LE.set(getPageForWrite((int)(address >>> this.pageShift)), offset, value);
+        }
+    }
+
+    @Override
+    public void write3Bytes(long address, int value) {
+        int offset = (int) address & this.pageMask;
+
+        if(offset > this.pageSize - 3) {
+            MemoryController.super.write3Bytes(address, value);
+        } else {
+            FlatMemoryController.write3Bytes(getPageForWrite((int)(address >>> this.pageShift)), offset, value);
+        }
+    }
+
+    @Override
+    public void write4Bytes(long address, int value) {
+        int offset = (int) address & this.pageMask;
+
+        if(offset > this.pageSize - 4) {
+            MemoryController.super.write4Bytes(address, value);
+        } else {
+            FlatMemoryController.INT_LE.set(getPageForWrite((int)(address >>> this.pageShift)), offset, value);
+        }
+    }
+
+    /**
+     * Loads data into memory, page by page. Pages which would only receive zeros aren't allocated.
+     *
+     * @param address Destination address
+     * @param data
+     * @param offset Index in data of the first byte
+     * @param length
+     */
+    public void load(long address, byte[] data, int offset, int length) {
+        while(length > 0) {
+            int index = (int)(address >>> this.pageShift),
+                pageOffset = (int) address & this.pageMask,
+                chunk = Math.min(length, this.pageSize - pageOffset);
+
+            if(this.pages[index] != null || !isZero(data, offset, chunk)) {
+                System.arraycopy(data, offset, getPageForWrite(index), pageOffset, chunk);
+            }
+
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Loads data into memory starting at address 0
+     *
+     * @param data
+     */
+    public void load(byte[] data) {
+        load(0, data, 0, data.length);
+    }
+
+    /**
+     * @param data
+     * @param offset
+     * @param length
+     * @return true if the range contains only zeros
+     */
+    private static boolean isZero(byte[] data, int offset, int length) {
+        for(int i = offset; i < offset + length; i++) {
+            if(data[i] != 0) return false;
+        }
+
+        return true;
+    }
+
+    public long getSize() { return this.size; }
+    public int getPageSize() { return this.pageSize; }
+    public int getAllocatedPages() { return this.allocatedPages; }
+}
@@ -3,38 +3,47 @@ package notsotiny.sim.memory;
 /**
  * optionally buffers the screen
  * 
+ * Writing a nonzero value presents the frame in video memory and shows presented frames until zero is written, which
+ * shows video memory directly.
+ * 
  * @author Mechafinch
  */
 public class ScreenBuffer implements MemoryController {
-    private byte[] screenBuffer,
-                   screenArray;
+    private VideoBufferController video;
     
-    private boolean buffered = false;
+    private volatile boolean buffered = false;
     
-    public ScreenBuffer(byte[] screenArray) {
-        this.screenBuffer = new byte[screenArray.length];
-        this.screenArray = screenArray;
+    public ScreenBuffer(VideoBufferController video) {
+        this.video = video;
     }
-
+    
     @Override
     public byte readByte(long address) {
         // TODO Auto-generated method stub
         return 0;
     }
-
+    
     @Override
     public void writeByte(long address, byte value) {
-        this.buffered = value != 0;
+        boolean buffered = value != 0;
         //System.out.println(this.buffered);
         
-        if(this.buffered) {
-            System.arraycopy(screenArray, 0, screenBuffer, 0, screenArray.length);
+        // present first, so the UI doesn't show the previous frame
+        if(buffered) {
+            this.video.present();
         }
+        
+        this.buffered = buffered;
     }
     
     public boolean isBuffered() { return this.buffered; }
     
+    /**
+     * Gets the screen to display. UI thread.
+     * 
+     * @return The latest presented frame if buffered, otherwise video memory
+     */
     public byte[] getScreen() {
-        return buffered ? this.screenBuffer : this.screenArray;
+        return buffered ? this.video.acquireFrame() : this.video.getLiveBuffer();
     }
 }
@@ -0,0 +1,41 @@
+package notsotiny.sim.memory;
+
+/**
+ * A registered region of the address space
+ *
+ * @param start First address
+ * @param end Last address
+ * @param controller
+ * @param readPrivileged Does reading require privilege
+ * @param writePrivileged Does writing require privilege
+ * @param ram Backing array of a FlatMemoryController, accessed directly. Null for other controllers.
+ * @param paged The controller if it's a PagedMemoryController, called directly. Null for other controllers.
+ *
+ * @author Mechafinch
+ */
+public record Segment(long start, long end, MemoryController controller, boolean readPrivileged, boolean writePrivileged, byte[] ram, PagedMemoryController paged) {
+
+    /**
+     * Create a segment, taking privilege requirements from the controller.
+     * Plain FlatMemoryControllers are accessed through their array. Subclasses may override accesses, so they aren't.
+     * PagedMemoryControllers are called directly rather than through the interface.
+     *
+     * @param start
+     * @param end
+     * @param controller
+     */
+    public Segment(long start, long end, MemoryController controller) {
+        this(start, end, controller, controller.readRequiresPrivilege(), controller.writeRequiresPrivilege(),
+             (controller.getClass() == FlatMemoryController.class) ? ((FlatMemoryController) controller).mem : null,
+             (controller instanceof PagedMemoryController pmc) ? pmc : null);
+    }
+
+    /**
+     * @param startAddress
+     * @param endAddress
+     * @return true if the range is entirely within this segment
+     */
+    public boolean contains(long startAddress, long endAddress) {
+        return startAddress >= this.start && endAddress <= this.end && startAddress <= endAddress;
+    }
+}
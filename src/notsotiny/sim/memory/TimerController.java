@@ -0,0 +1,208 @@
+package notsotiny.sim.memory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A programmable interval timer. Counts down from a reload value and requests an interrupt when the count runs out,
+ * once or periodically. Ticks are instructions, cycles, or host microseconds; the first two are deterministic.
+ *
+ * Registers, little-endian
+ * 0x00 - 0x03  reload value in ticks
+ * 0x04 - 0x07  ticks until the next interrupt. Reading 0x04 latches the count.
+ * 0x08         control. Bit 0 enables the timer, bit 1 makes it periodic rather than one-shot. Writing it restarts the
+ *              count from the reload value; a one-shot timer clears bit 0 when it fires.
+ * 0x09         interrupt vector
+ *
+ * The timer is polled by the interrupt controller. Instruction timers fire at their deadline, as the simulator stops its
+ * blocks there; cycle and host time timers fire at the first interrupt check at or after it. Periods that run out
+ * between checks are dropped rather than queued. Simulated time stops while the processor is halted, so halting makes
+ * an instruction or cycle timer's deadline due at once.
+ *
+ * @author Mechafinch
+ */
+public class TimerController implements MemoryController, InterruptSource {
+
+    public static final int SIZE = 0x10;
+
+    public static final byte CONTROL_ENABLE = 0x01,
+                             CONTROL_PERIODIC = 0x02;
+
+    /**
+     * What the timer counts
+     */
+    public enum TimeBase {
+        INSTRUCTIONS,   // instructions executed
+        CYCLES,         // cycles counted by the timing model
+        HOST            // host microseconds
+    }
+
+    private TimeBase base;
+
+    private LongSupplier clock;
+
+    private int reload,
+                latchedCount;
+
+    private byte control,
+                 vector;
+
+    private long due;   // clock value the next interrupt is due at
+
+    private InterruptController pic;    // told when the deadline moves, or null
+
+    /**
+     * @param base
+     * @param simulatedClock Source of instructions or cycles, such as NotSoTinySimulator::getInstructionCount. Unused
+     * for host time.
+     * @param vector Initial interrupt vector
+     */
+    public TimerController(TimeBase base, LongSupplier simulatedClock, byte vector) {
+        this.base = base;
+        this.clock = (base == TimeBase.HOST) ? () -> System.nanoTime() / 1000 : simulatedClock;
+        this.reload = 0;
+        this.latchedCount = 0;
+        this.control = 0;
+        this.vector = vector;
+        this.due = 0;
+        this.pic = null;
+    }
+
+    /**
+     * Programs the timer, as the guest would by writing the registers. Thread running the simulator.
+     *
+     * @param reload Ticks per period
+     * @param periodic
+     * @param vector
+     */
+    public void start(int reload, boolean periodic, byte vector) {
+        this.reload = reload;
+        this.vector = vector;
+        setControl((byte)(CONTROL_ENABLE | (periodic ? CONTROL_PERIODIC : 0)));
+    }
+
+    /**
+     * Disables the timer. Thread running the simulator.
+     */
+    public void stop() {
+        setControl((byte) 0);
+    }
+
+    /**
+     * Writes the control register
+     *
+     * @param value
+     */
+    private void setControl(byte value) {
+        this.control = value;
+        this.due = this.clock.getAsLong() + Integer.toUnsignedLong(this.reload);
+
+        if(this.pic != null) {
+            this.pic.sourceChanged();
+        }
+    }
+
+    /**
+     * @return true if the timer is counting
+     */
+    public boolean isEnabled() {
+        return (this.control & CONTROL_ENABLE) != 0 && this.reload != 0;
+    }
+
+    @Override
+    public void poll(InterruptController pic) {
+        if(!isEnabled()) {
+            return;
+        }
+
+        long now = this.clock.getAsLong();
+
+        if(now < this.due) {
+            return;
+        }
+
+        pic.setRequest(this.vector);
+
+        if((this.control & CONTROL_PERIODIC) != 0) {
+            // skip periods missed between checks
+            long period = Integer.toUnsignedLong(this.reload);
+            this.due += period * (((now - this.due) / period) + 1);
+        } else {
+            this.control &= ~CONTROL_ENABLE;
+        }
+    }
+
+    @Override
+    public long getHostDeadline() {
+        return (this.base == TimeBase.HOST && isEnabled()) ? this.due * 1000 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Cycles per instruction aren't bounded, so a cycle timer is polled at every check
+     */
+    @Override
+    public long getSimulatedDelay() {
+        if(!isEnabled()) {
+            return Long.MAX_VALUE;
+        }
+
+        return switch(this.base) {
+            case INSTRUCTIONS   -> Math.max(0, this.due - this.clock.getAsLong());
+            case CYCLES         -> 0;
+            case HOST           -> Long.MAX_VALUE;
+        };
+    }
+
+    @Override
+    public boolean skipAhead() {
+        if(this.base == TimeBase.HOST || !isEnabled()) {
+            return false;
+        }
+
+        this.due = this.clock.getAsLong();
+
+        if(this.pic != null) {
+            this.pic.sourceChanged();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void attach(InterruptController pic) {
+        this.pic = pic;
+    }
+
+    @Override
+    public byte readByte(long address) {
+        return switch((int) address) {
+            case 0, 1, 2, 3 -> (byte)(this.reload >>> (address * 8));
+            case 4, 5, 6, 7 -> {
+                if(address == 4) {
+                    this.latchedCount = isEnabled() ? (int) Math.max(0, this.due - this.clock.getAsLong()) : 0;
+                }
+
+                yield (byte)(this.latchedCount >>> ((address - 4) * 8));
+            }
+            case 8          -> this.control;
+            case 9          -> this.vector;
+            default         -> 0;
+        };
+    }
+
+    @Override
+    public void writeByte(long address, byte value) {
+        switch((int) address) {
+            case 0, 1, 2, 3 -> {
+                int shift = (int) address * 8;
+                this.reload = (this.reload & ~(0xFF << shift)) | ((value & 0xFF) << shift);
+            }
+            case 8          -> setControl(value);
+            case 9          -> this.vector = value;
+            default         -> {}   // read only or unused
+        }
+    }
+
+    public TimeBase getTimeBase() { return this.base; }
+    public int getReload() { return this.reload; }
+    public byte getVector() { return this.vector; }
+}
@@ -0,0 +1,224 @@
+package notsotiny.sim.memory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Video memory which tracks which rows of pixels have been written since they were last drawn.
+ * Memory is a bytemap of width * height pixels followed by a 256 entry BGR palette.
+ * Writes come from the simulator thread and are taken from the UI thread.
+ *
+ * Completed frames are handed to the UI through three buffers: the simulator writes the back buffer, present()
+ * exchanges it with the ready buffer, and the UI exchanges its display buffer with the ready buffer when a newer frame
+ * is there. Neither side blocks the other or touches a buffer the other is using. As the guest expects video memory to
+ * keep its contents, rows written since the new back buffer was last current are copied into it.
+ *
+ * @author Mechafinch
+ */
+public class VideoBufferController extends FlatMemoryController {
+
+    /**
+     * A buffer and the number of the last frame it contains
+     */
+    private static class Frame {
+        final byte[] data;
+        int number;
+
+        Frame(byte[] data) {
+            this.data = data;
+            this.number = 0;
+        }
+    }
+
+    private final int width,
+                      height,
+                      paletteStart,
+                      paletteEnd;
+
+    // 1 for rows written since last taken
+    private final AtomicIntegerArray dirtyRows;
+
+    private final AtomicBoolean paletteDirty;
+
+    // Frame handoff
+    private Frame back,                             // simulator only
+                  display;                          // UI only
+    private final AtomicReference<Frame> ready;
+    private volatile byte[] live;                   // back buffer, for unbuffered display
+
+    private int frameNumber;                        // last completed frame
+    private final int[] rowFrames;                  // frame each row of the whole buffer was last written in
+
+    /**
+     * @param mem Backing array
+     * @param width Pixels per row
+     * @param height Rows
+     * @param readPrivileged
+     * @param writePrivileged
+     */
+    public VideoBufferController(byte[] mem, int width, int height, boolean readPrivileged, boolean writePrivileged) {
+        super(mem, readPrivileged, writePrivileged);
+
+        this.width = width;
+        this.height = height;
+        this.paletteStart = width * height;
+        this.paletteEnd = this.paletteStart + 256 * 3;
+        this.dirtyRows = new AtomicIntegerArray(height);
+        this.paletteDirty = new AtomicBoolean();
+
+        this.back = new Frame(mem);
+        this.display = new Frame(mem.clone());
+        this.ready = new AtomicReference<>(new Frame(mem.clone()));
+        this.live = mem;
+        this.frameNumber = 0;
+        this.rowFrames = new int[(mem.length + width - 1) / width];
+
+        markAllDirty();
+    }
+
+    /**
+     * Marks the rows and palette touched by a write
+     *
+     * @param address
+     * @param length
+     */
+    private void markDirty(long address, int length) {
+        long end = address + length - 1;
+        int firstRow = (int)(address / this.width),
+            lastRow = (int)(end / this.width);
+
+        for(int row = firstRow; row <= lastRow; row++) {
+            this.rowFrames[row] = this.frameNumber + 1;
+        }
+
+        if(address < this.paletteStart) {
+            lastRow = (int)(Math.min(end, this.paletteStart - 1) / this.width);
+
+            for(int row = firstRow; row <= lastRow; row++) {
+                this.dirtyRows.lazySet(row, 1);
+            }
+        }
+
+        if(end >= this.paletteStart && address < this.paletteEnd) {
+            this.paletteDirty.lazySet(true);
+        }
+    }
+
+    /**
+     * Marks everything as needing to be drawn
+     */
+    public void markAllDirty() {
+        for(int row = 0; row < this.height; row++) {
+            this.dirtyRows.set(row, 1);
+        }
+
+        this.paletteDirty.set(true);
+    }
+
+    /**
+     * Clears a row's dirty flag. Rows should be taken before they're read, so that writes made during reading are
+     * seen next time.
+     *
+     * @param row
+     * @return true if the row was written since last taken
+     */
+    public boolean takeDirtyRow(int row) {
+        return this.dirtyRows.getAndSet(row, 0) != 0;
+    }
+
+    /**
+     * Clears the palette's dirty flag
+     *
+     * @return true if the palette was written since last taken
+     */
+    public boolean takePaletteDirty() {
+        return this.paletteDirty.getAndSet(false);
+    }
+
+    /**
+     * Completes the frame in the back buffer and makes it available to the UI. Simulator thread.
+     */
+    public void present() {
+        Frame done = this.back;
+        done.number = ++this.frameNumber;
+
+        Frame next = this.ready.getAndSet(done);
+
+        // bring the new back buffer up to date
+        for(int row = 0; row < this.rowFrames.length; row++) {
+            if(this.rowFrames[row] > next.number) {
+                int start = row * this.width;
+                System.arraycopy(done.data, start, next.data, start, Math.min(this.width, done.data.length - start));
+            }
+        }
+
+        next.number = done.number;
+
+        this.back = next;
+        this.mem = next.data;
+        this.live = next.data;
+    }
+
+    /**
+     * Gets the most recently presented frame. The array stays unchanged until the next call. UI thread.
+     *
+     * @return
+     */
+    public byte[] acquireFrame() {
+        // the simulator only makes ready newer, so it's still newer at the exchange
+        if(this.ready.get().number > this.display.number) {
+            this.display = this.ready.getAndSet(this.display);
+        }
+
+        return this.display.data;
+    }
+
+    /**
+     * @return Number of the frame returned by acquireFrame(), 0 if none has been presented. UI thread.
+     */
+    public int getAcquiredFrame() {
+        return this.display.number;
+    }
+
+    /**
+     * @return The buffer being written, which may change while it's read
+     */
+    public byte[] getLiveBuffer() {
+        return this.live;
+    }
+
+    @Override
+    public void writeBytes(long address, byte[] src, int offset, int length) {
+        super.writeBytes(address, src, offset, length);
+        markDirty(address, length);
+    }
+
+    @Override
+    public void writeByte(long address, byte value) {
+        super.writeByte(address, value);
+        markDirty(address, 1);
+    }
+
+    @Override
+    public void write2Bytes(long address, short value) {
+        super.write2Bytes(address, value);
+        markDirty(address, 2);
+    }
+
+    @Override
+    public void write3Bytes(long address, int value) {
+        super.write3Bytes(address, value);
+        markDirty(address, 3);
+    }
+
+    @Override
+    public void write4Bytes(long address, int value) {
+        super.write4Bytes(address, value);
+        markDirty(address, 4);
+    }
+
+    public int getWidth() { return this.width; }
+    public int getHeight() { return this.height; }
+    public int getPaletteStart() { return this.paletteStart; }
+}
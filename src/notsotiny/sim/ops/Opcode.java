@@ -1,8 +1,5 @@
 package notsotiny.sim.ops;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Enum of every opcode
  * 
@@ -300,12 +297,12 @@ public enum Opcode {
     public final DecodingGroup dgroup;
     public final ExecutionGroup egroup;
     
-    // value -> enum
-    private static final Map<Byte, Opcode> opMap = new HashMap<>();
+    // value -> enum, indexed by unsigned opcode. Every value is defined.
+    private static final Opcode[] opTable = new Opcode[256];
     
     static {
         for(Opcode op : values()) {
-            opMap.put(op.op, op);
+            opTable[op.op & 0xFF] = op;
         }
     }
     
@@ -321,7 +318,7 @@ public enum Opcode {
     }
     
     public static Opcode fromOp(byte op) {
-        return opMap.get(op);
+        return opTable[op & 0xFF];
     }
     
     public byte getOp() { return this.op; }
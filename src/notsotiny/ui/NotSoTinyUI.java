@@ -40,17 +40,20 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import notsotiny.asm.Disassembler;
+import notsotiny.sim.EventJournal;
+import notsotiny.sim.Machine;
+import notsotiny.sim.MachineConfig;
 import notsotiny.sim.NotSoTinySimulator;
-import notsotiny.sim.memory.CachingMemoryManager;
-import notsotiny.sim.memory.DiskBufferController;
-import notsotiny.sim.memory.FlatMemoryController;
-import notsotiny.sim.memory.HookController;
+import notsotiny.sim.StopCondition;
+import notsotiny.sim.StopReason;
+import notsotiny.sim.Throttle;
 import notsotiny.sim.memory.InterruptController;
+import notsotiny.sim.memory.MemoryController;
 import notsotiny.sim.memory.MemoryManager;
 import notsotiny.sim.memory.NonexistentAccessException;
-import notsotiny.sim.memory.RandomController;
 import notsotiny.sim.memory.ScreenBuffer;
-import notsotiny.sim.memory.SoundInterfaceController;
+import notsotiny.sim.memory.TimerController;
+import notsotiny.sim.memory.VideoBufferController;
 
 public class NotSoTinyUI extends Application {
 
@@ -79,48 +82,17 @@ public class NotSoTinyUI extends Application {
                                  START_IMMEDIATELY = false,
                                  START_WITH_CLOCK = false,
                                  TRACK_CPUTIME = false,
-                                 USE_PRIVRAM = true;
+                                 USE_PRIVRAM = true,
+                                 USE_TIMING = false;   // count cycles. Disables compiled blocks
     
     private static final int TRACE_SIZE = 16,
-                             MEMWATCH_BYTES = 64;
+                             MEMWATCH_BYTES = 64,
+                             RUN_BUDGET = 100_000;  // max instructions per run when running fast
     
     /*
      * == SIMULATION ==
      */
     
-    // memory map constants
-    private static final int PRIVRAM_SIZE =     USE_PRIVRAM ? 0x0000_4000 : 0,
-                             LOWRAM_SIZE =      0x1010_0000 - PRIVRAM_SIZE,
-                             SPI_SIZE =         0x0000_0004,
-                             KEYPAD_SIZE =      0x0000_0008,
-                             CC_SIZE =          0x0000_0002,
-                             KEYBOARD_SIZE =    0x0000_0010,
-                             SOUND_SIZE =       0x0000_0008,
-                             VIDEO_SIZE =       0x0002_0000,
-                             RANDOM_SIZE =      0x0000_0010,
-                             PIC_SIZE =         0x0000_0200,
-                             DISK_SIZE =        0x0000_000C,
-                             RESET_SIZE =       0x0000_0010,
-                             BOOTROM_SIZE =     0x0000_0400;
-    
-    private static final long PRIVRAM_START =   0x0000_0000,
-                              LOWRAM_START =    PRIVRAM_START + PRIVRAM_SIZE,
-                              SPI_START =       0x8000_0000,
-                              KEYPAD_START =    0x8001_0000,
-                              CC_START =        0x8002_0000,
-                              KEYBOARD_START =  0xF000_0000,
-                              SOUND_START =     0xF001_0000,
-                              VIDEO_START =     0xF002_0000,
-                              RANDOM_START =    0xF004_0000,
-                              PIC_START =       0xF005_0000,
-                              DISK_START =      0xF006_0000,
-                              RESET_START =     0xF007_0000,
-                              BOOTROM_START =   0xFFFF_FC00;
-    
-    private static final int VIDEO_BUFFER_SIZE =    0x0001_4000,
-                             VIDEO_CHARSET_SIZE =   0x0000_1000,
-                             VIDEO_OTHER_SIZE =     0x0002_0000 - (VIDEO_BUFFER_SIZE + VIDEO_CHARSET_SIZE);
-    
     // other constants
     private static final byte VECTOR_RESET = 0x00,
                               VECTOR_NMI = 0x01,
@@ -171,55 +143,40 @@ public class NotSoTinyUI extends Application {
                                 //PROGRAM_EXEC_FILE = PROGRAM_DATA_FOLDER + "shooting_stars.oex",
                                 PROGRAM_EXEC_FILE = PROGRAM_DATA_FOLDER + "diagnostic.oex",
                                 DISK_FOLDER = PROGRAM_DATA_FOLDER + "disk\\",
-                                TEXT_FONT_FILE = "C:\\Users\\wetca\\data\\silly  code\\architecture\\NotSoTiny\\programming\\standard library\\simvideo\\textsmall.dat";
+                                TEXT_FONT_FILE = "C:\\Users\\wetca\\data\\silly  code\\architecture\\NotSoTiny\\programming\\standard library\\simvideo\\textsmall.dat",
+                                MACHINE_CONFIG_FILE = null, // machine configuration properties. null for the standard machine
+                                RECORD_JOURNAL_FILE = null, // journal external events here, saved on close. null to not record
+                                REPLAY_JOURNAL_FILE = null; // replay external events from this journal. null to run live
     
     
     // sim vars
     private NotSoTinySimulator sim;
     
-    private MemoryManager mmu;
+    private Machine machine;
     
-    private FlatMemoryController privramController,
-                                 lowramController,
-                                 placeholder_spiController,
-                                 placeholder_cacheController,
-                                 keyboardBufferController,
-                                 videoBufferController,
-                                 videoCharsetController,
-                                 videoOtherController,
-                                 bootromController;
+    private MemoryManager mmu;
     
-    private SoundInterfaceController sic;
+    private MemoryController keyboardBufferController;
     
-    private RandomController rand;
+    private VideoBufferController videoBufferController;
     
     private InterruptController pic;
     
-    private DiskBufferController dbc;
-    
-    private HookController resetHookController;
-    
     private Relocator relocator;
     
     private String entrySymbol;
     
     private ScreenBuffer screenBufferController;
     
-    // actual memory arrays
-    private byte[] privramArray,
-                   lowramArray,
-                   placeholder_spiArray,
-                   placeholder_cacheArray,
-                   keyboardBufferArray,
-                   videoBufferArray,
-                   videoCharsetArray,
-                   videoOtherArray,
-                   bootromArray;
+    // advanced view text, built on the simulator thread
+    private volatile String debugState = "",
+                            debugMemwatch = "",
+                            debugWatchAddress = "";
     
     // real time clock stuff
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
     
-    private ScheduledFuture<?> rtcHandler;
+    private TimerController rtc;    // null if the machine has no pit
     
     private SimulatorThread simThread;
     
@@ -229,48 +186,50 @@ public class NotSoTinyUI extends Application {
      * @author Mechafinch
      */
     private class SimulatorThread extends Thread {
-        private long periodns = 0;
-        
-        private ScheduledFuture<?> clockHandler;
+        private volatile Throttle throttle; // null to run as fast as possible
         
         /**
          * Constructor
          * 
-         * @param periodus period in nanoseconds
+         * @param periodns period in nanoseconds, or 0 to run as fast as possible
          */
         public SimulatorThread(long periodns) {
-            this.periodns = periodns;
+            setPeriod(periodns);
+        }
+        
+        /**
+         * Sets the clock period. Simulator thread.
+         * 
+         * @param periodns period in nanoseconds, or 0 to run as fast as possible
+         */
+        public void setPeriod(long periodns) {
+            this.throttle = (periodns == 0) ? null : new Throttle(1_000_000_000.0 / periodns);
         }
         
         @Override
         public void run() {
             while(true) {
                 try {
-                    // run as fast as possible or no?
-                    if(this.periodns == 0) {
-                        //System.out.println("running fast");
-                        this.clockHandler = null;
-                        
-                        // just run until halted
-                        while(!NotSoTinyUI.this.sim.getHalted()) {
-                            if(Thread.interrupted()) return;
-                            step();
-                        }
-                    } else if(this.clockHandler == null || this.clockHandler.isDone()){
-                        
-                        //System.out.println("running slow");
-                        // run at the given rate
-                        if(!NotSoTinyUI.this.sim.getHalted()) {
-                            this.clockHandler = NotSoTinyUI.this.scheduler.scheduleAtFixedRate(() -> this.step(), 0, this.periodns, TimeUnit.NANOSECONDS);
-                        }
+                    // requests made while idle. Interrupts wait while the cpu is stopped
+                    NotSoTinyUI.this.sim.serviceMailbox();
+                    
+                    // time spent idle isn't lag
+                    if(this.throttle != null) {
+                        this.throttle.sync();
                     }
                     
-                    synchronized(this) {
-                        wait();
+                    // run until halted or stopped. Throttled runs return every batch to pick up clock changes
+                    while(NotSoTinyUI.this.freerunEnabled && !NotSoTinyUI.this.sim.getHalted()) {
+                        if(Thread.interrupted()) return;
+                        
+                        Throttle t = this.throttle;
+                        step((t == null) ? RUN_BUDGET : t.getBatchInstructions());
                     }
-                } catch(InterruptedException ie) {
-                    this.stopSim();
-                    return;
+                    
+                    // park until there's something to do
+                    NotSoTinyUI.this.sim.idle(Long.MAX_VALUE, !NotSoTinyUI.this.freerunEnabled);
+                    
+                    if(Thread.interrupted()) return;
                 } catch(Exception e) {
                     e.printStackTrace();
                 }
@@ -278,29 +237,28 @@ public class NotSoTinyUI extends Application {
         }
         
         /**
-         * Stops the clock
-         */
-        private void stopSim() {
-            if(this.clockHandler != null) {
-                while(!this.clockHandler.isDone()) this.clockHandler.cancel(false);
-            }
-        }
-        
-        /**
-         * Steps the simulator
+         * Runs the simulator, at the clock rate if throttled. Tracing runs an instruction at a time.
+         * 
+         * @param budget Maximum number of instructions to run
          */
-        private void step() {
+        private void step(long budget) {
             if(NotSoTinyUI.this.sim.getHalted() || !NotSoTinyUI.this.freerunEnabled) {
-                this.stopSim();
+                NotSoTinyUI.this.sim.serviceMailbox();
             } else {
+                long startCount = NotSoTinyUI.this.sim.getInstructionCount();
+                
                 try { 
-                    if(NotSoTinyUI.this.traceEnabled) {
-                        if(NotSoTinyUI.this.advancedViewVisisble) NotSoTinyUI.this.traceInstruction();
-                        else NotSoTinyUI.this.dummyTrace();
-                    }
+                    StopCondition condition = NotSoTinyUI.this.traceEnabled ? NotSoTinyUI.this.tracer : null;
+                    Throttle t = this.throttle;
+                    StopReason reason = (t == null) ? NotSoTinyUI.this.sim.runUntil(budget, condition) : t.runUntil(NotSoTinyUI.this.sim, budget, condition);
                     
-                    NotSoTinyUI.this.pic.step(NotSoTinyUI.this.sim);
-                    NotSoTinyUI.this.sim.step();
+                    if(reason == StopReason.BREAKPOINT) {
+                        NotSoTinyUI.this.sim.setHalted(true);
+                        NotSoTinyUI.this.freerunEnabled = false;
+                    }
+                } catch(InterruptedException e) {
+                    // for run() to see
+                    Thread.currentThread().interrupt();
                 } catch(Exception e) {
                     if(e instanceof IndexOutOfBoundsException ie && ie.getMessage().contains("registered")) {
                         System.out.printf("%08X: ", NotSoTinyUI.this.sim.getRegIP() - 1);
@@ -323,11 +281,11 @@ public class NotSoTinyUI extends Application {
                         System.out.printf("%08X: ", NotSoTinyUI.this.sim.getRegIP() - 1);
                         e.printStackTrace();
                         NotSoTinyUI.this.sim.setHalted(true);
-                        this.stopSim();
                         throw e;
                     }
+                } finally {
+                    NotSoTinyUI.this.instructionsExecutedTotal += NotSoTinyUI.this.sim.getInstructionCount() - startCount;
                 }
-                NotSoTinyUI.this.instructionsExecutedTotal++;
             }
             
             // sanity check
@@ -349,17 +307,9 @@ public class NotSoTinyUI extends Application {
                 NotSoTinyUI.this.sim.fireNonMaskableInterrupt(VECTOR_MEMORY_ERROR);
                 */
             }
-            
-            // breakpoints
-            if(NotSoTinyUI.this.enableBreakpoints && NotSoTinyUI.this.breakpointAddress != -1l) {
-                if(NotSoTinyUI.this.sim.getRegIP() == (NotSoTinyUI.this.breakpointAddress & 0xFFFF_FFFF)) {
-                    NotSoTinyUI.this.sim.setHalted(true);
-                    NotSoTinyUI.this.freerunEnabled = false;
-                }
-            }
         }
         
-        //public void setPeriod(long p) { this.periodus = p; }
+        public Throttle getThrottle() { return this.throttle; }
     }
     
     // misc
@@ -398,56 +348,23 @@ public class NotSoTinyUI extends Application {
      * @throws IOException 
      */
     private void initSimulator(boolean load) throws MidiUnavailableException, IOException {
-        // initialize memory manager
-        this.mmu = new CachingMemoryManager();
-        //this.mmu = new MemoryManager();
-        
-        // initialize flat memory segments]
-        privramArray = new byte[PRIVRAM_SIZE];
-        lowramArray = new byte[LOWRAM_SIZE];
-        placeholder_spiArray = new byte[SPI_SIZE];
-        placeholder_cacheArray = new byte[CC_SIZE];
-        keyboardBufferArray = new byte[KEYBOARD_SIZE];
-        videoBufferArray = new byte[VIDEO_BUFFER_SIZE];
-        videoCharsetArray = new byte[VIDEO_CHARSET_SIZE];
-        videoOtherArray = new byte[VIDEO_OTHER_SIZE];
-        bootromArray = new byte[BOOTROM_SIZE];
-        
-        privramController = new FlatMemoryController(privramArray, true, true);
-        lowramController = new FlatMemoryController(lowramArray, false, false);
-        placeholder_spiController = new FlatMemoryController(placeholder_spiArray, false, false);
-        placeholder_cacheController = new FlatMemoryController(placeholder_cacheArray, true, true);
-        keyboardBufferController = new FlatMemoryController(keyboardBufferArray, false, true);
-        videoBufferController = new FlatMemoryController(videoBufferArray, false, false);
-        videoCharsetController = new FlatMemoryController(videoCharsetArray, false, false);
-        videoOtherController = new FlatMemoryController(videoOtherArray, false, false);
-        bootromController = new FlatMemoryController(bootromArray, false, true);
-        
-        // initialize other segments
-        sic = new SoundInterfaceController();
-        rand = new RandomController();
-        pic = new InterruptController();
-        dbc = new DiskBufferController(this.mmu, Paths.get(DISK_FOLDER));
-        resetHookController = new HookController(() -> { /*System.out.println("Reset!");*/ this.fullResetPending = true; });
-        screenBufferController = new ScreenBuffer(videoBufferArray); // 3FFFC
-        
-        if(USE_PRIVRAM) { this.mmu.registerSegment(privramController, PRIVRAM_START, PRIVRAM_SIZE); }
-        ((CachingMemoryManager)this.mmu).registerSegment(lowramController, LOWRAM_START, LOWRAM_SIZE, true);
-        //this.mmu.registerSegment(lowramController, LOWRAM_START, LOWRAM_SIZE);
-        this.mmu.registerSegment(placeholder_spiController, SPI_START, SPI_SIZE);
-        this.mmu.registerSegment(placeholder_cacheController, CC_START, CC_SIZE);
-        this.mmu.registerSegment(keyboardBufferController, KEYBOARD_START, KEYBOARD_SIZE);
-        this.mmu.registerSegment(videoBufferController, VIDEO_START, VIDEO_BUFFER_SIZE);
-        this.mmu.registerSegment(videoCharsetController, VIDEO_START + VIDEO_BUFFER_SIZE, VIDEO_CHARSET_SIZE);
-        this.mmu.registerSegment(videoOtherController, VIDEO_START + VIDEO_BUFFER_SIZE + VIDEO_CHARSET_SIZE, VIDEO_OTHER_SIZE - 4);
-        this.mmu.registerSegment(pic, PIC_START, PIC_SIZE);
-        this.mmu.registerSegment(dbc, DISK_START, DISK_SIZE);
-        this.mmu.registerSegment(bootromController, BOOTROM_START, BOOTROM_SIZE);
-        this.mmu.registerSegment(resetHookController, RESET_START, RESET_SIZE);
-        
-        this.mmu.registerSegment(sic, SOUND_START, SOUND_SIZE);
-        this.mmu.registerSegment(rand, RANDOM_START, RANDOM_SIZE);
-        this.mmu.registerSegment(screenBufferController, VIDEO_START + VIDEO_BUFFER_SIZE + VIDEO_CHARSET_SIZE + VIDEO_OTHER_SIZE - 4, 4);
+        // build machine
+        MachineConfig config = (MACHINE_CONFIG_FILE == null) ? MachineConfig.standard(USE_PRIVRAM, USE_TIMING) : MachineConfig.load(Paths.get(MACHINE_CONFIG_FILE));
+        config.setTiming(config.isTiming() || USE_TIMING);
+        config.setDiskDirectory(DISK_FOLDER);
+        
+        EventJournal journal = (REPLAY_JOURNAL_FILE != null) ? EventJournal.load(Paths.get(REPLAY_JOURNAL_FILE)) :
+                               (RECORD_JOURNAL_FILE != null) ? new EventJournal() : null;
+        
+        this.machine = new Machine(config, journal);
+        this.machine.setResetHook(() -> { /*System.out.println("Reset!");*/ this.fullResetPending = true; });
+        
+        this.mmu = this.machine.getMemoryManager();
+        this.keyboardBufferController = this.machine.getController("keyboard");
+        this.videoBufferController = this.machine.getVideoBuffer();
+        this.screenBufferController = this.machine.getScreenBuffer();
+        this.pic = this.machine.getInterruptController();
+        this.rtc = (this.machine.getController("pit") instanceof TimerController t) ? t : null;
         
         // initialize tracked things
         this.instructionTrace = new ArrayDeque<>();
@@ -482,7 +399,7 @@ public class NotSoTinyUI extends Application {
         
         // load text font
         byte[] font = Files.readAllBytes(Paths.get(TEXT_FONT_FILE));
-        System.arraycopy(font, 0, videoCharsetArray, 0, font.length);
+        this.machine.getController("charset").writeBytes(0, font, 0, font.length);
         
         // Load program into memory
         if(load) {
@@ -492,28 +409,13 @@ public class NotSoTinyUI extends Application {
             this.entrySymbol = (String) relocatorPair.get(1);
         }
         
-        byte[] privilagedData = new byte[PRIVRAM_SIZE];
-        byte[] relocatedData = new byte[LOWRAM_SIZE];
-        long entry = ExecLoader.loadRelocator(this.relocator, entrySymbol, relocatedData, privilagedData, LOWRAM_START, 0, 0, 0);
-        
-        System.arraycopy(privilagedData, 0, privramArray, 0, PRIVRAM_SIZE);
-        System.arraycopy(relocatedData, 0, lowramArray, 0, LOWRAM_SIZE);
-        
-        try {
-            // write entry vector
-            this.mmu.write4BytesPrivileged(VECTOR_RESET * 4, (int) entry);
-            
-            // simulator
-            this.sim = new NotSoTinySimulator(this.mmu);
-        } catch(NonexistentAccessException e) {}
+        this.machine.load(this.relocator, this.entrySymbol);
+        this.sim = this.machine.getSimulator();
+        updateBreakpoints();
         
-        if(USE_PRIVRAM) {
-            this.sim.setRegSP((int)(LOWRAM_START + LOWRAM_SIZE));
-            this.sim.setRegISP((int)(PRIVRAM_START + PRIVRAM_SIZE));
-        } else {
-            this.sim.setRegSP((int)(LOWRAM_START + LOWRAM_SIZE) - 1024);
-            this.sim.setRegISP((int)(LOWRAM_START + LOWRAM_SIZE));
-        }
+        //this.halter.writeByte(0l, (byte) 0);
+        this.sim.setHalted(!START_IMMEDIATELY);
+        this.freerunEnabled = START_IMMEDIATELY;
         
         // timing stuff
         this.simThread = new SimulatorThread(CLOCK_PERIOD);
@@ -521,17 +423,11 @@ public class NotSoTinyUI extends Application {
         this.simThread.start();
         
         // start real time clock
-        this.rtcEnabled = START_WITH_CLOCK;
-        this.rtcHandler = this.scheduler.scheduleAtFixedRate(() -> {
-            if(this.rtcEnabled) {
-                runInterrupt(VECTOR_RTC);
-            }
-        }, 1_000l, PIT_PERIOD, TimeUnit.NANOSECONDS);
-        // 1000 hz
+        this.rtcEnabled = false;
         
-        //this.halter.writeByte(0l, (byte) 0);
-        this.sim.setHalted(!START_IMMEDIATELY);
-        this.freerunEnabled = START_IMMEDIATELY;
+        if(START_WITH_CLOCK) {
+            toggleRTC();
+        }
     }
     
     private void restartSimulator(boolean reload) {
@@ -549,8 +445,8 @@ public class NotSoTinyUI extends Application {
         // stop ui updater
         while(!this.uiUpdateFuture.isDone()) this.uiUpdateFuture.cancel(false);
         
-        // stop RTC
-        while(!this.rtcHandler.isDone()) this.rtcHandler.cancel(false);
+        // release the old machine's memory
+        this.machine.close();
         
         // reset
         try {
@@ -569,11 +465,11 @@ public class NotSoTinyUI extends Application {
     private void toggleRunSimulator() {
         if(!this.freerunEnabled) {
             this.freerunEnabled = true;
-            this.sim.setHalted(false);
+            this.sim.requestResume();
             notifySimulatorThread();
         } else {
             this.freerunEnabled = false;
-            this.sim.setHalted(true);
+            this.sim.requestHalt();
         }
     }
     
@@ -605,10 +501,23 @@ public class NotSoTinyUI extends Application {
     }
     
     /**
-     * Toggles RTC
+     * Toggles RTC. The machine's interval timer is programmed on the simulator thread, and polled there.
      */
     private void toggleRTC() {
-        this.rtcEnabled = !this.rtcEnabled;
+        if(this.rtc == null) {
+            return;
+        }
+        
+        boolean enable = !this.rtcEnabled;
+        this.rtcEnabled = enable;
+        
+        this.sim.runAtSafePoint(() -> {
+            if(enable) {
+                this.rtc.start((int)(PIT_PERIOD / 1000), true, VECTOR_RTC);  // microseconds with the standard machine
+            } else {
+                this.rtc.stop();
+            }
+        });
     }
     
     /**
@@ -616,47 +525,48 @@ public class NotSoTinyUI extends Application {
      * Flips the IE bit in PF
      */
     private void toggleInterrupts() {
-        this.sim.setRegPF((short)(this.sim.getRegPF() ^ 0x0001));
+        this.sim.runAtSafePoint(() -> this.sim.setRegPF((short)(this.sim.getRegPF() ^ 0x0001)));
+        notifySimulatorThread();
     }
     
     /**
-     * Awakens the simulator thread
+     * Awakens the simulator thread, which publishes a snapshot
      */
     private void notifySimulatorThread() {
-        synchronized(this.simThread) { 
-            this.simThread.notify();
-        }
+        this.sim.requestSnapshot();
     }
     
     /**
-     * Fires an interrupt, and sets the cpu running if applicable
+     * Fires an interrupt, and sets the cpu running if applicable. The controller wakes the simulator thread.
      * @param vector
      */
     private void runInterrupt(byte vector) {
         this.pic.setRequest(vector);
-        this.pic.step(this.sim);
-        notifySimulatorThread();
     }
     
     /**
-     * Step the simulator
+     * Step the simulator. Runs on the simulator thread, so only while it's stopped.
      */
     private void stepSim() {
-        if(NotSoTinyUI.this.traceEnabled) {
-            if(NotSoTinyUI.this.advancedViewVisisble) NotSoTinyUI.this.traceInstruction();
-            else NotSoTinyUI.this.dummyTrace();
+        if(this.freerunEnabled) {
+            return;
         }
         
-        this.pic.step(this.sim);
-        this.sim.step();
-        this.instructionsExecutedTotal++;
-        
-        if(this.enableBreakpoints && this.breakpointAddress != -1l) {
-            if(this.sim.getRegIP() == (this.breakpointAddress & 0xFFFF_FFFF)) {
+        this.sim.runAtSafePoint(() -> {
+            if(this.traceEnabled) {
+                this.tracer.shouldStop(this.sim);
+            }
+            
+            this.sim.stepWithInterrupts();
+            this.instructionsExecutedTotal++;
+            
+            if(this.sim.isBreakpoint(this.sim.getRegIP())) {
                 //this.halter.writeByte(0, (byte) 0);
                 this.sim.setHalted(true);
             }
-        }
+        });
+        
+        notifySimulatorThread();
     }
     
     /*
@@ -740,6 +650,27 @@ public class NotSoTinyUI extends Application {
         //this.instructionTrace.poll();
     }
     
+    /**
+     * Traces every instruction run, never stopping
+     */
+    private StopCondition tracer = sim -> {
+        if(this.advancedViewVisisble) runUnjournaled(this::traceInstruction);
+        else dummyTrace();
+        
+        return false;
+    };
+    
+    /**
+     * Gives the simulator the breakpoint set in the UI. Simulator thread.
+     */
+    private void updateBreakpoints() {
+        this.sim.clearBreakpoints();
+        
+        if(this.enableBreakpoints && this.breakpointAddress != -1l) {
+            this.sim.addBreakpoint((int) this.breakpointAddress);
+        }
+    }
+    
     /**
      * Initialize the UI 
      */
@@ -750,7 +681,7 @@ public class NotSoTinyUI extends Application {
         // layout tree
         // initialize components in post-order
         // screen
-        this.screen = new Screen(320, 240, 3);
+        this.screen = new Screen(this.machine.getConfig().getScreenWidth(), this.machine.getConfig().getScreenHeight(), 3);
         
         if(USE_SCREEN) {
             this.screen.enable();
@@ -883,6 +814,7 @@ public class NotSoTinyUI extends Application {
         // enable breakpoints button
         this.checkEnableBreakpoints.setOnAction(e -> {
             this.enableBreakpoints = this.checkEnableBreakpoints.isSelected();
+            this.sim.runAtSafePoint(this::updateBreakpoints);
         });
         
         // breakpoints textfield
@@ -906,6 +838,8 @@ public class NotSoTinyUI extends Application {
                     this.breakpointAddress = -1l;
                 }
             }
+            
+            this.sim.runAtSafePoint(this::updateBreakpoints);
         });
         
         // memwatch text field
@@ -963,17 +897,10 @@ public class NotSoTinyUI extends Application {
             }
             
             if(period >= 0) {
-                long oldPeriod = this.simThread.periodns;
-                this.simThread.periodns = period * 1_000l;
+                long periodns = period * 1_000l;
                 
-                if(this.freerunEnabled) {
-                    this.freerunEnabled = false;
-                    
-                    this.scheduler.schedule(() -> {
-                        this.freerunEnabled = true;
-                        notifySimulatorThread();
-                    }, 1l + (2 * oldPeriod / 1_000_000), TimeUnit.MILLISECONDS);
-                }
+                this.sim.runAtSafePoint(() -> this.simThread.setPeriod(periodns));
+                notifySimulatorThread();
             }
         });
         
@@ -1033,6 +960,14 @@ public class NotSoTinyUI extends Application {
         this.stage.setResizable(false);
         
         this.stage.setOnCloseRequest(e -> {
+            if(RECORD_JOURNAL_FILE != null) {
+                try {
+                    this.machine.getJournal().save(Paths.get(RECORD_JOURNAL_FILE));
+                } catch(IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            
             Platform.exit();
             System.exit(0);
         });
@@ -1077,17 +1012,24 @@ public class NotSoTinyUI extends Application {
             if(TRACK_CPUTIME) {
                 this.infoTotalInstructions.setText(String.format("Total instructions: %,d\nCPU Time: %,.3fs", this.instructionsExecutedTotal, ((double)(this.cpuTimens / 1_000_000)) / 1000.0));
             } else {
-                this.infoTotalInstructions.setText(String.format("Total instructions: %,d\n", this.instructionsExecutedTotal));
+                this.infoTotalInstructions.setText(String.format("Total instructions: %,d\nWakeup latency: %,.1fus (max %,.1fus)", this.instructionsExecutedTotal, this.sim.getAverageWakeupNanos() / 1000.0, this.sim.getMaxWakeupNanos() / 1000.0));
             }
             
-            this.infoAverageMIPS.setText(String.format("\nAverage IPS: %,6.0f", this.lastAverageMIPS));
+            Throttle throttle = this.simThread.getThrottle();
+            
+            if(throttle == null) {
+                this.infoAverageMIPS.setText(String.format("\nAverage IPS: %,6.0f", this.lastAverageMIPS));
+            } else {
+                this.infoAverageMIPS.setText(String.format("\nAverage IPS: %,6.0f / %,.0f", this.lastAverageMIPS, throttle.getTargetHz()));
+            }
             
             this.buttonToggleRunning.setText(this.freerunEnabled ? "Stop CPU" : "Start CPU");
             this.buttonToggleTrace.setText(this.traceEnabled ? "Stop Trace" : "Start Trace");
             this.buttonToggleStackTrace.setText(this.stackTraceEnabled ? "Hide Stack Trace" : "Show Stack Trace");
             this.buttonToggleDissassembler.setText(this.disassemblyEnabled ? "Hide Disassembly" : "Show Disassembly");
             this.buttonToggleClock.setText(this.rtcEnabled ? "Disable RTC" : "Enable RTC");
-            this.buttonToggleInterrupts.setText((this.sim.getRegPF() & 0x0001) == 0 ? "Enable Interrupts" : "Disable Interrupts");
+            this.buttonToggleInterrupts.setText((this.sim.getSnapshot().pf() & 0x0001) == 0 ? "Enable Interrupts" : "Disable Interrupts");
+            this.sim.requestSnapshot();
             
             if(this.freerunEnabled && this.sim.getHalted()) {
                 this.buttonAwaken.setDisable(false);
@@ -1096,207 +1038,232 @@ public class NotSoTinyUI extends Application {
             }
             
             //this.screen.update(this.videoBufferArray, 0);
-            this.screen.update(this.screenBufferController, 0);
+            this.screen.update(this.videoBufferController, this.screenBufferController);
             
             // advanced info
             if(this.advancedViewVisisble) {
                 this.buttonToggleAdvanced.setText("Hide advanced/debug view");
                 
-                // processor state
-                Disassembler dis = new Disassembler();
-                String state = "        -- Processor State --\n";
+                // built on the simulator thread, shown a frame later
+                this.sim.runAtSafePoint(() -> runUnjournaled(this::buildDebugView));
+                notifySimulatorThread();
                 
-                state += String.format("A    B    C    D    I    J    K    L%n%04X %04X %04X %04X %04X %04X %04X %04X%n",
-                        sim.getRegA(), sim.getRegB(), sim.getRegC(), sim.getRegD(), sim.getRegI(), sim.getRegJ(), sim.getRegK(), sim.getRegL());
-                state += String.format("XP        YP        BP        SP%n%08X  %08X  %08X  %08X%n",
-                        sim.getRegXP(), sim.getRegYP(), sim.getRegBP(), sim.getRegSP());
-                state += String.format("IP        ISP       F    PF%n%08X  %08X  %04X %04X%n",
-                        sim.getRegIP(), sim.getRegISP(), sim.getRegF(), sim.getRegPF());
+                this.infoProcessorState.setText(this.debugState);
+                this.infoMemwatch.setText(this.debugMemwatch);
+                this.infoCurrentWatchAddress.setText(this.debugWatchAddress);
                 
-                try {
-                    synchronized(this.mmu) {
-                        state += dis.disassemble(this.mmu, Integer.toUnsignedLong(sim.getRegIP())) + "\n";
-                    
-                        for(int j = 0; j < dis.getLastInstructionLength(); j++) {
-                            byte b;
-                            
-                            try{
-                                b = this.mmu.readBytePrivileged(Integer.toUnsignedLong(sim.getRegIP()) + ((long) j));
-                            } catch(NonexistentAccessException e) {
-                                b = 0;
-                            }
-                            
-                            state += String.format("%02X ", b);
-                        }
-                    }
-                } catch(IndexOutOfBoundsException e) {
-                } catch(NullPointerException e) {}
+                // breakpoints
+                if(!this.breakpointSymbol.equals("")) {
+                    this.infoCurrentBreakpoint.setText("Current Breakpoint: " + this.breakpointSymbol);
+                } else {
+                    this.infoCurrentBreakpoint.setText("Current Breakpoint: (none)");
+                }
+            } else {
+                this.buttonToggleAdvanced.setText("Show advanced/debug view");
+            }
+            
+            this.stage.sizeToScene();
+        });
+        
+        //printState();
+    }
+    
+    /**
+     * Runs a debugging task that reads memory. Its device reads aren't part of the guest's run, so they bypass the
+     * journal, if there is one.
+     * 
+     * @param task
+     */
+    private void runUnjournaled(Runnable task) {
+        EventJournal journal = this.machine.getJournal();
+        
+        if(journal != null) {
+            journal.runUnjournaled(task);
+        } else {
+            task.run();
+        }
+    }
+    
+    /**
+     * Builds the advanced view's text. Reads processor state and memory, so it runs on the simulator thread.
+     */
+    private void buildDebugView() {
+        // processor state
+        Disassembler dis = new Disassembler();
+        String state = "        -- Processor State --\n";
+        
+        state += String.format("A    B    C    D    I    J    K    L%n%04X %04X %04X %04X %04X %04X %04X %04X%n",
+                sim.getRegA(), sim.getRegB(), sim.getRegC(), sim.getRegD(), sim.getRegI(), sim.getRegJ(), sim.getRegK(), sim.getRegL());
+        state += String.format("XP        YP        BP        SP%n%08X  %08X  %08X  %08X%n",
+                sim.getRegXP(), sim.getRegYP(), sim.getRegBP(), sim.getRegSP());
+        state += String.format("IP        ISP       F    PF%n%08X  %08X  %04X %04X%n",
+                sim.getRegIP(), sim.getRegISP(), sim.getRegF(), sim.getRegPF());
+        
+        try {
+            state += dis.disassemble(this.mmu, Integer.toUnsignedLong(sim.getRegIP())) + "\n";
+            
+            for(int j = 0; j < dis.getLastInstructionLength(); j++) {
+                byte b;
                 
-                state += "\n\n" + this.relocator.getAddressName(Integer.toUnsignedLong(sim.getRegIP()));
+                try{
+                    b = this.mmu.readBytePrivileged(Integer.toUnsignedLong(sim.getRegIP()) + ((long) j));
+                } catch(NonexistentAccessException e) {
+                    b = 0;
+                }
                 
-                // If watching a pointer, update address
-                this.memwatchAddress = switch(this.memwatchType) {
-                    case NUMBER, NUMBER_INDIRECT        -> this.memwatchSourceAddress;
-                    case REGISTER, REGISTER_INDIRECT    -> switch(this.memwatchRegister) {
-                            case "D:A"  -> ((this.sim.getRegD() << 16) | (this.sim.getRegA() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
-                            case "A:B"  -> ((this.sim.getRegA() << 16) | (this.sim.getRegB() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
-                            case "B:C"  -> ((this.sim.getRegB() << 16) | (this.sim.getRegC() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
-                            case "C:D"  -> ((this.sim.getRegC() << 16) | (this.sim.getRegD() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
-                            case "J:I"  -> ((this.sim.getRegJ() << 16) | (this.sim.getRegI() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
-                            case "L:K"  -> ((this.sim.getRegL() << 16) | (this.sim.getRegK() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
-                            case "XP"   -> this.sim.getRegXP() & 0xFFFF_FFFFl;
-                            case "YP"   -> this.sim.getRegYP() & 0xFFFF_FFFFl;
-                            case "BP"   -> this.sim.getRegBP() & 0xFFFF_FFFFl;
-                            case "SP"   -> this.sim.getRegSP() & 0xFFFF_FFFFl;
-                            case "IP"   -> this.sim.getRegIP() & 0xFFFF_FFFFl;
-                            default     -> 0l;
-                        };
-                    case NONE -> 0;
+                state += String.format("%02X ", b);
+            }
+        } catch(IndexOutOfBoundsException e) {
+        } catch(NullPointerException e) {}
+        
+        state += "\n\n" + this.relocator.getAddressName(Integer.toUnsignedLong(sim.getRegIP()));
+        
+        // If watching a pointer, update address
+        this.memwatchAddress = switch(this.memwatchType) {
+            case NUMBER, NUMBER_INDIRECT        -> this.memwatchSourceAddress;
+            case REGISTER, REGISTER_INDIRECT    -> switch(this.memwatchRegister) {
+                    case "D:A"  -> ((this.sim.getRegD() << 16) | (this.sim.getRegA() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
+                    case "A:B"  -> ((this.sim.getRegA() << 16) | (this.sim.getRegB() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
+                    case "B:C"  -> ((this.sim.getRegB() << 16) | (this.sim.getRegC() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
+                    case "C:D"  -> ((this.sim.getRegC() << 16) | (this.sim.getRegD() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
+                    case "J:I"  -> ((this.sim.getRegJ() << 16) | (this.sim.getRegI() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
+                    case "L:K"  -> ((this.sim.getRegL() << 16) | (this.sim.getRegK() & 0x0000_FFFF)) & 0xFFFF_FFFFl;
+                    case "XP"   -> this.sim.getRegXP() & 0xFFFF_FFFFl;
+                    case "YP"   -> this.sim.getRegYP() & 0xFFFF_FFFFl;
+                    case "BP"   -> this.sim.getRegBP() & 0xFFFF_FFFFl;
+                    case "SP"   -> this.sim.getRegSP() & 0xFFFF_FFFFl;
+                    case "IP"   -> this.sim.getRegIP() & 0xFFFF_FFFFl;
+                    default     -> 0l;
                 };
+            case NONE -> 0;
+        };
+        
+        if(this.memwatchType.toString().endsWith("INDIRECT")) {
+            try {
+                this.memwatchAddress = this.mmu.read4BytesPrivileged(this.memwatchAddress);
+            } catch(NonexistentAccessException e) {
+                this.memwatchAddress = 0;
+            }
+        }
+        
+        // trace/disassembly
+        if(this.traceEnabled) {
+            state += "\n\n";
+            
+            ArrayList<String> traceCopy = new ArrayList<>(this.instructionTrace);
+            
+            for(String s : traceCopy) {
+                state += (s != null ? s : "") + "\n";
+            }
+        } else if(this.disassemblyEnabled) {
+            state += "\n\n";
+            
+            // disassemble memwatch area
+            for(int i = 0, j = 0; i < MEMWATCH_BYTES && j < TRACE_SIZE; j++) {
+                String disasm = dis.disassemble(this.mmu, this.memwatchAddress + i),
+                       disBytes = "";
                 
-                if(this.memwatchType.toString().endsWith("INDIRECT")) {
-                    synchronized(this.mmu) {
-                        try {
-                            this.memwatchAddress = this.mmu.read4BytesPrivileged(this.memwatchAddress);
-                        } catch(NonexistentAccessException e) {
-                            this.memwatchAddress = 0;
-                        }
-                    }
-                }
+                int bytes = dis.getLastInstructionLength();
                 
-                // trace/disassembly
-                if(this.traceEnabled) {
-                    state += "\n\n";
-                    
-                    ArrayList<String> traceCopy = new ArrayList<>(this.instructionTrace);
-                    
-                    for(String s : traceCopy) {
-                        state += (s != null ? s : "") + "\n";
-                    }
-                } else if(this.disassemblyEnabled) {
-                    state += "\n\n";
+                for(int k = 0; k < bytes; k++) {
+                    byte l;
                     
-                    // disassemble memwatch area
-                    for(int i = 0, j = 0; i < MEMWATCH_BYTES && j < TRACE_SIZE; j++) {
-                        String disasm = dis.disassemble(this.mmu, this.memwatchAddress + i),
-                               disBytes = "";
-                        
-                        int bytes = dis.getLastInstructionLength();
-                        
-                        for(int k = 0; k < bytes; k++) {
-                            byte l;
-                            
-                            try {
-                                l = this.mmu.readBytePrivileged(this.memwatchAddress + i + k);
-                            } catch(NonexistentAccessException e) {
-                                l = 0;
-                                j = TRACE_SIZE; // end disassembly
-                                break;
-                            }
-                            
-                            disBytes += String.format("%02X ", l);
-                        }
-                        
-                        if(j == TRACE_SIZE) {
-                            state += String.format("%08X: Out of bounds.%n", this.memwatchAddress + i);
-                        } else {
-                            state += String.format("%08X: %-24s%s %n", this.memwatchAddress + i, disBytes, disasm);
-                        }
-                        
-                        i += bytes;
-                    }
-                } else if(this.stackTraceEnabled) {
-                    state += "\n\nAddress   BP       Label\n";
-                    
-                    List<String> trace = new ArrayList<>();
-                    
-                    long bpAddr = this.sim.getRegBP() & 0xFFFFFFFFl,
-                         retAddr = this.sim.getRegIP() & 0xFFFFFFFFl;
-                    
-                    for(int i = 0; i < TRACE_SIZE; i++) {
-                        // trace
-                        String functionLabel = this.relocator.getNearestBelow(retAddr);
-                        
-                        trace.add(String.format("%08X %08X %s%n", retAddr, bpAddr, functionLabel)); 
-                        
-                        // read from [BP] = previous BP
-                        // read from [BP + 4] = return address
-                        try {
-                            retAddr = this.mmu.read4BytesPrivileged(bpAddr + 4) & 0xFFFFFFFFl;
-                            bpAddr = this.mmu.read4BytesPrivileged(bpAddr) & 0xFFFFFFFFl;
-                        } catch(NonexistentAccessException e) {
-                            break;
-                        }
-                        
-                        if(bpAddr == 0 || retAddr == 0) break;
+                    try {
+                        l = this.mmu.readBytePrivileged(this.memwatchAddress + i + k);
+                    } catch(NonexistentAccessException e) {
+                        l = 0;
+                        j = TRACE_SIZE; // end disassembly
+                        break;
                     }
                     
-                    for(int i = trace.size() - 1; i >= 0; i--) {
-                        state += trace.get(i);
-                    }
+                    disBytes += String.format("%02X ", l);
                 }
                 
-                this.infoProcessorState.setText(state);
+                if(j == TRACE_SIZE) {
+                    state += String.format("%08X: Out of bounds.%n", this.memwatchAddress + i);
+                } else {
+                    state += String.format("%08X: %-24s%s %n", this.memwatchAddress + i, disBytes, disasm);
+                }
                 
-                // memwatch
-                String memwatch = "";
+                i += bytes;
+            }
+        } else if(this.stackTraceEnabled) {
+            state += "\n\nAddress   BP       Label\n";
+            
+            List<String> trace = new ArrayList<>();
+            
+            long bpAddr = this.sim.getRegBP() & 0xFFFFFFFFl,
+                 retAddr = this.sim.getRegIP() & 0xFFFFFFFFl;
+            
+            for(int i = 0; i < TRACE_SIZE; i++) {
+                // trace
+                String functionLabel = this.relocator.getNearestBelow(retAddr);
                 
-                for(int i = 0; i < 64; i += 8) {
-                    try {
-                        int firstFour = this.mmu.read4BytesPrivileged(this.memwatchAddress + i),
-                            secondFour = this.mmu.read4BytesPrivileged(this.memwatchAddress + i + 4);
-                        
-                        byte[] bytes = new byte[] {
-                            (byte)(firstFour & 0xFF),           (byte)((firstFour >> 8) & 0xFF),
-                            (byte)((firstFour >> 16) & 0xFF),   (byte)((firstFour >> 24) & 0xFF),
-                            (byte)(secondFour & 0xFF),          (byte)((secondFour >> 8) & 0xFF),
-                            (byte)((secondFour >> 16) & 0xFF),  (byte)((secondFour >> 24) & 0xFF)
-                        };
-                        
-                        String chars = "";
-                        
-                        for(int j = 0; j < 8; j++) {
-                            char c;
-                            
-                            if((bytes[j] & 0x7F) < 0x7F && (bytes[j] & 0x7F) > 0x1F) {
-                                c = (char)(bytes[j]);
-                            } else {
-                                c = '.';
-                            }
-                            
-                            chars += c;
-                        }
-                        
-                        memwatch += String.format("%08X: %02X %02X %02X %02X %02X %02X %02X %02X |%s| %n",
-                                                  this.memwatchAddress + i,
-                                                  bytes[0], bytes[1], bytes[2], bytes[3],
-                                                  bytes[4], bytes[5], bytes[6], bytes[7],
-                                                  chars);
-                    } catch(NonexistentAccessException e) { 
-                        memwatch += String.format("%08X: out of bounds%n", this.memwatchAddress + i);
-                    }
+                trace.add(String.format("%08X %08X %s%n", retAddr, bpAddr, functionLabel)); 
+                
+                // read from [BP] = previous BP
+                // read from [BP + 4] = return address
+                try {
+                    retAddr = this.mmu.read4BytesPrivileged(bpAddr + 4) & 0xFFFFFFFFl;
+                    bpAddr = this.mmu.read4BytesPrivileged(bpAddr) & 0xFFFFFFFFl;
+                } catch(NonexistentAccessException e) {
+                    break;
                 }
                 
-                String nearestSymbol = this.relocator.getNearest(this.memwatchAddress);
-                long nearestAddr = this.relocator.getReference(nearestSymbol);
+                if(bpAddr == 0 || retAddr == 0) break;
+            }
+            
+            for(int i = trace.size() - 1; i >= 0; i--) {
+                state += trace.get(i);
+            }
+        }
+        
+        this.debugState = state;
+        
+        // memwatch
+        String memwatch = "";
+        
+        for(int i = 0; i < 64; i += 8) {
+            try {
+                int firstFour = this.mmu.read4BytesPrivileged(this.memwatchAddress + i),
+                    secondFour = this.mmu.read4BytesPrivileged(this.memwatchAddress + i + 4);
                 
-                this.infoMemwatch.setText(memwatch);
-                this.infoCurrentWatchAddress.setText(String.format("Current Memwatch Address: %08X%nNearest Label: %s%n               (%08X)", this.memwatchAddress, nearestSymbol, nearestAddr));
+                byte[] bytes = new byte[] {
+                    (byte)(firstFour & 0xFF),           (byte)((firstFour >> 8) & 0xFF),
+                    (byte)((firstFour >> 16) & 0xFF),   (byte)((firstFour >> 24) & 0xFF),
+                    (byte)(secondFour & 0xFF),          (byte)((secondFour >> 8) & 0xFF),
+                    (byte)((secondFour >> 16) & 0xFF),  (byte)((secondFour >> 24) & 0xFF)
+                };
                 
-                // breakpoints
-                if(!this.breakpointSymbol.equals("")) {
-                    this.infoCurrentBreakpoint.setText("Current Breakpoint: " + this.breakpointSymbol);
-                } else {
-                    this.infoCurrentBreakpoint.setText("Current Breakpoint: (none)");
+                String chars = "";
+                
+                for(int j = 0; j < 8; j++) {
+                    char c;
+                    
+                    if((bytes[j] & 0x7F) < 0x7F && (bytes[j] & 0x7F) > 0x1F) {
+                        c = (char)(bytes[j]);
+                    } else {
+                        c = '.';
+                    }
+                    
+                    chars += c;
                 }
-            } else {
-                this.buttonToggleAdvanced.setText("Show advanced/debug view");
+                
+                memwatch += String.format("%08X: %02X %02X %02X %02X %02X %02X %02X %02X |%s| %n",
+                                          this.memwatchAddress + i,
+                                          bytes[0], bytes[1], bytes[2], bytes[3],
+                                          bytes[4], bytes[5], bytes[6], bytes[7],
+                                          chars);
+            } catch(NonexistentAccessException e) { 
+                memwatch += String.format("%08X: out of bounds%n", this.memwatchAddress + i);
             }
-            
-            this.stage.sizeToScene();
-        });
+        }
         
-        //printState();
+        String nearestSymbol = this.relocator.getNearest(this.memwatchAddress);
+        long nearestAddr = this.relocator.getReference(nearestSymbol);
+        
+        this.debugMemwatch = memwatch;
+        this.debugWatchAddress = String.format("Current Memwatch Address: %08X%nNearest Label: %s%n               (%08X)", this.memwatchAddress, nearestSymbol, nearestAddr);
     }
     
     /**
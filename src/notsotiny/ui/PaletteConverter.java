@@ -0,0 +1,58 @@
+package notsotiny.ui;
+
+/**
+ * Converts palette-indexed pixels to ARGB through a lookup table built from a 256 entry BGR palette
+ *
+ * @author Mechafinch
+ */
+public class PaletteConverter {
+
+    private final int[] lut;
+
+    public PaletteConverter() {
+        this.lut = new int[256];
+    }
+
+    /**
+     * Rebuilds the lookup table from a palette in memory
+     *
+     * @param mem
+     * @param paletteAddress Address of entry 0. Entries are 3 bytes, blue first.
+     */
+    public void loadPalette(byte[] mem, int paletteAddress) {
+        for(int i = 0; i < 256; i++) {
+            int a = paletteAddress + (3 * i);
+
+            int red = mem[a + 2] & 0xFF,
+                green = mem[a + 1] & 0xFF,
+                blue = mem[a + 0] & 0xFF;
+
+            this.lut[i] = 0xFF00_0000 | (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    /**
+     * Converts pixels
+     *
+     * @param src Indexed pixels
+     * @param srcOffset
+     * @param dest ARGB pixels
+     * @param destOffset
+     * @param length Number of pixels
+     */
+    public void convert(byte[] src, int srcOffset, int[] dest, int destOffset, int length) {
+        int[] lut = this.lut;
+
+        for(int i = 0; i < length; i++) {
+            dest[destOffset + i] = lut[src[srcOffset + i] & 0xFF];
+        }
+    }
+
+    /**
+     * @param index
+     * @return ARGB color of a palette entry
+     */
+    public int getColor(int index) {
+        return this.lut[index & 0xFF];
+    }
+}
@@ -1,9 +1,15 @@
 package notsotiny.ui;
 
+import java.nio.IntBuffer;
+
+import javafx.geometry.Rectangle2D;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import notsotiny.sim.memory.ScreenBuffer;
+import notsotiny.sim.memory.VideoBufferController;
 
 /**
  * Greyscale bytemap of a section of memory
@@ -18,12 +24,31 @@ public class Screen extends Canvas {
     
     private boolean enabled;
     
+    // converted pixels, drawn to the canvas through the image
+    private int[] pixels;
+    private PixelBuffer<IntBuffer> pixelBuffer;
+    private WritableImage image;
+    private PaletteConverter palette;
+    
+    // what was drawn last
+    private boolean redrawAll,
+                    lastBuffered;
+    private int lastFrames;
+    
     public Screen(int screenWidth, int screenHeight, int pixelSize) {
         this.screenWidth = screenWidth;
         this.screenHeight = screenHeight;
         this.pixelSize = pixelSize;
         this.enabled = true;
         
+        this.pixels = new int[screenWidth * screenHeight];
+        this.pixelBuffer = new PixelBuffer<>(screenWidth, screenHeight, IntBuffer.wrap(this.pixels), PixelFormat.getIntArgbPreInstance());
+        this.image = new WritableImage(this.pixelBuffer);
+        this.palette = new PaletteConverter();
+        this.redrawAll = true;
+        this.lastBuffered = false;
+        this.lastFrames = 0;
+        
         this.setWidth(screenWidth * pixelSize);
         this.setHeight(screenHeight * pixelSize);
     }
@@ -56,13 +81,59 @@ public class Screen extends Canvas {
         return this.enabled;
     }
     
-    public void update(ScreenBuffer sb, int startAddress) {
-        //System.out.println(sb.isBuffered() ? "buferred" : "unbuffered");
-        update(sb.getScreen(), startAddress);
+    /**
+     * Updates the screen from video memory, drawing only rows written since the last update.
+     * While the screen is buffered, the latest presented frame is drawn whole each time it changes.
+     * 
+     * @param video
+     * @param sb
+     */
+    public void update(VideoBufferController video, ScreenBuffer sb) {
+        if(!this.enabled) {
+            this.redrawAll = true;
+            return;
+        }
+        
+        if(sb.isBuffered()) {
+            byte[] frame = video.acquireFrame();
+            int frames = video.getAcquiredFrame();
+            
+            if(!this.redrawAll && this.lastBuffered && frames == this.lastFrames) return;
+            
+            this.lastBuffered = true;
+            this.lastFrames = frames;
+            this.redrawAll = false;
+            
+            draw(frame, 0, 0, this.screenHeight - 1);
+        } else {
+            // changing out of buffered mode or palette changes need everything
+            boolean all = video.takePaletteDirty() | this.redrawAll | this.lastBuffered;
+            byte[] mem = video.getLiveBuffer();
+            int firstRow = this.screenHeight,
+                lastRow = -1;
+            
+            this.lastBuffered = false;
+            this.redrawAll = false;
+            
+            if(all) {
+                this.palette.loadPalette(mem, this.screenWidth * this.screenHeight);
+            }
+            
+            for(int y = 0; y < this.screenHeight; y++) {
+                if(video.takeDirtyRow(y) | all) {
+                    convertRows(mem, 0, y, 1);
+                    
+                    firstRow = Math.min(firstRow, y);
+                    lastRow = y;
+                }
+            }
+            
+            blit(firstRow, lastRow);
+        }
     }
     
     /**
-     * Updates the screen
+     * Updates the whole screen
      * 
      * @param mem
      * @param startAddress
@@ -70,66 +141,51 @@ public class Screen extends Canvas {
     public void update(byte[] mem, int startAddress) {
         if(!this.enabled) return;
         
-        byte[] framebuffer = new byte[mem.length];
-        System.arraycopy(mem, 0, framebuffer, 0, mem.length);
+        draw(mem, startAddress, 0, this.screenHeight - 1);
+    }
+    
+    /**
+     * Converts and draws a range of rows
+     * 
+     * @param mem
+     * @param startAddress
+     * @param firstRow
+     * @param lastRow
+     */
+    private void draw(byte[] mem, int startAddress, int firstRow, int lastRow) {
+        this.palette.loadPalette(mem, startAddress + (this.screenWidth * this.screenHeight));
+        convertRows(mem, startAddress, firstRow, lastRow - firstRow + 1);
+        blit(firstRow, lastRow);
+    }
+    
+    /**
+     * Converts rows from memory into the pixel buffer
+     * 
+     * @param mem
+     * @param startAddress
+     * @param firstRow
+     * @param rows
+     */
+    private void convertRows(byte[] mem, int startAddress, int firstRow, int rows) {
+        this.palette.convert(mem, startAddress + (firstRow * this.screenWidth), this.pixels, firstRow * this.screenWidth, rows * this.screenWidth);
+    }
+    
+    /**
+     * Pushes converted rows to the image and draws them, scaled, to the canvas
+     * 
+     * @param firstRow
+     * @param lastRow
+     */
+    private void blit(int firstRow, int lastRow) {
+        if(firstRow > lastRow) return;
         
-        GraphicsContext g = this.getGraphicsContext2D();
-        int paletteAddress = startAddress + (screenWidth * screenHeight);
+        int rows = lastRow - firstRow + 1;
         
-        // clear
-        g.clearRect(0, 0, screenWidth * pixelSize, screenHeight * pixelSize);
-        g.setLineWidth(1);
+        this.pixelBuffer.updateBuffer(pb -> new Rectangle2D(0, firstRow, this.screenWidth, rows));
         
-        // draw
-        for(int y = 0; y < this.screenHeight; y++) {
-            for(int x = 0; x < this.screenWidth; x++) {
-                byte b = framebuffer[startAddress + x + (y * this.screenWidth)];
-                
-                // palette
-                int red = framebuffer[paletteAddress + 3*(b & 0xFF) + 2] & 0xFF,
-                    green = framebuffer[paletteAddress + 3*(b & 0xFF) + 1] & 0xFF,
-                    blue = framebuffer[paletteAddress + 3*(b & 0xFF) + 0] & 0xFF;
-                
-                /*
-                // 332
-                int red = ((b >> 5) & 0x07) * (256 / 7),
-                    green = ((b >> 2) & 0x07) * (256 / 7),
-                    blue = (b & 0x03) * (256 / 3);
-                */
-                
-                /*
-                // 323
-                int red = ((b >> 5) & 0x07) * (256 / 7),
-                    green = ((b >> 3) & 0x03) * (256 / 3),
-                    blue = (b & 0x07) * (256 / 7);
-                */
-                
-                
-                // 233
-                /*
-                int red = ((b >> 6) & 0x03) * (256 / 3),
-                    green = ((b >> 3) & 0x07) * (256 / 7),
-                    blue = (b & 0x07) * (256 / 7);
-                */
-                
-                /*
-                // greyscale
-                int red = b,
-                    blue = b,
-                    green = b;
-                */
-                
-                // tricolor bluescale
-                /*
-                int red = ((b >> 0) & 0xEF) * (255 / 0xEF),
-                    green = ((b >> 0) & 0xEF) * (255 / 0xEF),
-                    blue = ((b >> 7) & 0x01) * 255;
-                    */
-                
-                //g.setFill(Color.grayRgb(b & 0xFF));
-                g.setFill(Color.rgb(red, green, blue));
-                g.fillRect(x * pixelSize, y * pixelSize, pixelSize, pixelSize);
-            }
-        }
+        GraphicsContext g = this.getGraphicsContext2D();
+        g.setImageSmoothing(false);
+        g.drawImage(this.image, 0, firstRow, this.screenWidth, rows,
+                    0, firstRow * this.pixelSize, this.screenWidth * this.pixelSize, rows * this.pixelSize);
     }
 }
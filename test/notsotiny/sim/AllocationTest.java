@@ -0,0 +1,90 @@
+package notsotiny.sim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import notsotiny.sim.memory.FlatMemoryController;
+import notsotiny.sim.memory.MemoryManager;
+
+/**
+ * Checks that the simulator doesn't allocate while running a warmed up program.
+ *
+ * @author Mechafinch
+ */
+public class AllocationTest {
+
+    private static final int CODE = 0x4000,
+                             STACK = 0xF000,
+                             WARMUP = 2_000_000,
+                             MEASURED = 1_000_000;
+
+    private static final int[] PROGRAM = {
+        0x10, 0x00, 0x00,   // MOV A, 0
+        0x60, 0x01,         // loop:    ADD A, 1
+        0x04, 0x08,         //          MOV B, A
+        0x84, 0x08,         //          ADD B, A
+        0x30,               //          PUSH A
+        0x42,               //          POP C
+        0xE9, 0xF6,         //          JNZ loop
+        0x63, 0x01,         // ADD D, 1
+        0xE0, 0xF2          // JMP loop
+    };
+
+    @Test
+    public void stepDoesNotAllocate() {
+        NotSoTinySimulator sim = createSimulator();
+
+        assertEquals(0, measure(() -> sim.step()), "bytes allocated by step()");
+    }
+
+    @Test
+    public void stepBlockDoesNotAllocate() {
+        NotSoTinySimulator sim = createSimulator();
+
+        assertEquals(0, measure(() -> sim.stepBlock(BasicBlock.MAX_LENGTH)), "bytes allocated by stepBlock()");
+    }
+
+    /**
+     * Runs the action WARMUP times, then counts the bytes this thread allocates running it MEASURED times
+     *
+     * @param action
+     * @return
+     */
+    private static long measure(Runnable action) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().threadId();
+
+        for(int i = 0; i < WARMUP; i++) {
+            action.run();
+        }
+
+        long before = threads.getThreadAllocatedBytes(id);
+
+        for(int i = 0; i < MEASURED; i++) {
+            action.run();
+        }
+
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    private static NotSoTinySimulator createSimulator() {
+        byte[] memory = new byte[0x1_0000];
+
+        for(int i = 0; i < PROGRAM.length; i++) {
+            memory[CODE + i] = (byte) PROGRAM[i];
+        }
+
+        MemoryManager mmu = new MemoryManager();
+        mmu.registerSegment(new FlatMemoryController(memory, false, false), 0, memory.length);
+
+        NotSoTinySimulator sim = new NotSoTinySimulator(mmu, CODE);
+        sim.setRegSP(STACK);
+
+        return sim;
+    }
+}
@@ -0,0 +1,319 @@
+package notsotiny.sim;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import notsotiny.sim.memory.FlatMemoryController;
+import notsotiny.sim.memory.MemoryManager;
+
+/**
+ * Checks that compiled blocks leave the same registers, flags, and memory as the interpreter.
+ * Each program is a loop of random instructions from the forms BlockCompiler translates, run until its blocks are
+ * compiled.
+ *
+ * @author Mechafinch
+ */
+public class BlockCompilerTest {
+
+    private static final int CODE = 0x4000,
+                             COUNTER = 0x8000,
+                             DATA = 0x8100,             // immediate address operands
+                             STACK = 0x8180,            // BP and SP
+                             POINTER = 0x1_0000,        // XP and YP
+                             MEMORY_SIZE = 0x8_0000,
+                             ITERATIONS = 400,
+                             PROGRAMS = 64,
+                             MAX_BODY = 100;
+
+    // RIM_NORMAL, byte or word
+    private static final int[] NORMAL_OPS = {
+        0x04,   // MOV
+        0x06,   // XCHG
+        0x54,   // CMP
+        0x5E,   // TST
+        0x84,   // ADD
+        0x85,   // ADC
+        0x8C,   // SUB
+        0x8D,   // SBB
+        0xA0,   // AND
+        0xA1,   // OR
+        0xA2    // XOR
+    };
+
+    // RIM_WIDE, word or dword
+    private static final int[] WIDE_OPS = {
+        0x05,   // MOVW
+        0x07,   // XCHGW
+        0x55,   // CMPW
+        0x86,   // ADDW
+        0x87,   // ADCW
+        0x8E,   // SUBW
+        0x8F    // SBBW
+    };
+
+    // destination only
+    private static final int[] DEST_OPS = {
+        0x50,   // CMP 0
+        0xA3    // NOT
+    };
+
+    // destination only, EI8 source
+    private static final int[] DEST_EI8_OPS = {
+        0x52,   // CMP i8
+        0x80,   // ADD i8
+        0x81,   // ADC i8
+        0x88,   // SUB i8
+        0x89    // SBB i8
+    };
+
+    // BIO bytes that never reach code when written through. bases are XP, YP, BP, SP, plus scaled indices
+    private static final int[] WRITE_BIOS = {
+        0x20, 0x28, 0x30, 0x38,
+        0x60, 0x65, 0x6A, 0x73,
+        0xA1, 0xAE, 0xB7,
+        0xE2, 0xEC, 0xF6
+    };
+
+    // BIO bytes only read through. IP relative, index only, and IP + index
+    private static final int[] READ_BIOS = {
+        0x04, 0x0D, 0x7A, 0xBC, 0x25, 0x3E
+    };
+
+    @Test
+    public void compiledMatchesInterpreted() {
+        for(int seed = 0; seed < PROGRAMS; seed++) {
+            Random rand = new Random(seed);
+            byte[] interpretedMemory = generateMemory(rand),
+                   compiledMemory = interpretedMemory.clone();
+
+            long registerSeed = rand.nextLong();
+            NotSoTinySimulator interpreted = createSimulator(interpretedMemory, registerSeed),
+                               compiled = createSimulator(compiledMemory, registerSeed);
+
+            while(!compiled.getHalted()) {
+                int executed = compiled.stepBlock(100);
+
+                for(int i = 0; i < executed; i++) {
+                    interpreted.step();
+                }
+
+                assertEquals(registers(interpreted), registers(compiled), "seed " + seed);
+            }
+
+            assertArrayEquals(interpretedMemory, compiledMemory, "seed " + seed);
+
+            BasicBlock block = compiled.getBlock(CODE);
+            assertNotNull(block, "seed " + seed);
+            assertNotNull(block.getCompiled(), "seed " + seed);
+        }
+    }
+
+    /**
+     * Generates memory holding a random program and data
+     *
+     * @param rand
+     * @return
+     */
+    private static byte[] generateMemory(Random rand) {
+        byte[] memory = new byte[MEMORY_SIZE];
+
+        // data everywhere but the code
+        rand.nextBytes(memory);
+        for(int i = CODE; i < COUNTER; i++) memory[i] = 0;
+
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        while(code.size() < MAX_BODY) {
+            generateInstruction(rand, code);
+        }
+
+        // SUB [COUNTER], 1
+        code.write(0x88);
+        code.write(0x45);
+        writeImmediate(code, COUNTER, 4);
+        code.write(0x01);
+
+        // JNZ body
+        code.write(0xE9);
+        code.write(-(code.size() + 1));
+
+        code.write(0xDF); // HLT
+
+        byte[] bytes = code.toByteArray();
+        System.arraycopy(bytes, 0, memory, CODE, bytes.length);
+
+        memory[COUNTER] = (byte) ITERATIONS;
+        memory[COUNTER + 1] = (byte)(ITERATIONS >> 8);
+
+        return memory;
+    }
+
+    /**
+     * Generates a random translatable instruction
+     *
+     * @param rand
+     * @param code
+     */
+    private static void generateInstruction(Random rand, ByteArrayOutputStream code) {
+        switch(rand.nextInt(6)) {
+            case 0, 1 -> generateRIM(rand, code, NORMAL_OPS[rand.nextInt(NORMAL_OPS.length)], false);
+            case 2 -> generateRIM(rand, code, WIDE_OPS[rand.nextInt(WIDE_OPS.length)], true);
+            case 3 -> generateDestination(rand, code, DEST_OPS[rand.nextInt(DEST_OPS.length)], false);
+            case 4 -> generateDestination(rand, code, DEST_EI8_OPS[rand.nextInt(DEST_EI8_OPS.length)], true);
+            default -> {
+                // conditional branch to the next instruction, so only the condition matters
+                if(rand.nextBoolean()) {
+                    code.write(0xE2 + rand.nextInt(14));
+                    code.write(0);
+                } else {
+                    code.write(0xE1);
+                    code.write(0);
+                    code.write((rand.nextInt(8) << 4) | (2 + rand.nextInt(14)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates a two operand RIM instruction
+     *
+     * @param rand
+     * @param code
+     * @param op
+     * @param wide
+     */
+    private static void generateRIM(Random rand, ByteArrayOutputStream code, int op, boolean wide) {
+        boolean s = rand.nextBoolean();
+        boolean xchg = op == 0x06 || op == 0x07;
+
+        // wide instructions with dword registers must not write the pointers
+        int reg = (wide && !s) ? rand.nextInt(4) : rand.nextInt(8);
+        int size = wide ? (s ? 2 : 4) : (s ? 1 : 2);
+        int sbit = s ? 0x80 : 0x00;
+
+        code.write(op);
+
+        switch(rand.nextInt(xchg ? 3 : 4)) {
+            case 0 -> {
+                // register, register
+                int rim = (wide && !s && xchg) ? rand.nextInt(4) : rand.nextInt(8);
+                code.write(sbit | (reg << 3) | rim);
+            }
+
+            case 1 -> generateMemoryOperand(rand, code, sbit | 0x40 | (reg << 3), false, xchg);
+
+            case 2 -> generateMemoryOperand(rand, code, sbit | 0x40 | (reg << 3), true, true);
+
+            default -> {
+                // register, immediate
+                code.write(sbit | 0x40 | (reg << 3));
+                writeImmediate(code, rand.nextInt(), size);
+            }
+        }
+    }
+
+    /**
+     * Generates a destination only RIM instruction
+     *
+     * @param rand
+     * @param code
+     * @param op
+     * @param ei8
+     */
+    private static void generateDestination(Random rand, ByteArrayOutputStream code, int op, boolean ei8) {
+        int sbit = rand.nextBoolean() ? 0x80 : 0x00;
+
+        code.write(op);
+
+        if(rand.nextBoolean()) {
+            code.write(sbit | (rand.nextInt(8) << 3));
+        } else {
+            generateMemoryOperand(rand, code, sbit | 0x40, true, true);
+        }
+
+        if(ei8) code.write(rand.nextInt(256));
+    }
+
+    /**
+     * Generates a RIM byte with a memory operand, and the operand's address bytes
+     *
+     * @param rand
+     * @param code
+     * @param rim RIM byte without its rim field
+     * @param destination true if the memory operand is the destination
+     * @param written true if the memory operand is written
+     */
+    private static void generateMemoryOperand(Random rand, ByteArrayOutputStream code, int rim, boolean destination, boolean written) {
+        int field = 1 + rand.nextInt(3);
+        code.write(rim | field | (destination ? 0x04 : 0x00));
+
+        if(field == 1) {
+            // immediate address
+            writeImmediate(code, DATA + rand.nextInt(0x70), 4);
+            return;
+        }
+
+        int bio = (written || rand.nextBoolean()) ? WRITE_BIOS[rand.nextInt(WRITE_BIOS.length)] : READ_BIOS[rand.nextInt(READ_BIOS.length)];
+        code.write(bio);
+
+        if(field == 3) {
+            // small positive offset, in the size the BIO byte asks for
+            writeImmediate(code, rand.nextInt(0x70), (bio < 0x40) ? (bio & 0x03) + 1 : 4);
+        }
+    }
+
+    private static void writeImmediate(ByteArrayOutputStream code, int value, int size) {
+        for(int i = 0; i < size; i++) {
+            code.write(value >> (8 * i));
+        }
+    }
+
+    /**
+     * @param sim
+     * @return The simulator's registers, for comparison
+     */
+    private static String registers(NotSoTinySimulator sim) {
+        return String.format("%04X %04X %04X %04X %04X %04X %04X %04X F=%04X PF=%04X XP=%08X YP=%08X BP=%08X SP=%08X IP=%08X %s",
+                             sim.getRegA(), sim.getRegB(), sim.getRegC(), sim.getRegD(),
+                             sim.getRegI(), sim.getRegJ(), sim.getRegK(), sim.getRegL(),
+                             sim.getRegF(), sim.getRegPF(), sim.getRegXP(), sim.getRegYP(),
+                             sim.getRegBP(), sim.getRegSP(), sim.getRegIP(), sim.getHalted());
+    }
+
+    /**
+     * Creates a simulator running the program, with random registers
+     *
+     * @param memory
+     * @param seed Seed for the starting registers
+     * @return
+     */
+    private static NotSoTinySimulator createSimulator(byte[] memory, long seed) {
+        MemoryManager mmu = new MemoryManager();
+        mmu.registerSegment(new FlatMemoryController(memory, false, false), 0, memory.length);
+
+        NotSoTinySimulator sim = new NotSoTinySimulator(mmu, CODE);
+        Random rand = new Random(seed);
+
+        sim.setRegA((short) rand.nextInt());
+        sim.setRegB((short) rand.nextInt());
+        sim.setRegC((short) rand.nextInt());
+        sim.setRegD((short) rand.nextInt());
+        sim.setRegI((short) rand.nextInt());
+        sim.setRegJ((short) rand.nextInt());
+        sim.setRegK((short) rand.nextInt());
+        sim.setRegL((short) rand.nextInt());
+        sim.setRegF((short) rand.nextInt(16));
+        sim.setRegXP(POINTER);
+        sim.setRegYP(POINTER + 0x100);
+        sim.setRegBP(STACK);
+        sim.setRegSP(STACK + 0x80);
+
+        return sim;
+    }
+}